@@ -0,0 +1,97 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Local message arriving, as in the Subscriber callback, through the message
+ * queue to IoTCorePublisher and a {@link FakeGreengrassCoreIPC} that
+ * acknowledges after ipcLatencyMicros.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BridgePipelineBenchmark {
+
+	private static final String TOPIC = "bench/sensor/1";
+	private static final int QUEUE_DEPTH = 10_000;
+
+	@Param({ "0", "1000" })
+	public long ipcLatencyMicros;
+
+	@Param({ "1", "16" })
+	public int maxInFlight;
+
+	@Param({ "256" })
+	public int payloadBytes;
+
+	private FakeGreengrassCoreIPC ipc;
+	private BlockingQueue<MessageObject> queue;
+	private OverflowPolicy overflowPolicy;
+	private IoTCorePublisher publisher;
+	private MqttMessage message;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		ipc = new FakeGreengrassCoreIPC(ipcLatencyMicros);
+		queue = new BoundedMessageQueue(QUEUE_DEPTH);
+		// Block when full, so arrivals are paced by what the publisher delivers
+		overflowPolicy = OverflowPolicy.create(OverflowPolicy.BLOCK, 60_000, 1, null);
+		publisher = new IoTCorePublisher(ipc.client(), queue, maxInFlight, messageObject -> {
+		});
+		publisher.setDaemon(true);
+		publisher.start();
+		message = new MqttMessage(new byte[payloadBytes]);
+		message.setQos(1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		publisher.interrupt();
+		ipc.close();
+	}
+
+	/**
+	 * Sustained messages per second from the local broker to IoT Core.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public boolean throughput() {
+		return overflowPolicy.enqueue(queue, new MessageObject(TOPIC, message));
+	}
+
+	/**
+	 * Time from a message arriving to IoT Core acknowledging it, with nothing
+	 * else queued. Sampled, so percentiles are reported.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void latency() {
+		long target = ipc.getAcknowledged() + 1;
+		overflowPolicy.enqueue(queue, new MessageObject(TOPIC, message));
+		ipc.awaitAcknowledged(target);
+	}
+}
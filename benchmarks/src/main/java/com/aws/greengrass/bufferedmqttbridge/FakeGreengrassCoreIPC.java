@@ -0,0 +1,283 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import software.amazon.awssdk.aws.greengrass.GetConfigurationResponseHandler;
+import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPC;
+import software.amazon.awssdk.aws.greengrass.PublishToIoTCoreResponseHandler;
+import software.amazon.awssdk.aws.greengrass.SubscribeToConfigurationUpdateResponseHandler;
+import software.amazon.awssdk.aws.greengrass.SubscribeToIoTCoreResponseHandler;
+import software.amazon.awssdk.aws.greengrass.UpdateStateResponseHandler;
+import software.amazon.awssdk.aws.greengrass.model.ConfigurationUpdateEvent;
+import software.amazon.awssdk.aws.greengrass.model.ConfigurationUpdateEvents;
+import software.amazon.awssdk.aws.greengrass.model.GetConfigurationRequest;
+import software.amazon.awssdk.aws.greengrass.model.GetConfigurationResponse;
+import software.amazon.awssdk.aws.greengrass.model.IoTCoreMessage;
+import software.amazon.awssdk.aws.greengrass.model.MQTTMessage;
+import software.amazon.awssdk.aws.greengrass.model.PublishToIoTCoreRequest;
+import software.amazon.awssdk.aws.greengrass.model.PublishToIoTCoreResponse;
+import software.amazon.awssdk.aws.greengrass.model.ServiceError;
+import software.amazon.awssdk.aws.greengrass.model.SubscribeToConfigurationUpdateResponse;
+import software.amazon.awssdk.aws.greengrass.model.SubscribeToIoTCoreRequest;
+import software.amazon.awssdk.aws.greengrass.model.SubscribeToIoTCoreResponse;
+import software.amazon.awssdk.aws.greengrass.model.UpdateStateResponse;
+import software.amazon.awssdk.eventstreamrpc.OperationResponse;
+import software.amazon.awssdk.eventstreamrpc.StreamResponseHandler;
+import software.amazon.awssdk.eventstreamrpc.model.EventStreamJsonMessage;
+
+/**
+ * Stands in for Greengrass IPC so the bridge can run without a Greengrass core.
+ *
+ * publishToIoTCore is acknowledged latencyMicros after it is called, or fails
+ * with a ServiceError during an outage; each acknowledged publish is handed to
+ * the publish listener. getConfiguration answers from a configuration map,
+ * and {@link #updateConfiguration(Map)} replaces it and notifies configuration
+ * subscribers. Messages from {@link #deliverFromCloud(String, byte[])} go to
+ * the matching subscribeToIoTCore streams. updateState is accepted; any other
+ * operation throws UnsupportedOperationException.
+ */
+public class FakeGreengrassCoreIPC implements InvocationHandler, Closeable {
+
+	private volatile long latencyMicros;
+	private volatile boolean outage;
+	private volatile Map<String, Object> configuration = Collections.emptyMap();
+	private volatile Consumer<PublishToIoTCoreRequest> publishListener = request -> {
+	};
+	private final ScheduledExecutorService completer;
+	private final AtomicLong acknowledged = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final Map<FakeResponse<?>, Subscription> cloudSubscriptions = new ConcurrentHashMap<>();
+	private final List<StreamResponseHandler<ConfigurationUpdateEvents>> configurationSubscribers =
+			new CopyOnWriteArrayList<>();
+	private final GreengrassCoreIPC client;
+
+	/**
+	 * @param latencyMicros time from a publish to its acknowledgement, 0 to
+	 *                      acknowledge on the calling thread
+	 */
+	public FakeGreengrassCoreIPC(long latencyMicros) {
+		this.latencyMicros = latencyMicros;
+		this.completer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "fake-ipc");
+			t.setDaemon(true);
+			return t;
+		});
+		this.client = (GreengrassCoreIPC) Proxy.newProxyInstance(GreengrassCoreIPC.class.getClassLoader(),
+				new Class<?>[] { GreengrassCoreIPC.class }, this);
+	}
+
+	public GreengrassCoreIPC client() {
+		return client;
+	}
+
+	public void setLatencyMicros(long latencyMicros) {
+		this.latencyMicros = latencyMicros;
+	}
+
+	/**
+	 * @param outage true to fail every publish until called again with false
+	 */
+	public void setOutage(boolean outage) {
+		this.outage = outage;
+	}
+
+	/**
+	 * @param publishListener called with each acknowledged publish, on the
+	 *                        thread that acknowledges it
+	 */
+	public void setPublishListener(Consumer<PublishToIoTCoreRequest> publishListener) {
+		this.publishListener = publishListener;
+	}
+
+	/**
+	 * Set the component configuration without notifying anyone, for before the
+	 * bridge starts.
+	 */
+	public void setConfiguration(Map<String, Object> configuration) {
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Replace the component configuration and notify configuration subscribers,
+	 * as a deployment would.
+	 */
+	public void updateConfiguration(Map<String, Object> configuration) {
+		this.configuration = configuration;
+		for (StreamResponseHandler<ConfigurationUpdateEvents> subscriber : configurationSubscribers) {
+			ConfigurationUpdateEvent event = new ConfigurationUpdateEvent();
+			event.setKeyPath(Collections.emptyList());
+			ConfigurationUpdateEvents events = new ConfigurationUpdateEvents();
+			events.setConfigurationUpdateEvent(event);
+			subscriber.onStreamEvent(events);
+		}
+	}
+
+	/**
+	 * Deliver a message from IoT Core to the bridge's matching subscriptions.
+	 */
+	public void deliverFromCloud(String topic, byte[] payload) {
+		for (Subscription subscription : cloudSubscriptions.values()) {
+			if (MqttTopic.isMatched(subscription.filter, topic)) {
+				MQTTMessage message = new MQTTMessage();
+				message.setTopicName(topic);
+				message.setPayload(payload);
+				IoTCoreMessage ioTCoreMessage = new IoTCoreMessage();
+				ioTCoreMessage.setMessage(message);
+				subscription.handler.onStreamEvent(ioTCoreMessage);
+			}
+		}
+	}
+
+	/**
+	 * @return publishes acknowledged so far
+	 */
+	public long getAcknowledged() {
+		return acknowledged.get();
+	}
+
+	/**
+	 * @return publishes failed by an outage so far
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Wait until at least count publishes have been acknowledged.
+	 */
+	public void awaitAcknowledged(long count) {
+		while (acknowledged.get() < count) {
+			Thread.yield();
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "publishToIoTCore":
+			return publishToIoTCore((PublishToIoTCoreRequest) args[0]);
+		case "subscribeToIoTCore":
+			return subscribeToIoTCore((SubscribeToIoTCoreRequest) args[0],
+					(Optional<StreamResponseHandler<IoTCoreMessage>>) args[1]);
+		case "getConfiguration":
+			return getConfiguration((GetConfigurationRequest) args[0]);
+		case "subscribeToConfigurationUpdate":
+			((Optional<StreamResponseHandler<ConfigurationUpdateEvents>>) args[1])
+					.ifPresent(configurationSubscribers::add);
+			return new SubscribeToConfigurationUpdateResponseHandler(
+					new FakeResponse<>(new SubscribeToConfigurationUpdateResponse()));
+		case "updateState":
+			return new UpdateStateResponseHandler(new FakeResponse<>(new UpdateStateResponse()));
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "equals":
+			return proxy == args[0];
+		case "toString":
+			return "FakeGreengrassCoreIPC";
+		default:
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+	private PublishToIoTCoreResponseHandler publishToIoTCore(PublishToIoTCoreRequest request) {
+		CompletableFuture<PublishToIoTCoreResponse> response = new CompletableFuture<>();
+		long latency = latencyMicros;
+		if (latency <= 0) {
+			acknowledge(request, response);
+		} else {
+			completer.schedule(() -> acknowledge(request, response), latency, TimeUnit.MICROSECONDS);
+		}
+		return new PublishToIoTCoreResponseHandler(new FakeResponse<>(response));
+	}
+
+	private void acknowledge(PublishToIoTCoreRequest request, CompletableFuture<PublishToIoTCoreResponse> response) {
+		if (outage) {
+			failed.incrementAndGet();
+			response.completeExceptionally(new ServiceError("IoT Core is unavailable"));
+			return;
+		}
+		acknowledged.incrementAndGet();
+		publishListener.accept(request);
+		response.complete(new PublishToIoTCoreResponse());
+	}
+
+	private SubscribeToIoTCoreResponseHandler subscribeToIoTCore(SubscribeToIoTCoreRequest request,
+			Optional<StreamResponseHandler<IoTCoreMessage>> handler) {
+		FakeResponse<SubscribeToIoTCoreResponse> response = new FakeResponse<>(new SubscribeToIoTCoreResponse());
+		handler.ifPresent(h -> cloudSubscriptions.put(response, new Subscription(request.getTopicName(), h)));
+		return new SubscribeToIoTCoreResponseHandler(response);
+	}
+
+	@SuppressWarnings("unchecked")
+	private GetConfigurationResponseHandler getConfiguration(GetConfigurationRequest request) {
+		Object value = configuration;
+		for (String key : request.getKeyPath()) {
+			value = value instanceof Map ? ((Map<String, Object>) value).get(key) : null;
+		}
+		GetConfigurationResponse response = new GetConfigurationResponse();
+		response.setValue(value instanceof Map ? (Map<String, Object>) value : Collections.emptyMap());
+		return new GetConfigurationResponseHandler(new FakeResponse<>(response));
+	}
+
+	@Override
+	public void close() {
+		completer.shutdownNow();
+	}
+
+	private static class Subscription {
+		private final String filter;
+		private final StreamResponseHandler<IoTCoreMessage> handler;
+
+		Subscription(String filter, StreamResponseHandler<IoTCoreMessage> handler) {
+			this.filter = filter;
+			this.handler = handler;
+		}
+	}
+
+	// An operation answered in-process; closing a subscription stream ends it
+	private class FakeResponse<T extends EventStreamJsonMessage> extends OperationResponse<T, EventStreamJsonMessage> {
+
+		FakeResponse(T response) {
+			this(CompletableFuture.completedFuture(response));
+		}
+
+		FakeResponse(CompletableFuture<T> response) {
+			super(null, null, response, CompletableFuture.completedFuture(null));
+		}
+
+		@Override
+		public CompletableFuture<Void> closeStream() {
+			cloudSubscriptions.remove(this);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		// Without the base class's throws Exception, so try-with-resources needs no catch
+		@Override
+		public void close() {
+			closeStream();
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * A minimal MQTT 3.1.1 broker on the loopback interface, enough for the bridge
+ * and the load generator: clean sessions only, QoS 0 and 1 (QoS 2 publishes are
+ * accepted and delivered at QoS 1), no retained messages and no persistence.
+ * Shared subscriptions ($share/&lt;group&gt;/&lt;filter&gt;) hand each message to
+ * one subscriber of the group in turn.
+ * {@link #stop()} drops every connection, as a broker restart would.
+ */
+public class InProcessBroker implements Closeable {
+
+	private static final int CONNECT = 1;
+	private static final int PUBLISH = 3;
+	private static final int PUBACK = 4;
+	private static final int PUBREC = 5;
+	private static final int PUBREL = 6;
+	private static final int PUBCOMP = 7;
+	private static final int SUBSCRIBE = 8;
+	private static final int SUBACK = 9;
+	private static final int UNSUBSCRIBE = 10;
+	private static final int UNSUBACK = 11;
+	private static final int PINGREQ = 12;
+	private static final int PINGRESP = 13;
+	private static final int DISCONNECT = 14;
+	private static final String SHARE = "$share/";
+
+	private final int port;
+	private final Map<Connection, Boolean> connections = new ConcurrentHashMap<>();
+	private final AtomicInteger nextShare = new AtomicInteger();
+	private volatile ServerSocket serverSocket;
+
+	/**
+	 * @param port port to listen on, 0 for any free port
+	 */
+	public InProcessBroker(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Start accepting connections, if not already.
+	 *
+	 * @throws IOException if the port can not be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (serverSocket != null && !serverSocket.isClosed()) {
+			return;
+		}
+		ServerSocket socket = new ServerSocket();
+		socket.setReuseAddress(true);
+		socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				serverSocket == null ? port : serverSocket.getLocalPort()));
+		serverSocket = socket;
+		Thread acceptor = new Thread(() -> accept(socket), "broker-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Stop accepting connections and drop the ones there are. {@link #start()}
+	 * listens again on the same port.
+	 */
+	public synchronized void stop() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+		for (Connection connection : connections.keySet()) {
+			connection.close();
+		}
+	}
+
+	public String getUri() {
+		return "tcp://localhost:" + serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void close() {
+		stop();
+	}
+
+	private void accept(ServerSocket socket) {
+		while (!socket.isClosed()) {
+			try {
+				Socket client = socket.accept();
+				client.setTcpNoDelay(true);
+				Connection connection = new Connection(client);
+				connections.put(connection, Boolean.TRUE);
+				Thread reader = new Thread(connection::read, "broker-connection");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				// Closed by stop()
+			}
+		}
+	}
+
+	private void route(String topic, int qos, byte[] payload) {
+		Map<String, List<Connection>> groups = null;
+		for (Connection connection : connections.keySet()) {
+			int granted = -1;
+			for (Map.Entry<String, Integer> subscription : connection.subscriptions.entrySet()) {
+				String filter = subscription.getKey();
+				if (filter.startsWith(SHARE)) {
+					int slash = filter.indexOf('/', SHARE.length());
+					if (slash > 0 && MqttTopic.isMatched(filter.substring(slash + 1), topic)) {
+						if (groups == null) {
+							groups = new HashMap<>();
+						}
+						groups.computeIfAbsent(filter, g -> new ArrayList<>()).add(connection);
+					}
+				} else if (MqttTopic.isMatched(filter, topic)) {
+					granted = Math.max(granted, subscription.getValue());
+				}
+			}
+			if (granted >= 0) {
+				connection.deliver(topic, Math.min(qos, granted), payload);
+			}
+		}
+		if (groups != null) {
+			for (List<Connection> members : groups.values()) {
+				int turn = Math.floorMod(nextShare.getAndIncrement(), members.size());
+				members.get(turn).deliver(topic, Math.min(qos, 1), payload);
+			}
+		}
+	}
+
+	private class Connection {
+		private final Socket socket;
+		private final OutputStream out;
+		private final Map<String, Integer> subscriptions = new ConcurrentHashMap<>();
+		private int nextPacketId = 1;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		void read() {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+				while (true) {
+					int header = in.read();
+					if (header < 0) {
+						return;
+					}
+					byte[] body = new byte[remainingLength(in)];
+					in.readFully(body);
+					if (!handle(header >> 4, header & 0x0f, new Packet(body))) {
+						return;
+					}
+				}
+			} catch (IOException e) {
+				// Connection dropped
+			} finally {
+				close();
+			}
+		}
+
+		private boolean handle(int type, int flags, Packet packet) throws IOException {
+			switch (type) {
+			case CONNECT:
+				write(0x20, new byte[] { 0, 0 });
+				return true;
+			case PUBLISH:
+				int qos = Math.min(2, (flags >> 1) & 3);
+				String topic = packet.string();
+				int id = qos > 0 ? packet.uint16() : 0;
+				route(topic, Math.min(qos, 1), packet.rest());
+				if (qos == 1) {
+					write(PUBACK << 4, packetId(id));
+				} else if (qos == 2) {
+					write(PUBREC << 4, packetId(id));
+				}
+				return true;
+			case PUBREL:
+				write(PUBCOMP << 4, packetId(packet.uint16()));
+				return true;
+			case SUBSCRIBE:
+				ByteArrayOutputStream suback = new ByteArrayOutputStream();
+				suback.write(packet.array, 0, 2);
+				packet.uint16();
+				while (packet.remaining() > 0) {
+					String filter = packet.string();
+					int granted = Math.min(1, packet.uint8());
+					subscriptions.put(filter, granted);
+					suback.write(granted);
+				}
+				write(SUBACK << 4, suback.toByteArray());
+				return true;
+			case UNSUBSCRIBE:
+				int unsubscribeId = packet.uint16();
+				while (packet.remaining() > 0) {
+					subscriptions.remove(packet.string());
+				}
+				write(UNSUBACK << 4, packetId(unsubscribeId));
+				return true;
+			case PINGREQ:
+				write(PINGRESP << 4, new byte[0]);
+				return true;
+			case DISCONNECT:
+				return false;
+			default:
+				// PUBACK for our deliveries, nothing is retransmitted
+				return true;
+			}
+		}
+
+		void deliver(String topic, int qos, byte[] payload) {
+			byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+			ByteArrayOutputStream body = new ByteArrayOutputStream(topicBytes.length + payload.length + 4);
+			body.write(topicBytes.length >> 8);
+			body.write(topicBytes.length);
+			body.write(topicBytes, 0, topicBytes.length);
+			synchronized (this) {
+				if (qos > 0) {
+					int id = nextPacketId;
+					nextPacketId = nextPacketId == 0xffff ? 1 : nextPacketId + 1;
+					body.write(id >> 8);
+					body.write(id);
+				}
+				body.write(payload, 0, payload.length);
+				try {
+					write(PUBLISH << 4 | qos << 1, body.toByteArray());
+				} catch (IOException e) {
+					close();
+				}
+			}
+		}
+
+		private synchronized void write(int header, byte[] body) throws IOException {
+			out.write(header);
+			int length = body.length;
+			do {
+				int digit = length % 128;
+				length /= 128;
+				out.write(length > 0 ? digit | 0x80 : digit);
+			} while (length > 0);
+			out.write(body);
+			out.flush();
+		}
+
+		void close() {
+			connections.remove(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+
+	private static byte[] packetId(int id) {
+		return new byte[] { (byte) (id >> 8), (byte) id };
+	}
+
+	private static int remainingLength(DataInputStream in) throws IOException {
+		int length = 0;
+		for (int shift = 0; shift < 28; shift += 7) {
+			int digit = in.read();
+			if (digit < 0) {
+				throw new EOFException();
+			}
+			length |= (digit & 0x7f) << shift;
+			if ((digit & 0x80) == 0) {
+				return length;
+			}
+		}
+		throw new IOException("Malformed remaining length");
+	}
+
+	private static class Packet {
+		private final byte[] array;
+		private int position;
+
+		Packet(byte[] array) {
+			this.array = array;
+		}
+
+		int remaining() {
+			return array.length - position;
+		}
+
+		int uint8() {
+			return array[position++] & 0xff;
+		}
+
+		int uint16() {
+			return uint8() << 8 | uint8();
+		}
+
+		String string() {
+			int length = uint16();
+			String value = new String(array, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+
+		byte[] rest() {
+			byte[] rest = new byte[remaining()];
+			System.arraycopy(array, position, rest, 0, rest.length);
+			position = array.length;
+			return rest;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Publishes numbered messages to a broker at a fixed rate, round robin over
+ * topicCount topics named prefix/0, prefix/1 and so on. Each payload starts
+ * with its sequence number and System.nanoTime() at publish, see
+ * {@link #sequence(byte[])} and {@link #sentNanos(byte[])}, and is padded with
+ * random bytes to a size between minPayload and maxPayload.
+ *
+ * A message counts as sent once the broker has accepted it. Messages that can
+ * not be published, because the broker is down or too many are in flight, are
+ * skipped and never reported as sent.
+ */
+public class LoadGenerator implements Closeable {
+
+	/** Bytes at the start of every payload. */
+	public static final int HEADER_BYTES = 16;
+
+	private final MqttAsyncClient client;
+	private final String prefix;
+	private final int topicCount;
+	private final int minPayload;
+	private final int maxPayload;
+	private final double rate;
+	private final int qos;
+	private final LongConsumer onSent;
+	private final AtomicLong skipped = new AtomicLong();
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * @param brokerUri  broker to publish to
+	 * @param prefix     topic prefix
+	 * @param topicCount number of topics
+	 * @param minPayload smallest payload in bytes, at least {@link #HEADER_BYTES}
+	 * @param maxPayload largest payload in bytes
+	 * @param rate       messages per second
+	 * @param qos        publish QoS
+	 * @param onSent     called with the sequence number of each message the
+	 *                   broker accepted
+	 * @throws MqttException if the client can not be created
+	 */
+	public LoadGenerator(String brokerUri, String prefix, int topicCount, int minPayload, int maxPayload,
+			double rate, int qos, LongConsumer onSent) throws MqttException {
+		this.client = new MqttAsyncClient(brokerUri, "load-generator-" + System.nanoTime(), new MemoryPersistence());
+		this.prefix = prefix;
+		this.topicCount = topicCount;
+		this.minPayload = Math.max(HEADER_BYTES, minPayload);
+		this.maxPayload = Math.max(this.minPayload, maxPayload);
+		this.rate = rate;
+		this.qos = qos;
+		this.onSent = onSent;
+	}
+
+	/**
+	 * Connect and start publishing on the "load-generator" thread.
+	 *
+	 * @throws MqttException if the first connection fails
+	 */
+	public void start() throws MqttException {
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setCleanSession(true);
+		options.setAutomaticReconnect(true);
+		options.setMaxReconnectDelay(1000);
+		options.setMaxInflight(1000);
+		client.connect(options).waitForCompletion();
+		running = true;
+		thread = new Thread(this::publishLoop, "load-generator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return messages not published because the broker was unavailable or
+	 *         busy
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public static long sequence(byte[] payload) {
+		return ByteBuffer.wrap(payload).getLong(0);
+	}
+
+	public static long sentNanos(byte[] payload) {
+		return ByteBuffer.wrap(payload).getLong(8);
+	}
+
+	private void publishLoop() {
+		IMqttActionListener listener = new IMqttActionListener() {
+			@Override
+			public void onSuccess(IMqttToken token) {
+				onSent.accept((Long) token.getUserContext());
+			}
+
+			@Override
+			public void onFailure(IMqttToken token, Throwable exception) {
+				skipped.incrementAndGet();
+			}
+		};
+		long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		long next = System.nanoTime();
+		for (long sequence = 0; running; sequence++) {
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			next += periodNanos;
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			byte[] payload = new byte[minPayload == maxPayload ? minPayload : random.nextInt(minPayload, maxPayload + 1)];
+			random.nextBytes(payload);
+			ByteBuffer.wrap(payload).putLong(sequence).putLong(System.nanoTime());
+			MqttMessage message = new MqttMessage(payload);
+			message.setQos(qos);
+			try {
+				client.publish(prefix + "/" + sequence % topicCount, message, sequence, listener);
+			} catch (MqttException e) {
+				// Disconnected or too many in flight, don't queue up a burst for later
+				skipped.incrementAndGet();
+				next = Math.max(next, System.nanoTime());
+			}
+		}
+	}
+
+	/**
+	 * Stop publishing and disconnect.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			client.disconnectForcibly(1000, 1000);
+			client.close(true);
+		} catch (MqttException e) {
+			// Already disconnected
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of creating the MessageObject for each message. Run with -prof gc for
+ * the bytes allocated per message (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageObjectBenchmark {
+
+	private static final String TOPIC = "bench/sensor/1";
+
+	@Param({ "64", "1024", "16384" })
+	public int payloadBytes;
+
+	private MqttMessage message;
+	private byte[] payload;
+
+	@Setup
+	public void setUp() {
+		payload = new byte[payloadBytes];
+		message = new MqttMessage(payload);
+		message.setQos(1);
+	}
+
+	/**
+	 * As created for each message from the local broker.
+	 */
+	@Benchmark
+	public MessageObject fromMqttMessage() {
+		return new MessageObject(TOPIC, message);
+	}
+
+	/**
+	 * As created for each message read back from the spill log.
+	 */
+	@Benchmark
+	public MessageObject fromSpillLog() {
+		return new MessageObject(TOPIC, 1, payload, 0L);
+	}
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import com.aws.greengrass.componentcommon.Metrics;
+import com.google.gson.Gson;
+
+/**
+ * Runs the bridge against an {@link InProcessBroker} and a
+ * {@link FakeGreengrassCoreIPC} under load from a {@link LoadGenerator}, and
+ * reports throughput, latency, loss, duplicates and memory as it goes.
+ *
+ * Local messages are published to load/&lt;n&gt; and counted when the bridge
+ * publishes them to the fake IoT Core. With --cloud-rate, messages are also
+ * delivered from the fake IoT Core on cloud/&lt;n&gt; and counted when they
+ * reach the local broker. Outages of IoT Core and restarts of the local broker
+ * can be injected on a schedule. Run with --help for the options.
+ */
+public class SoakTest {
+
+	private static final Map<String, String> OPTIONS = new HashMap<>();
+
+	static {
+		OPTIONS.put("duration", "60");
+		OPTIONS.put("rate", "1000");
+		OPTIONS.put("topics", "10");
+		OPTIONS.put("payload-min", "64");
+		OPTIONS.put("payload-max", "1024");
+		OPTIONS.put("qos", "1");
+		OPTIONS.put("cloud-rate", "0");
+		OPTIONS.put("report-interval", "10");
+		OPTIONS.put("ipc-latency", "1000");
+		OPTIONS.put("ipc-outage-every", "0");
+		OPTIONS.put("ipc-outage-for", "10");
+		OPTIONS.put("broker-restart-every", "0");
+		OPTIONS.put("broker-down-for", "5");
+		OPTIONS.put("drain-timeout", "60");
+		OPTIONS.put("config", "");
+	}
+
+	private final Map<String, String> options;
+	private final Tracker uplink = new Tracker();
+	private final Tracker downlink = new Tracker();
+	private final Metrics.Histogram uplinkLatency = new Metrics.Histogram("Local to IoT Core latency");
+	private final Metrics.Histogram downlinkLatency = new Metrics.Histogram("IoT Core to local latency");
+	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+		Thread t = new Thread(r, "soak");
+		t.setDaemon(true);
+		return t;
+	});
+	private long startNanos;
+	private long firstHeap = -1;
+
+	SoakTest(Map<String, String> options) {
+		this.options = options;
+	}
+
+	/**
+	 * Run.
+	 *
+	 * @param args --option value pairs
+	 * @throws Exception if the run can not be set up
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>(OPTIONS);
+		for (int i = 0; i < args.length; i += 2) {
+			String name = args[i].replaceFirst("^--", "");
+			if (!options.containsKey(name) || i + 1 == args.length) {
+				System.err.println("Usage: SoakTest [--option value]..., options and defaults:");
+				options.keySet().stream().sorted().forEach(o -> System.err.println("  --" + o + " " + OPTIONS.get(o)));
+				System.exit(2);
+			}
+			options.put(name, args[i + 1]);
+		}
+		boolean clean = new SoakTest(options).run();
+		System.exit(clean ? 0 : 1);
+	}
+
+	/**
+	 * @return true if nothing was lost or duplicated
+	 */
+	boolean run() throws Exception {
+		try (InProcessBroker broker = new InProcessBroker(0);
+				FakeGreengrassCoreIPC ipc = new FakeGreengrassCoreIPC(longOption("ipc-latency"))) {
+			broker.start();
+			ipc.setConfiguration(configuration(broker.getUri()));
+			ipc.setPublishListener(request -> {
+				if (request.getTopicName().startsWith("load/")) {
+					received(uplink, uplinkLatency, request.getPayload());
+				}
+			});
+
+			Thread bridge = new Thread(() -> {
+				try {
+					Main.run(ipc.client());
+				} catch (InterruptedException e) {
+					// Stopped at the end of the run
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}, "bridge");
+			bridge.start();
+
+			MqttAsyncClient listener = listen(broker.getUri());
+			LoadGenerator generator = new LoadGenerator(broker.getUri(), "load", intOption("topics"),
+					intOption("payload-min"), intOption("payload-max"), doubleOption("rate"), intOption("qos"),
+					uplink::sent);
+			// Let the bridge subscribe before the first message
+			Thread.sleep(1000);
+			startNanos = System.nanoTime();
+			generator.start();
+			scheduleFaults(broker, ipc);
+			if (doubleOption("cloud-rate") > 0) {
+				long periodMicros = (long) (1_000_000 / doubleOption("cloud-rate"));
+				long[] sequence = { 0 };
+				scheduler.scheduleAtFixedRate(() -> {
+					byte[] payload = new byte[intOption("payload-min")];
+					ByteBuffer.wrap(payload).putLong(sequence[0]).putLong(System.nanoTime());
+					downlink.sent(sequence[0]);
+					ipc.deliverFromCloud("cloud/" + sequence[0]++ % intOption("topics"), payload);
+				}, 0, periodMicros, TimeUnit.MICROSECONDS);
+			}
+
+			long reportInterval = longOption("report-interval");
+			scheduler.scheduleAtFixedRate(this::report, reportInterval, reportInterval, TimeUnit.SECONDS);
+			Thread.sleep(TimeUnit.SECONDS.toMillis(longOption("duration")));
+
+			// Stop the load and faults, then give the bridge time to catch up
+			generator.close();
+			scheduler.shutdownNow();
+			ipc.setOutage(false);
+			broker.start();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(longOption("drain-timeout"));
+			while ((uplink.outstanding() > 0 || downlink.outstanding() > 0) && System.nanoTime() < deadline) {
+				Thread.sleep(100);
+			}
+			report();
+
+			bridge.interrupt();
+			bridge.join(10_000);
+			listener.disconnectForcibly(1000, 1000);
+			listener.close(true);
+
+			return summary(generator, ipc);
+		}
+	}
+
+	private void scheduleFaults(InProcessBroker broker, FakeGreengrassCoreIPC ipc) {
+		long outageEvery = longOption("ipc-outage-every");
+		if (outageEvery > 0) {
+			scheduler.scheduleAtFixedRate(() -> {
+				log("IoT Core outage for %ss", options.get("ipc-outage-for"));
+				ipc.setOutage(true);
+				scheduler.schedule(() -> {
+					log("IoT Core back");
+					ipc.setOutage(false);
+				}, longOption("ipc-outage-for"), TimeUnit.SECONDS);
+			}, outageEvery, outageEvery, TimeUnit.SECONDS);
+		}
+		long restartEvery = longOption("broker-restart-every");
+		if (restartEvery > 0) {
+			scheduler.scheduleAtFixedRate(() -> {
+				log("Local broker down for %ss", options.get("broker-down-for"));
+				broker.stop();
+				scheduler.schedule(() -> {
+					try {
+						broker.start();
+						log("Local broker back");
+					} catch (IOException e) {
+						log("Local broker failed to restart: %s", e);
+					}
+				}, longOption("broker-down-for"), TimeUnit.SECONDS);
+			}, restartEvery, restartEvery, TimeUnit.SECONDS);
+		}
+	}
+
+	// The bridge's configuration: the recipe defaults that matter here, then --config
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> configuration(String brokerUri) throws IOException {
+		Map<String, Object> connectionInfo = new HashMap<>();
+		connectionInfo.put("brokerUri", brokerUri);
+		connectionInfo.put("clientId", "soak-bridge");
+		connectionInfo.put(Main.QUEUE_DEPTH, 10_000.0);
+		connectionInfo.put(Main.MAX_IN_FLIGHT, 16.0);
+		connectionInfo.put(Subscriber.OVERFLOW_POLICY, "block");
+		Map<String, Object> mappings = new HashMap<>();
+		mappings.put(Subscriber.LOCAL_TOPICS, Arrays.asList("load/#"));
+		mappings.put(Subscriber.CLOUD_TOPICS, Arrays.asList("cloud/#"));
+		mappings.put(Main.BATCH_TOPICS, Arrays.asList());
+
+		String file = options.get("config");
+		if (!file.isEmpty()) {
+			try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+				Map<String, Object> overrides = new Gson().fromJson(reader, Map.class);
+				if (overrides.containsKey(Main.CONNECTION_INFO)) {
+					connectionInfo.putAll((Map<String, Object>) overrides.get(Main.CONNECTION_INFO));
+				}
+				if (overrides.containsKey(Main.MAPPINGS)) {
+					mappings.putAll((Map<String, Object>) overrides.get(Main.MAPPINGS));
+				}
+			}
+		}
+		Map<String, Object> configuration = new HashMap<>();
+		configuration.put(Main.CONNECTION_INFO, connectionInfo);
+		configuration.put(Main.MAPPINGS, mappings);
+		return configuration;
+	}
+
+	// Subscribes to what the bridge forwards from IoT Core
+	private MqttAsyncClient listen(String brokerUri) throws MqttException {
+		MqttAsyncClient client = new MqttAsyncClient(brokerUri, "soak-listener", new MemoryPersistence());
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setCleanSession(true);
+		options.setAutomaticReconnect(true);
+		options.setMaxReconnectDelay(1000);
+		client.setCallback(new MqttCallbackExtended() {
+			@Override
+			public void connectComplete(boolean reconnect, String serverUri) {
+				// The broker keeps no sessions
+				try {
+					client.subscribe("cloud/#", 1);
+				} catch (MqttException e) {
+					log("Listener failed to subscribe: %s", e);
+				}
+			}
+
+			@Override
+			public void connectionLost(Throwable cause) {
+			}
+
+			@Override
+			public void messageArrived(String topic, MqttMessage message) {
+				received(downlink, downlinkLatency, message.getPayload());
+			}
+
+			@Override
+			public void deliveryComplete(IMqttDeliveryToken token) {
+			}
+		});
+		client.connect(options).waitForCompletion();
+		return client;
+	}
+
+	private static void received(Tracker tracker, Metrics.Histogram latency, byte[] payload) {
+		if (payload.length < LoadGenerator.HEADER_BYTES) {
+			return;
+		}
+		latency.recordSince(LoadGenerator.sentNanos(payload));
+		tracker.received(LoadGenerator.sequence(payload));
+	}
+
+	private void report() {
+		long heap = heapAfterGc();
+		if (firstHeap < 0) {
+			firstHeap = heap;
+		}
+		StringBuilder uplinkLatencyJson = new StringBuilder();
+		uplinkLatency.appendJson(uplinkLatencyJson);
+		log("up: %s latency %s", uplink.report(), uplinkLatencyJson);
+		if (downlink.sentCount() > 0) {
+			StringBuilder downlinkLatencyJson = new StringBuilder();
+			downlinkLatency.appendJson(downlinkLatencyJson);
+			log("down: %s latency %s", downlink.report(), downlinkLatencyJson);
+		}
+		log("heap after GC %.1f MB (%+.1f MB since first report), %d threads", heap / 1e6,
+				(heap - firstHeap) / 1e6, ManagementFactory.getThreadMXBean().getThreadCount());
+	}
+
+	private boolean summary(LoadGenerator generator, FakeGreengrassCoreIPC ipc) {
+		long uplinkLost = uplink.lost();
+		long downlinkLost = downlink.lost();
+		log("Summary: up %d sent, %d lost, %d duplicated; %d not sent by the generator; %d publishes failed by "
+				+ "IoT Core outages", uplink.sentCount(), uplinkLost, uplink.duplicates(), generator.getSkipped(),
+				ipc.getFailed());
+		if (downlink.sentCount() > 0) {
+			log("Summary: down %d sent, %d lost, %d duplicated", downlink.sentCount(), downlinkLost,
+					downlink.duplicates());
+		}
+		return uplinkLost + downlinkLost + uplink.duplicates() + downlink.duplicates() == 0;
+	}
+
+	// Heap in use after a full collection, the live set, so growth shows leaks
+	private static long heapAfterGc() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private void log(String format, Object... args) {
+		long elapsed = startNanos == 0 ? 0 : TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+		System.out.println(String.format(Locale.ROOT, "[%6ds] ", elapsed) + String.format(Locale.ROOT, format, args));
+	}
+
+	private long longOption(String name) {
+		return Long.parseLong(options.get(name));
+	}
+
+	private int intOption(String name) {
+		return Integer.parseInt(options.get(name));
+	}
+
+	private double doubleOption(String name) {
+		return Double.parseDouble(options.get(name));
+	}
+
+	/**
+	 * Sent and received sequence numbers, one bit each, so a run of a few
+	 * hundred million messages is tracked exactly in tens of megabytes.
+	 */
+	private static class Tracker {
+		private final BitSet sent = new BitSet();
+		private final BitSet received = new BitSet();
+		private long sentCount;
+		private long receivedCount;
+		private long duplicates;
+		private long reportedReceived;
+		private long reportedNanos = System.nanoTime();
+
+		synchronized void sent(long sequence) {
+			sent.set((int) sequence);
+			sentCount++;
+		}
+
+		synchronized void received(long sequence) {
+			if (received.get((int) sequence)) {
+				duplicates++;
+			} else {
+				received.set((int) sequence);
+				receivedCount++;
+			}
+		}
+
+		synchronized long sentCount() {
+			return sentCount;
+		}
+
+		synchronized long duplicates() {
+			return duplicates;
+		}
+
+		// Sent but not received yet, or never
+		synchronized long outstanding() {
+			return Math.max(0, sentCount - receivedCount);
+		}
+
+		synchronized long lost() {
+			BitSet lost = (BitSet) sent.clone();
+			lost.andNot(received);
+			return lost.cardinality();
+		}
+
+		synchronized String report() {
+			long now = System.nanoTime();
+			double rate = (receivedCount - reportedReceived) * 1e9 / Math.max(1, now - reportedNanos);
+			reportedReceived = receivedCount;
+			reportedNanos = now;
+			return String.format(Locale.ROOT, "%d sent, %d received, %.0f msg/s, %d outstanding, %d duplicated",
+					sentCount, receivedCount, rate, outstanding(), duplicates);
+		}
+	}
+}
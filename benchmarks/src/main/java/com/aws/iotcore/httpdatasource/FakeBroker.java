@@ -0,0 +1,92 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.iotcore.httpdatasource;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.Token;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * An MQTT client that never connects: publishes complete latencyMicros after
+ * they are made, as if a local broker had acknowledged them.
+ */
+public class FakeBroker extends MqttAsyncClient {
+
+	private final long latencyMicros;
+	private final ScheduledExecutorService completer;
+	private final AtomicLong published = new AtomicLong();
+
+	/**
+	 * @param latencyMicros time from a publish to its completion, 0 to complete
+	 *                      before publish returns
+	 * @throws MqttException never, the client is not connected
+	 */
+	public FakeBroker(long latencyMicros) throws MqttException {
+		super("tcp://localhost:1883", "benchmark", new MemoryPersistence());
+		this.latencyMicros = latencyMicros;
+		this.completer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "fake-broker");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * @return publishes completed so far
+	 */
+	public long getPublished() {
+		return published.get();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public IMqttDeliveryToken publish(String topic, MqttMessage message) {
+		MqttDeliveryToken token = new MqttDeliveryToken(getClientId());
+		CompletableToken completion = new CompletableToken(getClientId());
+		token.internalTok = completion;
+		if (latencyMicros <= 0) {
+			complete(completion);
+		} else {
+			completer.schedule(() -> complete(completion), latencyMicros, TimeUnit.MICROSECONDS);
+		}
+		return token;
+	}
+
+	private void complete(CompletableToken completion) {
+		published.incrementAndGet();
+		completion.complete();
+	}
+
+	@Override
+	public void close() {
+		completer.shutdownNow();
+	}
+
+	// Token's completion methods are protected
+	private static class CompletableToken extends Token {
+		CompletableToken(String logContext) {
+			super(logContext);
+		}
+
+		void complete() {
+			markComplete(null, null);
+			notifyComplete();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.iotcore.httpdatasource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * An HTTP request handed straight to a handler, without a server or socket, so
+ * only the handler's own work is measured.
+ */
+public class FakeHttpExchange extends HttpExchange {
+
+	private static final InetSocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 8080);
+
+	private final String method;
+	private final URI uri;
+	private final Headers requestHeaders = new Headers();
+	private final Headers responseHeaders = new Headers();
+	private final Map<String, Object> attributes = new HashMap<>();
+	private InputStream requestBody;
+	private OutputStream responseBody = new ByteArrayOutputStream();
+	private int responseCode = -1;
+
+	public FakeHttpExchange(String method, URI uri, byte[] body) {
+		this.method = method;
+		this.uri = uri;
+		this.requestBody = new ByteArrayInputStream(body);
+		requestHeaders.set("Content-length", Integer.toString(body.length));
+	}
+
+	@Override
+	public Headers getRequestHeaders() {
+		return requestHeaders;
+	}
+
+	@Override
+	public Headers getResponseHeaders() {
+		return responseHeaders;
+	}
+
+	@Override
+	public URI getRequestURI() {
+		return uri;
+	}
+
+	@Override
+	public String getRequestMethod() {
+		return method;
+	}
+
+	@Override
+	public HttpContext getHttpContext() {
+		return null;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public InputStream getRequestBody() {
+		return requestBody;
+	}
+
+	@Override
+	public OutputStream getResponseBody() {
+		return responseBody;
+	}
+
+	@Override
+	public void sendResponseHeaders(int rCode, long responseLength) {
+		responseCode = rCode;
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		return ADDRESS;
+	}
+
+	@Override
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return ADDRESS;
+	}
+
+	@Override
+	public String getProtocol() {
+		return "HTTP/1.1";
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		attributes.put(name, value);
+	}
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o) {
+		if (i != null) {
+			requestBody = i;
+		}
+		if (o != null) {
+			responseBody = o;
+		}
+	}
+
+	@Override
+	public HttpPrincipal getPrincipal() {
+		return null;
+	}
+}
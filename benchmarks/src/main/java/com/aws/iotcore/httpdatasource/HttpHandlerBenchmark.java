@@ -0,0 +1,79 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.iotcore.httpdatasource;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One HTTP POST through Worker's request handler: routing, reading the body and
+ * publishing to a {@link FakeBroker} that completes after brokerLatencyMicros.
+ * With httpAck "sync" the handler waits for that completion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HttpHandlerBenchmark {
+
+	private static final URI REQUEST_URI = URI.create("/api/data");
+
+	@Param({ Worker.ACK_SYNC, Worker.ACK_ACCEPTED })
+	public String ack;
+
+	@Param({ "0", "500" })
+	public long brokerLatencyMicros;
+
+	@Param({ "256", "4096" })
+	public int bodyBytes;
+
+	private FakeBroker broker;
+	private ReconnectManager reconnectManager;
+	private Worker.httpHandler handler;
+	private byte[] body;
+
+	@Setup(Level.Trial)
+	public void setUp() throws MqttException {
+		broker = new FakeBroker(brokerLatencyMicros);
+		reconnectManager = new ReconnectManager(broker, new MqttConnectOptions(), 1000, 60_000, 1000, () -> {
+		});
+		handler = new Worker.httpHandler(reconnectManager, new TopicRouter(null, "bench/data"),
+				new BodyReader(1024 * 1024, 16384, 16), Worker.ACK_ACCEPTED.equals(ack), 5000);
+		body = new byte[bodyBytes];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		reconnectManager.close();
+		broker.close();
+	}
+
+	@Benchmark
+	public int handle() throws IOException {
+		FakeHttpExchange exchange = new FakeHttpExchange("POST", REQUEST_URI, body);
+		handler.handle(exchange);
+		return exchange.getResponseCode();
+	}
+}
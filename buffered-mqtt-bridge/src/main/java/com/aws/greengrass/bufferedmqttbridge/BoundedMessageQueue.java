@@ -0,0 +1,264 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * In-memory FIFO message queue whose capacity can be changed while it is in
+ * use, so a configuration update can resize the buffer without losing what is
+ * queued. Otherwise it behaves like an ArrayBlockingQueue.
+ *
+ * Iterators work on a snapshot; use {@link #remove(Object)} to remove a message
+ * found while iterating.
+ */
+public class BoundedMessageQueue extends AbstractQueue<MessageObject> implements BlockingQueue<MessageObject> {
+
+	private final Queue<MessageObject> messages;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private int capacity;
+
+	public BoundedMessageQueue(int capacity) {
+		this(capacity, new ArrayDeque<>());
+	}
+
+	/**
+	 * @param messages holds the queued messages and decides the order they are
+	 *                 taken in; only used under the queue's lock
+	 */
+	protected BoundedMessageQueue(int capacity, Queue<MessageObject> messages) {
+		this.capacity = Math.max(1, capacity);
+		this.messages = messages;
+	}
+
+	/**
+	 * Change the capacity. Nothing already queued is dropped; after shrinking,
+	 * offers fail until the queue has drained below the new capacity.
+	 *
+	 * @param capacity the new capacity
+	 */
+	public void setCapacity(int capacity) {
+		lock.lock();
+		try {
+			this.capacity = Math.max(1, capacity);
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		lock.lock();
+		try {
+			return capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(MessageObject messageObject) {
+		lock.lock();
+		try {
+			return enqueue(messageObject);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(MessageObject messageObject) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (!enqueue(messageObject)) {
+				notFull.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(MessageObject messageObject, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (!enqueue(messageObject)) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public MessageObject poll() {
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public MessageObject take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (messages.isEmpty()) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public MessageObject poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (messages.isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public MessageObject peek() {
+		lock.lock();
+		try {
+			return messages.peek();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		lock.lock();
+		try {
+			if (messages.remove(o)) {
+				notFull.signal();
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return messages.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return Math.max(0, capacity - messages.size());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super MessageObject> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super MessageObject> c, int maxElements) {
+		lock.lock();
+		try {
+			int n = 0;
+			while (n < maxElements && !messages.isEmpty()) {
+				c.add(dequeue());
+				n++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Iterator<MessageObject> iterator() {
+		lock.lock();
+		try {
+			return new ArrayList<>(messages).iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove a message chosen by a subclass, under the queue's lock.
+	 *
+	 * @param chooser removes and returns one of the queued messages, or null
+	 * @return the removed message, or null
+	 */
+	protected MessageObject removeChosen(Function<Queue<MessageObject>, MessageObject> chooser) {
+		lock.lock();
+		try {
+			MessageObject messageObject = chooser.apply(messages);
+			if (messageObject != null) {
+				notFull.signal();
+			}
+			return messageObject;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Caller must hold the lock
+	private boolean enqueue(MessageObject messageObject) {
+		if (messages.size() >= capacity) {
+			return false;
+		}
+		messages.add(messageObject);
+		notEmpty.signal();
+		return true;
+	}
+
+	// Caller must hold the lock
+	private MessageObject dequeue() {
+		MessageObject messageObject = messages.poll();
+		if (messageObject != null) {
+			notFull.signal();
+		}
+		return messageObject;
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.aws.greengrass.componentcommon.Log;
+
+/**
+ * Forwards messages from IoT Core to the local broker without blocking the IPC
+ * event-stream thread. {@link #forward(String, byte[])} only adds to a bounded
+ * queue (dropping the oldest message when full); a dedicated thread drains it
+ * with up to maxInFlight asynchronous publishes outstanding at once.
+ *
+ * While the local broker is unreachable the queue holds messages until
+ * {@link #resume()} is called after reconnecting. A publish that fails while
+ * connected is put back at the head of the queue, and forwarding pauses for a
+ * jittered exponential backoff, as the ReconnectManager uses, before it is
+ * tried again; after maxAttempts such failures the message is given up. With
+ * more than one publish outstanding, a retried message can reach the broker
+ * after later ones.
+ */
+public class CloudForwarder implements Closeable {
+
+	private static final Log LOG = Log.get("CloudForwarder");
+	private static final Log.Tally FORWARDED = LOG.tally("messages forwarded from IoT Core to the local broker");
+
+	private final MqttAsyncClient mqttClient;
+	private final LinkedBlockingDeque<Forward> queue;
+	private final int maxInFlight;
+	private final Semaphore window;
+	private final ExecutorService executor;
+	private final Object connected = new Object();
+	private final long minDelayMs;
+	private final long maxDelayMs;
+	private final int maxAttempts;
+	// Failed publishes in a row, for the backoff; a success starts it over
+	private final AtomicInteger failures = new AtomicInteger();
+	// No publish before this System.nanoTime(), while backing off
+	private volatile long retryAtNanos;
+
+	private final LongAdder received = new LongAdder();
+	private final LongAdder forwarded = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder abandoned = new LongAdder();
+
+	/**
+	 * @param minDelayMs  longest wait after the first failed publish; each
+	 *                    further failure in a row doubles it
+	 * @param maxDelayMs  longest wait after any failed publish
+	 * @param maxAttempts publishes of one message before it is given up
+	 */
+	public CloudForwarder(MqttAsyncClient mqttClient, int queueSize, int maxInFlight, long minDelayMs,
+			long maxDelayMs, int maxAttempts) {
+		this.mqttClient = mqttClient;
+		this.minDelayMs = Math.max(1, minDelayMs);
+		this.maxDelayMs = Math.max(this.minDelayMs, maxDelayMs);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.queue = new LinkedBlockingDeque<>(Math.max(1, queueSize));
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.window = new Semaphore(this.maxInFlight);
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "cloud-forwarder");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public void start() {
+		executor.execute(this::drain);
+	}
+
+	/**
+	 * Queue a message for the local broker. Never blocks.
+	 *
+	 * @param topic   local topic
+	 * @param payload message payload
+	 */
+	public void forward(String topic, byte[] payload) {
+		received.increment();
+		Forward forward = new Forward(topic, new MqttMessage(payload));
+		while (!queue.offerLast(forward)) {
+			if (queue.pollFirst() != null) {
+				dropped.increment();
+			}
+		}
+	}
+
+	/**
+	 * Wake the forwarding thread after the local connection is re-established.
+	 */
+	public void resume() {
+		synchronized (connected) {
+			// The failures were most likely the lost connection
+			failures.set(0);
+			retryAtNanos = 0;
+			connected.notifyAll();
+		}
+	}
+
+	public int getQueued() {
+		return queue.size();
+	}
+
+	public int getInFlight() {
+		return maxInFlight - window.availablePermits();
+	}
+
+	public long getReceived() {
+		return received.sum();
+	}
+
+	public long getForwarded() {
+		return forwarded.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	public long getAbandoned() {
+		return abandoned.sum();
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private void drain() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				awaitRetry();
+				Forward forward = queue.takeFirst();
+				window.acquire();
+				try {
+					mqttClient.publish(forward.topic, forward.message, null, new IMqttActionListener() {
+						@Override
+						public void onSuccess(IMqttToken token) {
+							window.release();
+							failures.set(0);
+							forwarded.increment();
+							FORWARDED.increment();
+						}
+
+						@Override
+						public void onFailure(IMqttToken token, Throwable exception) {
+							window.release();
+							failed.increment();
+							retry(forward);
+						}
+					});
+				} catch (MqttException e) {
+					// Refused by the client, for example while disconnected
+					window.release();
+					retry(forward);
+					awaitConnection();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Application is exiting, time to get out.
+			LOG.info("CloudForwarder InterruptedException: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Put a failed message back at the head of the queue. While disconnected it
+	 * just waits for the reconnect; otherwise the failure counts against the
+	 * message and pauses forwarding for the backoff.
+	 */
+	private void retry(Forward forward) {
+		if (!mqttClient.isConnected()) {
+			requeue(forward);
+			return;
+		}
+		if (++forward.attempts >= maxAttempts) {
+			abandoned.increment();
+			LOG.warn("Giving up on a message for local topic {} after {} failed publishes", forward.topic,
+					forward.attempts);
+		} else {
+			requeue(forward);
+		}
+		long ceiling = Math.min(maxDelayMs, minDelayMs << Math.min(failures.getAndIncrement(), 30));
+		// Equal jitter: half the delay is fixed, half is random
+		long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+		retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+	}
+
+	private void requeue(Forward forward) {
+		if (!queue.offerFirst(forward)) {
+			dropped.increment();
+		}
+	}
+
+	private void awaitRetry() throws InterruptedException {
+		synchronized (connected) {
+			long remaining;
+			while ((remaining = retryAtNanos - System.nanoTime()) > 0) {
+				TimeUnit.NANOSECONDS.timedWait(connected, remaining);
+			}
+		}
+	}
+
+	private void awaitConnection() throws InterruptedException {
+		synchronized (connected) {
+			while (!mqttClient.isConnected()) {
+				connected.wait(TimeUnit.SECONDS.toMillis(1));
+			}
+		}
+	}
+
+	private static class Forward {
+		private final String topic;
+		private final MqttMessage message;
+		// Failed publishes while connected, only touched by one thread at a time
+		private int attempts;
+
+		Forward(String topic, MqttMessage message) {
+			this.topic = topic;
+			this.message = message;
+		}
+	}
+}
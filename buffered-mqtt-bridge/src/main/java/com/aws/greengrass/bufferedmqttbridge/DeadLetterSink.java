@@ -0,0 +1,169 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+
+/**
+ * Where messages go that IoT Core will never accept, so they stop holding up
+ * the queue. Each one is logged and counted, and written as one line of JSON
+ * to the local broker on deadLetterTopic, to the file deadLetterFile, or both:
+ *
+ * <pre>
+ * {"time":"...","topic":"...","qos":1,"error":"...","payload":"&lt;base64&gt;"}
+ * </pre>
+ *
+ * The file stops growing at maxFileBytes; later dead letters are only logged.
+ */
+public class DeadLetterSink implements Closeable {
+
+	private static final Log LOG = Log.get("DeadLetterSink");
+	private static final LongAdder DEAD_LETTERS = Metrics.registry().counter("bridge_dead_letters_total",
+			"Messages IoT Core rejected for good, passed to the dead-letter sink");
+
+	private final String topic;
+	private final Path file;
+	private final long maxFileBytes;
+	private volatile MqttAsyncClient mqttClient;
+	private OutputStream out;
+	private long fileBytes;
+
+	/**
+	 * @param topic        local topic for dead letters, null for none
+	 * @param file         file to append dead letters to, null for none
+	 * @param maxFileBytes size at which the file stops growing
+	 */
+	public DeadLetterSink(String topic, String file, long maxFileBytes) {
+		this.topic = topic;
+		this.file = file == null ? null : Paths.get(file);
+		this.maxFileBytes = maxFileBytes;
+	}
+
+	/**
+	 * Set the client for the local broker, once it exists. Until then, dead
+	 * letters are not published.
+	 */
+	public void setMqttClient(MqttAsyncClient mqttClient) {
+		this.mqttClient = mqttClient;
+	}
+
+	/**
+	 * Record a message that failed for good. Never throws.
+	 *
+	 * @param messageObject the message
+	 * @param cause         why IoT Core refused it
+	 */
+	public void accept(MessageObject messageObject, Throwable cause) {
+		DEAD_LETTERS.increment();
+		LOG.error("Dead letter on {}: {}", messageObject.getTopic(), describe(cause));
+		if (topic == null && file == null) {
+			return;
+		}
+		byte[] record = toJson(messageObject, cause).getBytes(StandardCharsets.UTF_8);
+		if (topic != null) {
+			publish(record);
+		}
+		if (file != null) {
+			append(record);
+		}
+	}
+
+	private void publish(byte[] record) {
+		MqttAsyncClient client = mqttClient;
+		try {
+			if (client != null && client.isConnected()) {
+				MqttMessage message = new MqttMessage(record);
+				message.setQos(1);
+				client.publish(topic, message);
+				return;
+			}
+			LOG.warn("Dead letter not published to {}, local broker not connected", topic);
+		} catch (MqttException | RuntimeException e) {
+			LOG.warn("Dead letter publish error: {}", e.getMessage());
+		}
+	}
+
+	private synchronized void append(byte[] record) {
+		try {
+			if (out == null) {
+				if (file.getParent() != null) {
+					Files.createDirectories(file.getParent());
+				}
+				out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				fileBytes = Files.size(file);
+			}
+			if (fileBytes + record.length + 1 > maxFileBytes) {
+				LOG.warn("Dead letter file {} is full, dead letter not written", file);
+				return;
+			}
+			out.write(record);
+			out.write('\n');
+			out.flush();
+			fileBytes += record.length + 1;
+		} catch (IOException e) {
+			LOG.warn("Dead letter write error: {}", e.getMessage());
+		}
+	}
+
+	static String toJson(MessageObject messageObject, Throwable cause) {
+		StringBuilder json = new StringBuilder(64 + messageObject.getMessage().length * 4 / 3);
+		json.append("{\"time\":\"").append(Instant.now()).append("\",\"topic\":");
+		appendString(json, messageObject.getTopic());
+		json.append(",\"qos\":").append(messageObject.getQos()).append(",\"error\":");
+		appendString(json, describe(cause));
+		json.append(",\"payload\":\"").append(Base64.getEncoder().encodeToString(messageObject.getMessage()))
+				.append("\"}");
+		return json.toString();
+	}
+
+	private static String describe(Throwable cause) {
+		return cause.getClass().getSimpleName() + ": " + cause.getMessage();
+	}
+
+	private static void appendString(StringBuilder json, String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+
+	@Override
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOG.warn("Failed to close the dead letter file: {}", e.getMessage());
+			}
+			out = null;
+		}
+	}
+}
@@ -8,6 +8,7 @@ package com.aws.greengrass.bufferedmqttbridge;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
 
 import lombok.NonNull;
 import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPC;
@@ -42,17 +43,34 @@ public final class IPCUtil {
 	 */
 	public static EventStreamRPCConnection getEventStreamRpcConnection()
 			throws ExecutionException, InterruptedException {
+		return getEventStreamRpcConnection(errorCode -> {
+		});
+	}
+
+	/**
+	 * Get a connection to the Greengrass IPC server, and hear when it drops.
+	 *
+	 * @param onDisconnect called with the CRT error code when an established
+	 *                     connection is lost, on an IPC event thread
+	 * @return connection; if connecting fails, the half-open connection is
+	 *         closed before this throws, so retrying does not leak it
+	 * @throws ExecutionException   if connecting fails
+	 * @throws InterruptedException if connecting is interrupted
+	 */
+	public static EventStreamRPCConnection getEventStreamRpcConnection(IntConsumer onDisconnect)
+			throws ExecutionException, InterruptedException {
 		String ipcServerSocketPath = System.getenv("AWS_GG_NUCLEUS_DOMAIN_SOCKET_FILEPATH_FOR_COMPONENT");
 		String authToken = System.getenv("SVCUID");
 		SocketOptions socketOptions = IPCUtil.getSocketOptionsForIPC();
 
-		return connectToGGCOverEventStreamIPC(socketOptions, authToken, ipcServerSocketPath);
+		return connectToGGCOverEventStreamIPC(socketOptions, authToken, ipcServerSocketPath, onDisconnect);
 	}
 
 	// removed dependency on kernel, as it is only being used to pull
 	// ipcServerSocketPath
 	private static EventStreamRPCConnection connectToGGCOverEventStreamIPC(SocketOptions socketOptions,
-			String authToken, String ipcServerSocketPath) throws ExecutionException, InterruptedException {
+			String authToken, String ipcServerSocketPath, IntConsumer onDisconnect)
+			throws ExecutionException, InterruptedException {
 
 		try (EventLoopGroup elGroup = new EventLoopGroup(1);
 				ClientBootstrap clientBootstrap = new ClientBootstrap(elGroup, null)) {
@@ -62,36 +80,41 @@ public final class IPCUtil {
 					GreengrassConnectMessageSupplier.connectMessageSupplier(authToken));
 			final CompletableFuture<Void> connected = new CompletableFuture<>();
 			final EventStreamRPCConnection connection = new EventStreamRPCConnection(config);
-			final boolean[] disconnected = { false };
-			final int[] disconnectedCode = { -1 };
 			// this is a bit cumbersome but does not prevent a convenience wrapper from
 			// exposing a sync
 			// connect() or a connect() that returns a CompletableFuture that errors
 			// this could be wrapped by utility methods to provide a more
-			connection.connect(new EventStreamRPCConnection.LifecycleHandler() {
-				// only called on successful connection.
-				// That is full on Connect -> ConnectAck(ConnectionAccepted=true)
-				@Override
-				public void onConnect() {
-					connected.complete(null);
-				}
-
-				@Override
-				public void onDisconnect(int errorCode) {
-					disconnected[0] = true;
-					disconnectedCode[0] = errorCode;
-				}
-
-				// This on error is for any errors that is connection level, including problems
-				// during connect()
-				@Override
-				public boolean onError(Throwable t) {
-					connected.completeExceptionally(t);
-					return true; // hints at handler to disconnect due to this error
-				}
-			});
-			connected.get();
-			return connection;
+			try {
+				connection.connect(new EventStreamRPCConnection.LifecycleHandler() {
+					// only called on successful connection.
+					// That is full on Connect -> ConnectAck(ConnectionAccepted=true)
+					@Override
+					public void onConnect() {
+						connected.complete(null);
+					}
+
+					@Override
+					public void onDisconnect(int errorCode) {
+						// A failed connect is reported through onError instead
+						if (connected.isDone() && !connected.isCompletedExceptionally()) {
+							onDisconnect.accept(errorCode);
+						}
+					}
+
+					// This on error is for any errors that is connection level, including problems
+					// during connect()
+					@Override
+					public boolean onError(Throwable t) {
+						connected.completeExceptionally(t);
+						return true; // hints at handler to disconnect due to this error
+					}
+				});
+				connected.get();
+				return connection;
+			} catch (ExecutionException | InterruptedException | RuntimeException e) {
+				connection.close();
+				throw e;
+			}
 		}
 	}
 
@@ -5,73 +5,391 @@
 
 package com.aws.greengrass.bufferedmqttbridge;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.Optional;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
 
 import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPC;
+import software.amazon.awssdk.aws.greengrass.model.InvalidArgumentsError;
 import software.amazon.awssdk.aws.greengrass.model.PublishToIoTCoreRequest;
+import software.amazon.awssdk.aws.greengrass.model.PublishToIoTCoreResponse;
+import software.amazon.awssdk.aws.greengrass.model.UnauthorizedError;
+import software.amazon.awssdk.eventstreamrpc.SerializationException;
+import software.amazon.awssdk.eventstreamrpc.model.AccessDeniedException;
+import software.amazon.awssdk.eventstreamrpc.model.ValidationException;
 
 public class IoTCorePublisher extends Thread {
 
+	private static final Log LOG = Log.get("IoTCorePublisher");
+
+	static final long DEFAULT_RETRY_MIN_DELAY_MS = 1000;
+	static final long DEFAULT_RETRY_MAX_DELAY_MS = 60_000;
+	private static final Log.Tally FORWARDED = LOG.tally("messages forwarded to IoT Core");
+	private static final LongAdder PUBLISHED = Metrics.registry().counter("bridge_published_total",
+			"Messages acknowledged by IoT Core");
+	private static final LongAdder FAILURES = Metrics.registry().counter("bridge_publish_failures_total",
+			"Failed publishes to IoT Core");
+	private static final LongAdder RETRIES = Metrics.registry().counter("bridge_publish_retries_total",
+			"Publishes to IoT Core that were retries of a failed publish");
+	private static final Metrics.Histogram LATENCY = Metrics.registry().histogram("bridge_end_to_end_latency",
+			"Time from a message arriving from the local broker to its IoT Core acknowledgement, microseconds");
+	private static final Metrics.Histogram PUBLISH_LATENCY = Metrics.registry().histogram("bridge_publish_latency",
+			"Time from sending a publish to IoT Core to its acknowledgement, microseconds");
+
 	private final GreengrassCoreIPC ipcClient;
-	private ArrayBlockingQueue<MessageObject> messageQueue;
+	private BlockingQueue<MessageObject> messageQueue;
+	private final int maxInFlight;
+	private final Consumer<MessageObject> acknowledger;
+	private final long retryMinDelayMs;
+	private final long retryMaxDelayMs;
+	private final DeadLetterSink deadLetters;
+	private final PublishRateLimiter rateLimiter;
+	private final PayloadCompressor compressor;
+	private final boolean strictTopicOrder;
+
+	// Publishes that have been sent to IPC but not yet acknowledged, oldest first
+	private final Deque<InFlight> window = new ArrayDeque<>();
+	// Messages whose publish failed, oldest first. These are re-sent one at a
+	// time before anything new is taken from the queue.
+	private final Deque<MessageObject> retries = new ArrayDeque<>();
+	// With strictTopicOrder, the topics in the window, and a message taken from
+	// the queue that waits for the publish on its topic to complete
+	private final Set<String> topicsInFlight = new HashSet<>();
+	private MessageObject held;
+	// Newest message delivered while older ones were still waiting to be retried
+	private MessageObject deferredAck;
+	// Failed attempts since the last success, for the backoff
+	private int failures;
+	private volatile int inFlight;
+	// Set by retryNow() to cut a backoff short, guarded by resumeLock
+	private final Object resumeLock = new Object();
+	private boolean resumed;
+
+	public IoTCorePublisher(GreengrassCoreIPC ipcClient, BlockingQueue<MessageObject> messageQueue) {
+		this(ipcClient, messageQueue, 1);
+	}
+
+	public IoTCorePublisher(GreengrassCoreIPC ipcClient, BlockingQueue<MessageObject> messageQueue,
+			int maxInFlight) {
+		this(ipcClient, messageQueue, maxInFlight, acknowledgerFor(messageQueue));
+	}
+
+	/**
+	 * @param acknowledger called with delivered messages, in queue order; a call
+	 *                     covers every earlier message too
+	 */
+	public IoTCorePublisher(GreengrassCoreIPC ipcClient, BlockingQueue<MessageObject> messageQueue,
+			int maxInFlight, Consumer<MessageObject> acknowledger) {
+		this(ipcClient, messageQueue, maxInFlight, acknowledger, DEFAULT_RETRY_MIN_DELAY_MS,
+				DEFAULT_RETRY_MAX_DELAY_MS, new DeadLetterSink(null, null, 0), null, null, false);
+	}
 
-	public IoTCorePublisher(GreengrassCoreIPC ipcClient, ArrayBlockingQueue<MessageObject> messageQueue) {
+	/**
+	 * @param acknowledger    called with delivered messages, in queue order; a
+	 *                        call covers every earlier message too
+	 * @param retryMinDelayMs longest wait before the first retry; each further
+	 *                        failure doubles it
+	 * @param retryMaxDelayMs longest wait before any retry
+	 * @param deadLetters     receives messages that can never be published
+	 * @param rateLimiter     shapes publishes, null for no limit
+	 * @param compressor      compresses payloads, null for none
+	 * @param strictTopicOrder keep at most one publish per topic in flight, so
+	 *                        a topic stays in order even when a publish fails
+	 */
+	public IoTCorePublisher(GreengrassCoreIPC ipcClient, BlockingQueue<MessageObject> messageQueue,
+			int maxInFlight, Consumer<MessageObject> acknowledger, long retryMinDelayMs, long retryMaxDelayMs,
+			DeadLetterSink deadLetters, PublishRateLimiter rateLimiter, PayloadCompressor compressor,
+			boolean strictTopicOrder) {
 		this.ipcClient = ipcClient;
 		this.messageQueue = messageQueue;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.acknowledger = acknowledger;
+		this.retryMinDelayMs = Math.max(1, retryMinDelayMs);
+		this.retryMaxDelayMs = Math.max(this.retryMinDelayMs, retryMaxDelayMs);
+		this.deadLetters = deadLetters;
+		this.rateLimiter = rateLimiter;
+		this.compressor = compressor;
+		this.strictTopicOrder = strictTopicOrder;
+		Metrics.registry().gauge("bridge_publish_in_flight", "Publishes to IoT Core awaiting acknowledgement",
+				() -> inFlight);
+	}
+
+	/**
+	 * @return the acknowledger for messages taken from messageQueue: the queue's
+	 *         own when it is a {@link SpillingMessageQueue}, otherwise none
+	 */
+	public static Consumer<MessageObject> acknowledgerFor(BlockingQueue<MessageObject> messageQueue) {
+		if (messageQueue instanceof SpillingMessageQueue) {
+			return ((SpillingMessageQueue) messageQueue)::acknowledge;
+		}
+		return messageObject -> {
+		};
+	}
+
+	/**
+	 * @return publishes sent to IPC and not yet acknowledged
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Retry at once instead of waiting out the backoff, for example because the
+	 * IPC connection is back.
+	 */
+	public void retryNow() {
+		synchronized (resumeLock) {
+			resumed = true;
+			resumeLock.notifyAll();
+		}
 	}
 
 	/**
-	 * Subscribe to all cloud and local topics, then block until requested to
-	 * shutdown.
+	 * Drain the message queue to AWS IoT Core until the thread is interrupted.
 	 *
-	 * @throws ?? if ??
+	 * Up to maxInFlight publishes are kept outstanding at once, and their results
+	 * are collected in the order they were taken from the queue. When a publish
+	 * fails with an error that retrying can fix, such as throttling or a lost
+	 * connection, the remaining window is allowed to complete, and every failed
+	 * message is then re-sent one at a time, oldest first, until it succeeds,
+	 * with jittered exponential backoff between attempts, before anything more
+	 * is taken from the queue. No such message is skipped. A message refused for
+	 * good, being invalid or not authorized, goes to the dead-letter sink instead
+	 * and the queue moves on.
+	 *
+	 * Publishes in the window are not ordered against each other: a later one
+	 * may already have been delivered when an earlier one fails, and the retry
+	 * then lands after it. Only maxInFlight = 1, or strictTopicOrder, which
+	 * keeps at most one publish per topic in the window and holds the next
+	 * message on that topic back until it completes, delivers each topic in
+	 * order through failures.
+	 *
+	 * Delivered and dead-lettered messages are passed to the acknowledger (by default the queue's
+	 * own, when it is a {@link SpillingMessageQueue}), but never past a message
+	 * that is still being retried.
 	 */
 	public void run() {
 
-		MessageObject messageObject = null;
-		boolean isConnected = true;
-
 		try {
 
 			while (true) {
 
-				System.out.println("Publisher Queue Depth = " + String.valueOf(messageQueue.size()));
-
-				// Only get next message if we're connected, othewise continue to try to publish
-				// last message
-				// Our BlockingQueue waits here until a message becomes available
-				messageObject = isConnected ? messageQueue.take() : messageObject;
-				String topic = messageObject.getTopic();
-				int qos = messageObject.getQos();
-				byte[] message = messageObject.getMessage();
-
-				try {
-					// Forward message to AWS IoT Core
-					PublishToIoTCoreRequest request = new PublishToIoTCoreRequest();
-					request.setQos(IPCUtil.getQOSFromValue(qos));
-					request.setPayload(message);
-					request.setTopicName(topic);
-					ipcClient.publishToIoTCore(request, Optional.empty()).getResponse().get();
-
-					isConnected = true;
-				} catch (Exception e) {
-					// problem delivering message... wait 3 seconds, and retry
-					System.out.println("Publisher Exception: " + e.getMessage());
-
-					isConnected = false;
-					TimeUnit.SECONDS.sleep(3);
+				if (!retries.isEmpty()) {
+					retryOldest();
+					continue;
 				}
 
+				fillWindow();
+				completeOldest();
 			}
 
 		} catch (InterruptedException e) {
 			// Application is exiting, time to get out.
-			e.printStackTrace();
-			System.out.println("IoTCorePublisher InterruptedException: " + e.getMessage());
+			LOG.info("IoTCorePublisher InterruptedException: {}", e.getMessage());
 		}
 
 	}
 
+	/**
+	 * Send queued messages until the window is full, or until the next message's
+	 * topic is already in flight with strictTopicOrder. Blocks for the next
+	 * message only when nothing is in flight, otherwise sends only what is
+	 * already queued.
+	 */
+	private void fillWindow() throws InterruptedException {
+		while (window.size() < maxInFlight) {
+			MessageObject messageObject = held;
+			if (messageObject == null) {
+				// Our BlockingQueue waits here until a message becomes available
+				messageObject = window.isEmpty() ? messageQueue.take() : messageQueue.poll();
+				if (messageObject == null) {
+					return;
+				}
+			}
+			if (strictTopicOrder && !topicsInFlight.add(messageObject.getTopic())) {
+				// Sent once the publish ahead of it on its topic completes
+				held = messageObject;
+				return;
+			}
+			held = null;
+			window.add(new InFlight(messageObject, publish(messageObject)));
+			inFlight = window.size();
+		}
+	}
+
+	/**
+	 * Wait for the oldest outstanding publish. On failure, let the rest of the
+	 * window settle and move every failed message to the retry list in order.
+	 */
+	private void completeOldest() throws InterruptedException {
+		InFlight oldest = window.poll();
+		if (oldest == null) {
+			return;
+		}
+		topicsInFlight.remove(oldest.messageObject.getTopic());
+		inFlight = window.size() + 1;
+		if (succeeded(oldest)) {
+			delivered(oldest.messageObject);
+			return;
+		}
+		if (isTerminal(oldest.failure)) {
+			deadLetters.accept(oldest.messageObject, oldest.failure);
+			delivered(oldest.messageObject);
+			return;
+		}
+
+		retries.add(oldest.messageObject);
+		while (!window.isEmpty()) {
+			InFlight next = window.poll();
+			topicsInFlight.remove(next.messageObject.getTopic());
+			if (succeeded(next)) {
+				deferredAck = next.messageObject;
+			} else if (isTerminal(next.failure)) {
+				deadLetters.accept(next.messageObject, next.failure);
+				deferredAck = next.messageObject;
+			} else {
+				retries.add(next.messageObject);
+			}
+		}
+		inFlight = 0;
+		backoff();
+	}
+
+	private void retryOldest() throws InterruptedException {
+		MessageObject messageObject = retries.peek();
+		RETRIES.increment();
+		inFlight = 1;
+		InFlight attempt = new InFlight(messageObject, publish(messageObject));
+		boolean succeeded = succeeded(attempt);
+		inFlight = 0;
+		if (succeeded || isTerminal(attempt.failure)) {
+			retries.poll();
+			if (!succeeded) {
+				deadLetters.accept(messageObject, attempt.failure);
+			}
+			delivered(messageObject);
+		} else {
+			backoff();
+		}
+	}
+
+	// Equal jitter, as for reconnects: half the delay is fixed, half is random
+	private void backoff() throws InterruptedException {
+		long ceiling = Math.min(retryMaxDelayMs, retryMinDelayMs << Math.min(failures++, 30));
+		long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		synchronized (resumeLock) {
+			long remaining = delay;
+			while (!resumed && remaining > 0) {
+				resumeLock.wait(remaining);
+				remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			}
+			if (resumed) {
+				// The cause has cleared, so start the backoff over too
+				resumed = false;
+				failures = 0;
+			}
+		}
+	}
+
+	/**
+	 * Failures that will happen again however often the message is sent, because
+	 * the request itself is invalid or not allowed. Anything else, such as
+	 * throttling or a lost IPC connection, is worth retrying.
+	 */
+	static boolean isTerminal(Throwable cause) {
+		return cause instanceof InvalidArgumentsError || cause instanceof UnauthorizedError
+				|| cause instanceof ValidationException || cause instanceof AccessDeniedException
+				|| cause instanceof SerializationException || cause instanceof IllegalArgumentException;
+	}
+
+	private void delivered(MessageObject messageObject) {
+		if (!retries.isEmpty()) {
+			if (deferredAck == null) {
+				deferredAck = messageObject;
+			}
+			return;
+		}
+		acknowledger.accept(messageObject);
+		if (deferredAck != null) {
+			acknowledger.accept(deferredAck);
+			deferredAck = null;
+		}
+	}
+
+	private boolean succeeded(InFlight inFlight) throws InterruptedException {
+		try {
+			inFlight.response.get();
+		} catch (ExecutionException e) {
+			FAILURES.increment();
+			Throwable cause = e.getCause() == null ? e : e.getCause();
+			while (cause instanceof CompletionException && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			inFlight.failure = cause;
+			LOG.warn("Publisher Exception: {}", cause.getMessage());
+			if (rateLimiter != null) {
+				rateLimiter.completed(inFlight.messageObject.getTopic(), cause);
+			}
+			return false;
+		}
+		failures = 0;
+		if (rateLimiter != null) {
+			rateLimiter.completed(inFlight.messageObject.getTopic(), null);
+		}
+		PUBLISHED.increment();
+		FORWARDED.increment();
+		PUBLISH_LATENCY.recordSince(inFlight.sentNanos);
+		if (inFlight.messageObject.getArrivalNanos() != 0) {
+			LATENCY.recordSince(inFlight.messageObject.getArrivalNanos());
+		}
+		return true;
+	}
+
+	private CompletableFuture<PublishToIoTCoreResponse> publish(MessageObject messageObject)
+			throws InterruptedException {
+		if (rateLimiter != null) {
+			rateLimiter.acquire(messageObject.getTopic());
+		}
+		try {
+			// Compressed on each attempt, so the queued message stays as it arrived
+			MessageObject published = compressor == null ? messageObject : compressor.compress(messageObject);
+			// Forward message to AWS IoT Core
+			PublishToIoTCoreRequest request = new PublishToIoTCoreRequest();
+			request.setQos(IPCUtil.getQOSFromValue(published.getQos()));
+			request.setPayload(published.getMessage());
+			request.setTopicName(published.getTopic());
+			return ipcClient.publishToIoTCore(request, Optional.empty()).getResponse();
+		} catch (RuntimeException e) {
+			CompletableFuture<PublishToIoTCoreResponse> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	private static class InFlight {
+		private final MessageObject messageObject;
+		private final CompletableFuture<PublishToIoTCoreResponse> response;
+		private final long sentNanos = System.nanoTime();
+		private Throwable failure;
+
+		InFlight(MessageObject messageObject, CompletableFuture<PublishToIoTCoreResponse> response) {
+			this.messageObject = messageObject;
+			this.response = response;
+		}
+	}
+
 }
@@ -4,27 +4,90 @@
  */
 package com.aws.greengrass.bufferedmqttbridge;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
 
 import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPC;
-import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPCClient;
 import software.amazon.awssdk.aws.greengrass.model.GetConfigurationRequest;
 import software.amazon.awssdk.aws.greengrass.model.GetConfigurationResponse;
 import software.amazon.awssdk.aws.greengrass.model.ReportedLifecycleState;
-import software.amazon.awssdk.eventstreamrpc.EventStreamRPCConnection;
 
 public class Main {
 
-    private static EventStreamRPCConnection connection;
+    private static final Log LOG = Log.get("Main");
+
+    private static ManagedIPCConnection ipcConnection;
     private static GreengrassCoreIPC client;
-    private static IoTCorePublisher publisher;
+    private static Thread publisher;
     private static Subscriber subscriber;
+    private static BlockingQueue<MessageObject> messageQueue;
+    private static MessageBatcher batcher;
+    private static ConfigurationWatcher watcher;
+    private static DeadLetterSink deadLetters;
+    private static PublishRateLimiter rateLimiter;
+    private static Map<String, Object> connectionInfo;
+    private static List<String> batchTopics;
+    private static List<String> compressTopics;
+    private static List<Object> priorityClasses;
+    private static Object topicRateLimits;
 
+    protected static final String MAPPINGS = "mappings";
+    protected static final String BATCH_TOPICS = "batchTopics";
+    protected static final String COMPRESS_TOPICS = "compressTopics";
     protected static final String CONNECTION_INFO = "connectionInfo";
     protected static final String QUEUE_DEPTH = "queueDepth";
+    protected static final String QUEUE_BYTES = "queueBytes";
+    protected static final String SCHEDULER = "scheduler";
+    protected static final String PRIORITY_WEIGHTS = "priorityWeights";
+    protected static final String MAX_IN_FLIGHT = "maxInFlight";
+    protected static final String STRICT_TOPIC_ORDER = "strictTopicOrder";
+    protected static final String PUBLISH_LANES = "publishLanes";
+    protected static final String LANE_QUEUE_DEPTH = "laneQueueDepth";
+    protected static final String RETRY_MIN_DELAY_MS = "retryMinDelayMs";
+    protected static final String RETRY_MAX_DELAY_MS = "retryMaxDelayMs";
+    protected static final String DEAD_LETTER_TOPIC = "deadLetterTopic";
+    protected static final String DEAD_LETTER_FILE = "deadLetterFile";
+    protected static final String DEAD_LETTER_MAX_BYTES = "deadLetterMaxBytes";
+    protected static final String PUBLISH_RATE_LIMIT = "publishRateLimit";
+    protected static final String PUBLISH_BURST = "publishBurst";
+    protected static final String RATE_LIMIT_INCREASE = "rateLimitIncrease";
+    protected static final String TOPIC_RATE_LIMITS = "topicRateLimits";
+    protected static final String SPILL_DIRECTORY = "spillDirectory";
+    protected static final String SPILL_MAX_BYTES = "spillMaxBytes";
+    protected static final String SPILL_SEGMENT_BYTES = "spillSegmentBytes";
+    protected static final String SPILL_SYNC_INTERVAL_MS = "spillSyncIntervalMs";
+    protected static final String SPILL_SYNC_BATCH = "spillSyncBatch";
+    protected static final String BATCH_FORMAT = "batchFormat";
+    protected static final String BATCH_MAX_COUNT = "batchMaxCount";
+    protected static final String BATCH_MAX_BYTES = "batchMaxBytes";
+    protected static final String BATCH_MAX_LINGER_MS = "batchMaxLingerMs";
+    protected static final String COMPRESSION = "compression";
+    protected static final String COMPRESSION_MIN_BYTES = "compressionMinBytes";
+    protected static final String COMPRESSION_LEVEL = "compressionLevel";
+    protected static final String COMPRESSION_DICTIONARY = "compressionDictionary";
+
+    // Settings that are only read at startup
+    private static final List<String> RESTART_SETTINGS = Arrays.asList(QUEUE_BYTES, SCHEDULER, MAX_IN_FLIGHT,
+            STRICT_TOPIC_ORDER, PUBLISH_LANES, LANE_QUEUE_DEPTH, RETRY_MIN_DELAY_MS, RETRY_MAX_DELAY_MS,
+            DEAD_LETTER_TOPIC, DEAD_LETTER_FILE, DEAD_LETTER_MAX_BYTES, SPILL_DIRECTORY,
+            SPILL_SEGMENT_BYTES, SPILL_SYNC_INTERVAL_MS, SPILL_SYNC_BATCH, BATCH_FORMAT, BATCH_MAX_COUNT,
+            BATCH_MAX_BYTES, BATCH_MAX_LINGER_MS, COMPRESSION, COMPRESSION_MIN_BYTES, COMPRESSION_LEVEL,
+            COMPRESSION_DICTIONARY);
+    private static final long RECONFIGURE_DEBOUNCE_MS = 1000;
 
     /**
      * Run.
@@ -33,43 +96,282 @@ public class Main {
      */
     public static void main(String[] args) {
         try {
+            // Reconnects by itself if the nucleus drops the connection
+            ipcConnection = new ManagedIPCConnection();
+            ipcConnection.connect();
+            run(ipcConnection.getClient());
+        } catch (Throwable e) {
+            LOG.error("Bridge failed", e);
+            System.exit(1);
+        } finally {
+            if (ipcConnection != null) {
+                ipcConnection.close();
+            }
+        }
+    }
 
-            connection = IPCUtil.getEventStreamRpcConnection();
-            client = new GreengrassCoreIPCClient(connection);
-
+    /**
+     * Start the bridge on an IPC client and block until the calling thread is
+     * interrupted. The soak test in the benchmarks module calls this with a fake
+     * client instead of a Greengrass connection.
+     *
+     * @param ipcClient Greengrass IPC client
+     * @throws Exception if the bridge can not be started
+     */
+    @SuppressWarnings("unchecked")
+    static void run(GreengrassCoreIPC ipcClient) throws Exception {
+        client = ipcClient;
+        try {
             // Get Queue Size
             GetConfigurationRequest getConfigurationRequest = new GetConfigurationRequest();
             getConfigurationRequest.setKeyPath(Arrays.asList(CONNECTION_INFO));
             GetConfigurationResponse response = client.getConfiguration(getConfigurationRequest, Optional.empty()).getResponse().get();
-            Double queueDepth = (Double) response.getValue().get(QUEUE_DEPTH);
+            connectionInfo = response.getValue();
+            Log.configure(connectionInfo);
+            int queueDepth = intValue(connectionInfo, QUEUE_DEPTH, 500);
+            String spillDirectory = (String) connectionInfo.get(SPILL_DIRECTORY);
+            String scheduler = (String) connectionInfo.get(SCHEDULER);
+            Object queueBytes = connectionInfo.get(QUEUE_BYTES);
 
-            System.out.println("Starting Buffered MQTT Broker. Queue buffer size = " + Integer.valueOf(queueDepth.intValue()));
-            ArrayBlockingQueue<MessageObject> messageQueue = new ArrayBlockingQueue<>(queueDepth.intValue());
+            getConfigurationRequest.setKeyPath(Arrays.asList(MAPPINGS));
+            Map<String, Object> mappings = client.getConfiguration(getConfigurationRequest, Optional.empty())
+                    .getResponse().get().getValue();
+
+            LOG.info("Starting Buffered MQTT Broker. Queue buffer size = {}", queueDepth);
+            if (spillDirectory == null && PriorityMessageQueue.isPriority(scheduler)) {
+                // Queued messages are taken by priority class rather than in arrival order
+                LOG.info("Scheduling queued messages by priority, {}", scheduler);
+                priorityClasses = Arrays.asList(mappings.get(Subscriber.TOPIC_PRIORITIES),
+                        mappings.get(PRIORITY_WEIGHTS));
+                messageQueue = new PriorityMessageQueue(queueDepth, scheduler,
+                        (Map<String, Object>) mappings.get(Subscriber.TOPIC_PRIORITIES),
+                        (Map<String, Object>) mappings.get(PRIORITY_WEIGHTS));
+            } else if (spillDirectory == null && queueBytes != null) {
+                // Bounded by bytes, and kept off the Java heap
+                int capacityBytes = ((Number) queueBytes).intValue();
+                LOG.info("Queue buffer is {} bytes off-heap", capacityBytes);
+                messageQueue = new OffHeapMessageQueue(capacityBytes);
+            } else if (spillDirectory == null) {
+                messageQueue = new BoundedMessageQueue(queueDepth);
+            } else {
+                if (PriorityMessageQueue.isPriority(scheduler)) {
+                    LOG.warn("The spill log is FIFO, ignoring the {} scheduler", scheduler);
+                }
+                // Keep queueDepth messages in memory, spill the rest to disk
+                LOG.info("Spilling overflow to {}", spillDirectory);
+                messageQueue = new SpillingMessageQueue(Paths.get(spillDirectory), queueDepth,
+                        longValue(connectionInfo, SPILL_MAX_BYTES, 256L * 1024 * 1024),
+                        longValue(connectionInfo, SPILL_SEGMENT_BYTES, 16L * 1024 * 1024),
+                        longValue(connectionInfo, SPILL_SYNC_INTERVAL_MS, 1000),
+                        intValue(connectionInfo, SPILL_SYNC_BATCH, 256));
+            }
+
+            if (queueBytes != null && !(messageQueue instanceof OffHeapMessageQueue)) {
+                LOG.warn("{} only applies to the FIFO in-memory queue, ignoring it", QUEUE_BYTES);
+            }
+            Metrics.registry().gauge("bridge_queue_depth", "Messages in the message queue", messageQueue::size);
+            if (messageQueue instanceof OffHeapMessageQueue) {
+                Metrics.registry().gauge("bridge_queue_bytes", "Bytes of the off-heap message queue in use",
+                        ((OffHeapMessageQueue) messageQueue)::getUsedBytes);
+            }
+            if (messageQueue instanceof SpillingMessageQueue) {
+                Metrics.registry().gauge("bridge_spill_bytes", "Size of the spill log",
+                        ((SpillingMessageQueue) messageQueue)::getSpilledBytes);
+            }
+
+            int maxInFlight = intValue(connectionInfo, MAX_IN_FLIGHT, 1);
+            boolean strictTopicOrder = Boolean.TRUE.equals(connectionInfo.get(STRICT_TOPIC_ORDER));
+            Consumer<MessageObject> acknowledger = IoTCorePublisher.acknowledgerFor(messageQueue);
+
+            batchTopics = (List<String>) mappings.get(BATCH_TOPICS);
 
             // Publisher runs in its own thread
-            publisher = new IoTCorePublisher(client, messageQueue);
+            BlockingQueue<MessageObject> publishQueue = messageQueue;
+            if (batchTopics != null && !batchTopics.isEmpty()) {
+                // Batcher sits between the queue and the publisher, in its own thread
+                LOG.info("Batching messages on {}", batchTopics);
+                BlockingQueue<MessageObject> batchQueue = new ArrayBlockingQueue<>(Math.max(16, 2 * maxInFlight));
+                batcher = new MessageBatcher(messageQueue, batchQueue, batchTopics,
+                        (String) connectionInfo.get(BATCH_FORMAT),
+                        intValue(connectionInfo, BATCH_MAX_COUNT, 100),
+                        intValue(connectionInfo, BATCH_MAX_BYTES, 120_000),
+                        longValue(connectionInfo, BATCH_MAX_LINGER_MS, 100));
+                batcher.start();
+                publishQueue = batchQueue;
+            }
+            // Messages IoT Core refuses for good are set aside instead of retried
+            deadLetters = new DeadLetterSink((String) connectionInfo.get(DEAD_LETTER_TOPIC),
+                    (String) connectionInfo.get(DEAD_LETTER_FILE),
+                    longValue(connectionInfo, DEAD_LETTER_MAX_BYTES, 64L * 1024 * 1024));
+            long retryMinDelayMs = longValue(connectionInfo, RETRY_MIN_DELAY_MS,
+                    IoTCorePublisher.DEFAULT_RETRY_MIN_DELAY_MS);
+            long retryMaxDelayMs = longValue(connectionInfo, RETRY_MAX_DELAY_MS,
+                    IoTCorePublisher.DEFAULT_RETRY_MAX_DELAY_MS);
+            // Shared by all lanes, so the limits hold for the bridge as a whole
+            topicRateLimits = mappings.get(TOPIC_RATE_LIMITS);
+            rateLimiter = new PublishRateLimiter(doubleValue(connectionInfo, PUBLISH_RATE_LIMIT, 0),
+                    doubleValue(connectionInfo, PUBLISH_BURST, 10),
+                    doubleValue(connectionInfo, RATE_LIMIT_INCREASE, 5),
+                    (Map<String, Object>) mappings.get(TOPIC_RATE_LIMITS));
+            compressTopics = (List<String>) mappings.get(COMPRESS_TOPICS);
+            PayloadCompressor compressor = null;
+            if (compressTopics != null && !compressTopics.isEmpty()) {
+                // Compressed by the publishers, after batching
+                String dictionary = (String) connectionInfo.get(COMPRESSION_DICTIONARY);
+                String compression = (String) connectionInfo.get(COMPRESSION);
+                compressor = new PayloadCompressor(compressTopics,
+                        compression == null ? PayloadCompressor.GZIP : compression,
+                        intValue(connectionInfo, COMPRESSION_MIN_BYTES, 256),
+                        intValue(connectionInfo, COMPRESSION_LEVEL, -1),
+                        dictionary == null ? null : Files.readAllBytes(Paths.get(dictionary)));
+            }
+            int publishLanes = intValue(connectionInfo, PUBLISH_LANES, 1);
+            Runnable resumePublisher;
+            if (publishLanes > 1) {
+                // Topics are spread over lanes that publish and retry independently
+                LOG.info("Publishing on {} lanes", publishLanes);
+                PublishLanes lanes = new PublishLanes(client, publishQueue, publishLanes,
+                        intValue(connectionInfo, LANE_QUEUE_DEPTH, 1000), maxInFlight, acknowledger,
+                        retryMinDelayMs, retryMaxDelayMs, deadLetters, rateLimiter, compressor,
+                        strictTopicOrder);
+                resumePublisher = lanes::retryNow;
+                publisher = lanes;
+            } else {
+                IoTCorePublisher single = new IoTCorePublisher(client, publishQueue, maxInFlight, acknowledger,
+                        retryMinDelayMs, retryMaxDelayMs, deadLetters, rateLimiter, compressor,
+                        strictTopicOrder);
+                resumePublisher = single::retryNow;
+                publisher = single;
+            }
             publisher.start();
 
             subscriber = new Subscriber(client, messageQueue);
             subscriber.startup();
+            deadLetters.setMqttClient(subscriber.getMqttClient());
+
+            // Apply configuration changes without a restart
+            watcher = new ConfigurationWatcher(client, RECONFIGURE_DEBOUNCE_MS, Main::reconfigure);
+            watcher.start();
+
+            if (ipcConnection != null) {
+                // Streams are gone after an IPC reconnect, and retries need not wait
+                ipcConnection.setReconnectDelays(
+                        longValue(connectionInfo, Subscriber.RECONNECT_MIN_DELAY_MS, 1000),
+                        longValue(connectionInfo, Subscriber.RECONNECT_MAX_DELAY_MS, 60_000));
+                ipcConnection.addReconnectListener(subscriber::resubscribeCloudTopics);
+                ipcConnection.addReconnectListener(watcher::resubscribe);
+                ipcConnection.addReconnectListener(resumePublisher);
+            }
 
             IPCUtil.reportState(client, ReportedLifecycleState.RUNNING);
 
             subscriber.run();
-        } catch (Throwable e) {
-            e.printStackTrace();
-            System.exit(1);
         } finally {
-            if (connection != null) {
-                connection.close();
+            if (watcher != null) {
+                watcher.close();
             }
             if (subscriber != null) {
                 try {
                     subscriber.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    LOG.error("Failed to close the subscriber", e);
+                }
+            }
+            if (deadLetters != null) {
+                deadLetters.close();
+            }
+            if (messageQueue instanceof Closeable) {
+                try {
+                    ((Closeable) messageQueue).close();
+                } catch (IOException e) {
+                    LOG.error("Failed to close the message queue", e);
                 }
             }
         }
     }
+
+    /**
+     * Resize the message queue in place and hand the rest of the update to the
+     * subscriber. Queued messages are kept.
+     */
+    @SuppressWarnings("unchecked")
+    private static void reconfigure() {
+        try {
+            GetConfigurationRequest getConfigurationRequest = new GetConfigurationRequest();
+            getConfigurationRequest.setKeyPath(Arrays.asList(CONNECTION_INFO));
+            Map<String, Object> newConnectionInfo = client.getConfiguration(getConfigurationRequest, Optional.empty())
+                    .getResponse().get().getValue();
+            getConfigurationRequest.setKeyPath(Arrays.asList(MAPPINGS));
+            Map<String, Object> mappings = client.getConfiguration(getConfigurationRequest, Optional.empty())
+                    .getResponse().get().getValue();
+
+            Log.configure(newConnectionInfo);
+
+            int queueDepth = intValue(newConnectionInfo, QUEUE_DEPTH, 500);
+            if (messageQueue instanceof SpillingMessageQueue) {
+                ((SpillingMessageQueue) messageQueue).resize(queueDepth,
+                        longValue(newConnectionInfo, SPILL_MAX_BYTES, 256L * 1024 * 1024));
+            } else if (messageQueue instanceof BoundedMessageQueue
+                    && ((BoundedMessageQueue) messageQueue).getCapacity() != queueDepth) {
+                LOG.info("Message queue buffer size = {}", queueDepth);
+                ((BoundedMessageQueue) messageQueue).setCapacity(queueDepth);
+            }
+
+            if (!Objects.equals(connectionInfo.get(PUBLISH_RATE_LIMIT), newConnectionInfo.get(PUBLISH_RATE_LIMIT))
+                    || !Objects.equals(connectionInfo.get(PUBLISH_BURST), newConnectionInfo.get(PUBLISH_BURST))
+                    || !Objects.equals(connectionInfo.get(RATE_LIMIT_INCREASE),
+                            newConnectionInfo.get(RATE_LIMIT_INCREASE))
+                    || !Objects.equals(topicRateLimits, mappings.get(TOPIC_RATE_LIMITS))) {
+                LOG.info("Publish rate limit = {}/s", doubleValue(newConnectionInfo, PUBLISH_RATE_LIMIT, 0));
+                rateLimiter.configure(doubleValue(newConnectionInfo, PUBLISH_RATE_LIMIT, 0),
+                        doubleValue(newConnectionInfo, PUBLISH_BURST, 10),
+                        doubleValue(newConnectionInfo, RATE_LIMIT_INCREASE, 5),
+                        (Map<String, Object>) mappings.get(TOPIC_RATE_LIMITS));
+                topicRateLimits = mappings.get(TOPIC_RATE_LIMITS);
+            }
+
+            for (String setting : RESTART_SETTINGS) {
+                if (!Objects.equals(connectionInfo.get(setting), newConnectionInfo.get(setting))) {
+                    LOG.info("{} changed, restart the component to apply", setting);
+                }
+            }
+            if (!Objects.equals(batchTopics, mappings.get(BATCH_TOPICS))) {
+                LOG.info("{} changed, restart the component to apply", BATCH_TOPICS);
+            }
+            if (!Objects.equals(compressTopics, mappings.get(COMPRESS_TOPICS))) {
+                LOG.info("{} changed, restart the component to apply", COMPRESS_TOPICS);
+            }
+            List<Object> newPriorityClasses = Arrays.asList(mappings.get(Subscriber.TOPIC_PRIORITIES),
+                    mappings.get(PRIORITY_WEIGHTS));
+            if (priorityClasses != null && !priorityClasses.equals(newPriorityClasses)) {
+                LOG.info("Priority classes changed, restart the component to apply them to the scheduler");
+                priorityClasses = newPriorityClasses;
+            }
+            connectionInfo = newConnectionInfo;
+            batchTopics = (List<String>) mappings.get(BATCH_TOPICS);
+            compressTopics = (List<String>) mappings.get(COMPRESS_TOPICS);
+
+            subscriber.reconfigure();
+        } catch (ExecutionException e) {
+            LOG.warn("Failed to read configuration: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Numbers in the component configuration arrive as Doubles
+    static int intValue(Map<String, Object> config, String key, int defaultValue) {
+        Object value = config.get(key);
+        return value == null ? defaultValue : ((Number) value).intValue();
+    }
+
+    static long longValue(Map<String, Object> config, String key, long defaultValue) {
+        Object value = config.get(key);
+        return value == null ? defaultValue : ((Number) value).longValue();
+    }
+
+    static double doubleValue(Map<String, Object> config, String key, double defaultValue) {
+        Object value = config.get(key);
+        return value == null ? defaultValue : ((Number) value).doubleValue();
+    }
 }
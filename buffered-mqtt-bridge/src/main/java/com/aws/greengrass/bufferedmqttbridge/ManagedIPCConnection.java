@@ -0,0 +1,179 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+
+import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPC;
+import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPCClient;
+import software.amazon.awssdk.eventstreamrpc.EventStreamRPCConnection;
+
+/**
+ * Keeps the IPC connection to the Greengrass nucleus up. The connection reports
+ * its loss at once, and reconnect attempts then run on the manager's own thread
+ * with jittered exponential backoff, as the ReconnectManager does for the local
+ * broker.
+ *
+ * {@link #getClient()} hands out one client for the life of the component that
+ * always calls through the current connection, so the publisher, subscriber and
+ * configuration watcher keep their reference across reconnects. Calls made while
+ * disconnected fail like any other IPC error. Streams do not survive a
+ * reconnect; the listeners added with {@link #addReconnectListener(Runnable)}
+ * open them again, and wake anything waiting to retry.
+ */
+public class ManagedIPCConnection implements Closeable {
+
+	private static final Log LOG = Log.get("ManagedIPCConnection");
+
+	private static final LongAdder RECONNECTS = Metrics.registry().counter("bridge_ipc_reconnects_total",
+			"Reconnections to the Greengrass nucleus IPC server");
+
+	private final GreengrassCoreIPC client;
+	private final List<Runnable> reconnectListeners = new CopyOnWriteArrayList<>();
+	private final ScheduledExecutorService executor;
+	private final AtomicBoolean reconnecting = new AtomicBoolean();
+	private volatile long minDelayMs = 1000;
+	private volatile long maxDelayMs = 60_000;
+	private volatile EventStreamRPCConnection connection;
+	private volatile GreengrassCoreIPC delegate;
+	// Bumped for each connection, so a late disconnect of an old one is ignored
+	private volatile int generation;
+	private volatile boolean closed;
+
+	public ManagedIPCConnection() {
+		this.client = (GreengrassCoreIPC) Proxy.newProxyInstance(GreengrassCoreIPC.class.getClassLoader(),
+				new Class<?>[] { GreengrassCoreIPC.class }, (proxy, method, args) -> {
+					try {
+						return method.invoke(delegate, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ipc-reconnect");
+			t.setDaemon(true);
+			return t;
+		});
+		Metrics.registry().gauge("bridge_ipc_connected", "1 while connected to the Greengrass nucleus, else 0",
+				() -> isConnected() ? 1 : 0);
+	}
+
+	/**
+	 * Make the initial connection, blocking until it completes.
+	 *
+	 * @throws ExecutionException   if connecting fails
+	 * @throws InterruptedException if connecting is interrupted
+	 */
+	public void connect() throws ExecutionException, InterruptedException {
+		open();
+	}
+
+	/**
+	 * @return a client that always uses the current connection
+	 */
+	public GreengrassCoreIPC getClient() {
+		return client;
+	}
+
+	public boolean isConnected() {
+		return connection != null && !reconnecting.get();
+	}
+
+	/**
+	 * Change the reconnect backoff, from the next attempt.
+	 */
+	public void setReconnectDelays(long minDelayMs, long maxDelayMs) {
+		this.minDelayMs = Math.max(1, minDelayMs);
+		this.maxDelayMs = Math.max(this.minDelayMs, maxDelayMs);
+	}
+
+	/**
+	 * @param listener run on the manager thread after each successful reconnect,
+	 *                 for example to open streams again
+	 */
+	public void addReconnectListener(Runnable listener) {
+		reconnectListeners.add(listener);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		executor.shutdownNow();
+		EventStreamRPCConnection current = connection;
+		if (current != null) {
+			current.close();
+		}
+	}
+
+	private void open() throws ExecutionException, InterruptedException {
+		int opening = ++generation;
+		EventStreamRPCConnection opened = IPCUtil
+				.getEventStreamRpcConnection(errorCode -> disconnected(opening, errorCode));
+		EventStreamRPCConnection old = connection;
+		delegate = new GreengrassCoreIPCClient(opened);
+		connection = opened;
+		if (old != null) {
+			old.close();
+		}
+	}
+
+	// Called on an IPC event thread, so only schedules the work
+	private void disconnected(int connectionGeneration, int errorCode) {
+		if (closed || connectionGeneration != generation || !reconnecting.compareAndSet(false, true)) {
+			return;
+		}
+		LOG.warn("Lost IPC connection to the Greengrass nucleus, error code {}", errorCode);
+		schedule(0);
+	}
+
+	private void schedule(int attempt) {
+		long ceiling = Math.min(maxDelayMs, minDelayMs << Math.min(attempt, 30));
+		// Equal jitter: half the delay is fixed, half is random
+		long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+		executor.schedule(() -> reconnect(attempt), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void reconnect(int attempt) {
+		if (closed) {
+			return;
+		}
+		try {
+			open();
+			LOG.info("Reconnected to the Greengrass nucleus after {} attempt(s)", attempt + 1);
+			RECONNECTS.increment();
+		} catch (ExecutionException | RuntimeException e) {
+			LOG.warn("IPC reconnect attempt {} failed: {}", attempt + 1, e.getMessage());
+			schedule(attempt + 1);
+			return;
+		} catch (InterruptedException e) {
+			// Closing
+			return;
+		}
+
+		reconnecting.set(false);
+		for (Runnable listener : reconnectListeners) {
+			try {
+				listener.run();
+			} catch (RuntimeException e) {
+				LOG.error("Restoring IPC state after reconnect failed", e);
+			}
+		}
+	}
+}
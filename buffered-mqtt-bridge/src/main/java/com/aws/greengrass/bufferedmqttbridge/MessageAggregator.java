@@ -0,0 +1,308 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+
+/**
+ * Replaces high-rate samples with per-window statistics. Topics matching a
+ * filter in mappings.aggregations are not queued sample by sample; instead each
+ * topic gets one summary per window, sent on the topic plus topicSuffix:
+ *
+ * <pre>
+ * {"start":1714564800000,"end":1714564801000,"count":1000,"min":0.1,"max":2.5,"avg":1.2,"sum":1200.0}
+ * </pre>
+ *
+ * start and end are epoch milliseconds, and windows are aligned to multiples of
+ * slideMs. With slideMs equal to windowMs (the default) windows are tumbling;
+ * with a smaller slideMs they are sliding, overlapping windows of windowMs
+ * emitted every slideMs. Each window is kept as windowMs / slideMs panes of
+ * primitive accumulators, so a sample costs O(1) and closing a window
+ * O(panes). The value of a sample is read as in {@link MessageFilter}; samples
+ * without one are passed through unaggregated.
+ *
+ * Samples are added from the subscriber's workers at once, each window under
+ * its own lock; this thread closes the windows and hands the summaries to the
+ * sink. A topic's state is dropped once a whole window passes without samples.
+ */
+public class MessageAggregator extends Thread implements Closeable {
+
+	private static final Log LOG = Log.get("MessageAggregator");
+	private static final LongAdder SAMPLES = Metrics.registry().counter("bridge_aggregated_samples_total",
+			"Messages from the local broker folded into aggregates");
+	private static final LongAdder AGGREGATES = Metrics.registry().counter("bridge_aggregates_total",
+			"Aggregate summaries sent");
+
+	public static final String WINDOW_MS = "windowMs";
+	public static final String SLIDE_MS = "slideMs";
+	public static final String FIELD = "field";
+	public static final String TOPIC_SUFFIX = "topicSuffix";
+	public static final String DEFAULT_TOPIC_SUFFIX = "/stats";
+
+	private static final Rule NONE = new Rule();
+
+	private final List<String> filters = new ArrayList<>();
+	private final List<Rule> rules = new ArrayList<>();
+	private final Consumer<MessageObject> sink;
+	// Topic to its rule, or NONE
+	private final Map<String, Rule> ruleCache = new ConcurrentHashMap<>();
+	private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+	/**
+	 * @param aggregations topic filter to rule, each a map of the rule settings
+	 * @param sink         receives the summaries, from this thread
+	 */
+	@SuppressWarnings("unchecked")
+	public MessageAggregator(Map<String, Object> aggregations, Consumer<MessageObject> sink) {
+		super("message-aggregator");
+		setDaemon(true);
+		this.sink = sink;
+		if (aggregations != null) {
+			for (Map.Entry<String, Object> entry : aggregations.entrySet()) {
+				filters.add(entry.getKey());
+				rules.add(new Rule((Map<String, Object>) entry.getValue()));
+			}
+		}
+		if (!rules.isEmpty()) {
+			LOG.info("Aggregating messages on {}", filters);
+		}
+	}
+
+	/**
+	 * @return true if the message was folded into an aggregate and should not
+	 *         be queued itself
+	 */
+	public boolean add(MessageObject messageObject) {
+		if (rules.isEmpty()) {
+			return false;
+		}
+		String topic = messageObject.getTopic();
+		Rule rule = ruleCache.get(topic);
+		if (rule == null) {
+			rule = NONE;
+			for (int i = 0; i < filters.size(); i++) {
+				if (MqttTopic.isMatched(filters.get(i), topic)) {
+					rule = rules.get(i);
+					break;
+				}
+			}
+			ruleCache.put(topic, rule);
+		}
+		if (rule == NONE) {
+			return false;
+		}
+		double value = MessageFilter.value(messageObject.getMessage(), rule.field);
+		if (Double.isNaN(value)) {
+			return false;
+		}
+		Rule topicRule = rule;
+		while (true) {
+			Window window = windows.computeIfAbsent(topic, t -> new Window(t, topicRule));
+			synchronized (window) {
+				// Dropped as idle by the aggregator thread between the lookup and the lock
+				if (!window.dropped) {
+					window.add(value, messageObject.getQos());
+					break;
+				}
+			}
+		}
+		SAMPLES.increment();
+		return true;
+	}
+
+	/**
+	 * Close windows at each rule's slide boundary until interrupted.
+	 */
+	@Override
+	public void run() {
+		if (rules.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Rule rule : rules) {
+			rule.boundary = (now / rule.slideMs + 1) * rule.slideMs;
+		}
+		try {
+			while (true) {
+				long next = Long.MAX_VALUE;
+				for (Rule rule : rules) {
+					next = Math.min(next, rule.boundary);
+				}
+				long wait = next - System.currentTimeMillis();
+				if (wait > 0) {
+					Thread.sleep(wait);
+				}
+				now = System.currentTimeMillis();
+				for (Rule rule : rules) {
+					if (rule.boundary <= now) {
+						closeWindows(rule, rule.boundary);
+						// Skip boundaries missed while stalled, their panes are empty
+						rule.boundary = Math.max(rule.boundary + rule.slideMs,
+								(now / rule.slideMs) * rule.slideMs);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// Application is exiting, or the aggregations changed
+			LOG.info("MessageAggregator InterruptedException: {}", e.getMessage());
+		}
+	}
+
+	private void closeWindows(Rule rule, long end) {
+		for (Window window : windows.values()) {
+			if (window.rule != rule) {
+				continue;
+			}
+			MessageObject summary;
+			synchronized (window) {
+				summary = window.close(end);
+				if (summary == null) {
+					window.dropped = true;
+					windows.remove(window.topic, window);
+				}
+			}
+			if (summary != null) {
+				AGGREGATES.increment();
+				sink.accept(summary);
+			}
+		}
+	}
+
+	/**
+	 * Stop, then send what the current windows hold so far, so replacing the
+	 * aggregator does not throw away the windows in progress.
+	 */
+	@Override
+	public void close() {
+		interrupt();
+		try {
+			join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long now = System.currentTimeMillis();
+		for (Rule rule : rules) {
+			closeWindows(rule, now);
+		}
+	}
+
+	private static class Rule {
+		private final long windowMs;
+		private final long slideMs;
+		private final int panes;
+		// The key with its quotes, as it appears in the payload
+		private final byte[] field;
+		private final String topicSuffix;
+		// Next boundary, only used by the aggregator thread
+		private long boundary;
+
+		Rule() {
+			this(new HashMap<>());
+		}
+
+		Rule(Map<String, Object> settings) {
+			long window = Math.max(1, Main.longValue(settings, WINDOW_MS, 1000));
+			long slide = Math.max(1, Main.longValue(settings, SLIDE_MS, window));
+			if (slide > window || window % slide != 0) {
+				throw new IllegalArgumentException(
+						"Aggregation windowMs must be a multiple of slideMs: " + window + ", " + slide);
+			}
+			windowMs = window;
+			slideMs = slide;
+			panes = (int) (window / slide);
+			String name = (String) settings.get(FIELD);
+			field = name == null ? null : ("\"" + name + "\"").getBytes(StandardCharsets.UTF_8);
+			String suffix = (String) settings.get(TOPIC_SUFFIX);
+			topicSuffix = suffix == null ? DEFAULT_TOPIC_SUFFIX : suffix;
+		}
+	}
+
+	// A ring of panes, each covering slideMs; the current one takes new samples
+	private static class Window {
+		private final String topic;
+		private final Rule rule;
+		private final long[] counts;
+		private final double[] sums;
+		private final double[] mins;
+		private final double[] maxs;
+		private int current;
+		private int qos;
+		private boolean dropped;
+
+		Window(String topic, Rule rule) {
+			this.topic = topic;
+			this.rule = rule;
+			counts = new long[rule.panes];
+			sums = new double[rule.panes];
+			mins = new double[rule.panes];
+			maxs = new double[rule.panes];
+			Arrays.fill(mins, Double.POSITIVE_INFINITY);
+			Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+		}
+
+		void add(double value, int sampleQos) {
+			counts[current]++;
+			sums[current] += value;
+			if (value < mins[current]) {
+				mins[current] = value;
+			}
+			if (value > maxs[current]) {
+				maxs[current] = value;
+			}
+			if (sampleQos > qos) {
+				qos = sampleQos;
+			}
+		}
+
+		/**
+		 * Summarize the window ending at end and start a new pane.
+		 *
+		 * @return the summary, or null if the window had no samples
+		 */
+		MessageObject close(long end) {
+			long count = 0;
+			double sum = 0;
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < counts.length; i++) {
+				count += counts[i];
+				sum += sums[i];
+				min = Math.min(min, mins[i]);
+				max = Math.max(max, maxs[i]);
+			}
+			if (count == 0) {
+				return null;
+			}
+			current = (current + 1) % counts.length;
+			counts[current] = 0;
+			sums[current] = 0;
+			mins[current] = Double.POSITIVE_INFINITY;
+			maxs[current] = Double.NEGATIVE_INFINITY;
+
+			StringBuilder json = new StringBuilder(128);
+			json.append("{\"start\":").append(end - rule.windowMs).append(",\"end\":").append(end)
+					.append(",\"count\":").append(count).append(",\"min\":").append(min).append(",\"max\":")
+					.append(max).append(",\"avg\":").append(sum / count).append(",\"sum\":").append(sum)
+					.append('}');
+			return new MessageObject(topic + rule.topicSuffix, qos,
+					json.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
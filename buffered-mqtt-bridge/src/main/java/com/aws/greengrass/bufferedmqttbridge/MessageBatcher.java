@@ -0,0 +1,258 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+
+/**
+ * Groups small messages bound for the same topic into a single envelope before
+ * they reach the IoTCorePublisher. A topic's batch is flushed when it reaches
+ * maxCount messages, when adding the next message would take it over maxBytes,
+ * or maxLingerMs after its first message arrived.
+ *
+ * Envelope formats (see README.md):
+ * JSON - the payloads joined into a JSON array, [p1,p2,...]. Payloads must
+ * already be JSON objects or arrays; anything else is passed through unbatched.
+ * BINARY - a version byte (0x01), then for each message a 4 byte big-endian
+ * payload length followed by the payload.
+ *
+ * Messages on topics matching none of the batch filters pass straight through,
+ * after any pending batch for the same topic, so order within a topic is kept.
+ */
+public class MessageBatcher extends Thread {
+
+	private static final Log LOG = Log.get("MessageBatcher");
+
+	public static final String FORMAT_JSON = "json";
+	public static final String FORMAT_BINARY = "binary";
+	public static final byte BINARY_VERSION = 1;
+
+	private static final LongAdder BATCHES = Metrics.registry().counter("bridge_batches_total",
+			"Batch envelopes sent to the publisher");
+	private static final LongAdder BATCHED = Metrics.registry().counter("bridge_batched_messages_total",
+			"Messages sent inside batch envelopes");
+
+	private final BlockingQueue<MessageObject> input;
+	private final BlockingQueue<MessageObject> output;
+	private final List<String> batchTopics;
+	private final boolean binary;
+	private final int maxCount;
+	private final int maxBytes;
+	private final long maxLingerMs;
+
+	// Pending batches by topic, oldest first
+	private final LinkedHashMap<String, Batch> pending = new LinkedHashMap<>();
+	private final Map<String, Boolean> batchedTopicCache = new HashMap<>();
+	// Spill log offset of the newest message taken from the input queue
+	private long lastOffset = -1;
+
+	public MessageBatcher(BlockingQueue<MessageObject> input, BlockingQueue<MessageObject> output,
+			List<String> batchTopics, String format, int maxCount, int maxBytes, long maxLingerMs) {
+		super("message-batcher");
+		if (format != null && !FORMAT_JSON.equals(format) && !FORMAT_BINARY.equals(format)) {
+			throw new IllegalArgumentException("Unknown batch format: " + format);
+		}
+		this.input = input;
+		this.output = output;
+		this.batchTopics = batchTopics;
+		this.binary = FORMAT_BINARY.equals(format);
+		this.maxCount = Math.max(1, maxCount);
+		this.maxBytes = maxBytes;
+		this.maxLingerMs = maxLingerMs;
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				MessageObject messageObject;
+				if (pending.isEmpty()) {
+					messageObject = input.take();
+				} else {
+					long wait = pending.values().iterator().next().deadline - System.currentTimeMillis();
+					messageObject = input.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+				}
+				if (messageObject != null) {
+					add(messageObject);
+				}
+				flushExpired(System.currentTimeMillis());
+			}
+		} catch (InterruptedException e) {
+			// Application is exiting, time to get out.
+			LOG.info("MessageBatcher InterruptedException: {}", e.getMessage());
+		}
+	}
+
+	private void add(MessageObject messageObject) throws InterruptedException {
+		String topic = messageObject.getTopic();
+		long floor = lastOffset;
+		if (messageObject.getLogOffset() >= 0) {
+			lastOffset = messageObject.getLogOffset();
+		}
+
+		Batch batch = pending.get(topic);
+		if (!isBatched(messageObject)) {
+			if (batch != null) {
+				flush(batch);
+			}
+			emit(topic, messageObject.getQos(), messageObject.getMessage(), messageObject.getArrivalNanos());
+			return;
+		}
+
+		if (batch != null && batch.size + framing(messageObject) > maxBytes) {
+			flush(batch);
+			batch = null;
+		}
+		if (batch == null) {
+			batch = new Batch(topic, floor, System.currentTimeMillis() + maxLingerMs);
+			pending.put(topic, batch);
+		}
+		batch.add(messageObject, framing(messageObject));
+		if (batch.messages.size() >= maxCount) {
+			flush(batch);
+		}
+	}
+
+	private void flushExpired(long now) throws InterruptedException {
+		Iterator<Batch> batches = pending.values().iterator();
+		while (batches.hasNext()) {
+			Batch batch = batches.next();
+			if (batch.deadline > now) {
+				// Batches are in creation order, so the rest are younger
+				return;
+			}
+			batches.remove();
+			emit(batch);
+		}
+	}
+
+	private void flush(Batch batch) throws InterruptedException {
+		pending.remove(batch.topic);
+		emit(batch);
+	}
+
+	private void emit(Batch batch) throws InterruptedException {
+		BATCHES.increment();
+		BATCHED.add(batch.messages.size());
+		emit(batch.topic, batch.qos, encode(batch), batch.arrivalNanos);
+	}
+
+	// The envelope's arrival is its oldest message's, for end-to-end latency
+	private void emit(String topic, int qos, byte[] payload, long arrivalNanos) throws InterruptedException {
+		output.put(new MessageObject(topic, qos, payload, ackOffset(), arrivalNanos));
+	}
+
+	/**
+	 * The spill log offset that is safe to acknowledge once the next envelope is
+	 * delivered: everything taken so far, except what is still in a pending batch.
+	 */
+	private long ackOffset() {
+		long offset = lastOffset;
+		for (Batch batch : pending.values()) {
+			offset = Math.min(offset, batch.floor);
+		}
+		return offset;
+	}
+
+	private boolean isBatched(MessageObject messageObject) {
+		if (!binary && !looksLikeJson(messageObject.getMessage())) {
+			return false;
+		}
+		Boolean batched = batchedTopicCache.get(messageObject.getTopic());
+		if (batched == null) {
+			batched = false;
+			for (String filter : batchTopics) {
+				if (MqttTopic.isMatched(filter, messageObject.getTopic())) {
+					batched = true;
+					break;
+				}
+			}
+			batchedTopicCache.put(messageObject.getTopic(), batched);
+		}
+		return batched;
+	}
+
+	// A cheap check on the first non-whitespace byte, not a full parse
+	private static boolean looksLikeJson(byte[] payload) {
+		for (byte b : payload) {
+			if (b == '{' || b == '[') {
+				return true;
+			}
+			if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	// Bytes a message adds to an envelope: a length prefix, or a separating comma
+	private int framing(MessageObject messageObject) {
+		return messageObject.getMessage().length + (binary ? 4 : 1);
+	}
+
+	private byte[] encode(Batch batch) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(batch.size + 1);
+		if (binary) {
+			out.write(BINARY_VERSION);
+			for (MessageObject messageObject : batch.messages) {
+				byte[] payload = messageObject.getMessage();
+				out.write(ByteBuffer.allocate(4).putInt(payload.length).array(), 0, 4);
+				out.write(payload, 0, payload.length);
+			}
+		} else {
+			out.write('[');
+			for (int i = 0; i < batch.messages.size(); i++) {
+				if (i > 0) {
+					out.write(',');
+				}
+				byte[] payload = batch.messages.get(i).getMessage();
+				out.write(payload, 0, payload.length);
+			}
+			out.write(']');
+		}
+		return out.toByteArray();
+	}
+
+	private static class Batch {
+		private final String topic;
+		private final long floor;
+		private final long deadline;
+		private final List<MessageObject> messages = new ArrayList<>();
+		private int qos;
+		private long arrivalNanos;
+		// Encoded size including the envelope's leading and trailing byte
+		private int size = 1;
+
+		Batch(String topic, long floor, long deadline) {
+			this.topic = topic;
+			this.floor = floor;
+			this.deadline = deadline;
+		}
+
+		void add(MessageObject messageObject, int framing) {
+			if (messages.isEmpty()) {
+				arrivalNanos = messageObject.getArrivalNanos();
+			}
+			messages.add(messageObject);
+			qos = Math.max(qos, messageObject.getQos());
+			size += framing;
+		}
+	}
+}
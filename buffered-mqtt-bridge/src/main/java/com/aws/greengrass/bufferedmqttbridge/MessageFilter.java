@@ -0,0 +1,246 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+
+/**
+ * Report by exception: drops messages from the local broker that tell IoT Core
+ * nothing new, before they are queued. Rules come from mappings.messageFilters,
+ * a map from topic filter to rule; a topic follows the first filter it matches.
+ * A rule may set:
+ *
+ * dropDuplicates - drop a payload identical to the last one sent.
+ * deadband - drop a value within this distance of the last one sent. The value
+ * is the first number under the key field in a JSON payload, or the whole
+ * payload when field is not set.
+ * minIntervalMs - drop anything sooner than this after the last one sent.
+ * heartbeatMs - send anyway once this long has passed since the last one sent,
+ * so a steady value is still reported now and then.
+ *
+ * Messages are compared with the last one sent, not the last one received, so a
+ * change dropped for arriving too soon goes with the next message after the
+ * interval. Per-topic state is a few primitives, kept for about maxTopics
+ * topics, least recently seen dropped first; a topic that lost its state sends
+ * its next message.
+ *
+ * Safe to call from the subscriber's workers at once. The state is split into
+ * stripes by topic hash, each with its own lock, so workers only wait for each
+ * other on topics that share a stripe.
+ */
+public class MessageFilter {
+
+	private static final Log LOG = Log.get("MessageFilter");
+	private static final LongAdder FILTERED = Metrics.registry().counter("bridge_filtered_total",
+			"Messages from the local broker dropped by the message filters");
+
+	public static final String DROP_DUPLICATES = "dropDuplicates";
+	public static final String DEADBAND = "deadband";
+	public static final String FIELD = "field";
+	public static final String MIN_INTERVAL_MS = "minIntervalMs";
+	public static final String HEARTBEAT_MS = "heartbeatMs";
+
+	private static final int STRIPES = 16;
+
+	private final List<String> filters = new ArrayList<>();
+	private final List<Rule> rules = new ArrayList<>();
+	// Each stripe is guarded by itself
+	private final List<Map<String, State>> stripes = new ArrayList<>();
+
+	/**
+	 * @param messageFilters topic filter to rule, each a map of the rule settings
+	 * @param maxTopics      topics to keep state for
+	 */
+	@SuppressWarnings("unchecked")
+	public MessageFilter(Map<String, Object> messageFilters, int maxTopics) {
+		if (messageFilters != null) {
+			for (Map.Entry<String, Object> entry : messageFilters.entrySet()) {
+				filters.add(entry.getKey());
+				rules.add(new Rule((Map<String, Object>) entry.getValue()));
+			}
+		}
+		int capacity = Math.max(1, (maxTopics + STRIPES - 1) / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes.add(new LinkedHashMap<String, State>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+					return size() > capacity;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return true if the message should be queued
+	 */
+	public boolean accept(MessageObject messageObject) {
+		if (rules.isEmpty()) {
+			return true;
+		}
+		String topic = messageObject.getTopic();
+		Map<String, State> stripe = stripes.get(Math.floorMod(topic.hashCode(), STRIPES));
+		State state;
+		synchronized (stripe) {
+			state = stripe.get(topic);
+			if (state == null) {
+				state = new State(rule(topic));
+				stripe.put(topic, state);
+			}
+		}
+		Rule rule = state.rule;
+		if (rule == null) {
+			return true;
+		}
+
+		// Outside the lock; a state dropped meanwhile is still safe to update
+		byte[] payload = messageObject.getMessage();
+		long hash = rule.dropDuplicates ? hash(payload) : 0;
+		double value = rule.deadband > 0 ? value(payload, rule.field) : Double.NaN;
+		synchronized (stripe) {
+			return check(topic, state, rule, hash, value);
+		}
+	}
+
+	// Caller must hold the state's stripe
+	private boolean check(String topic, State state, Rule rule, long hash, double value) {
+		long now = System.currentTimeMillis();
+		if (state.sent && !(rule.heartbeatMs > 0 && now - state.sentMillis >= rule.heartbeatMs)) {
+			boolean drop = now - state.sentMillis < rule.minIntervalMs
+					|| rule.dropDuplicates && hash == state.hash
+					// Anything without a readable value counts as a change
+					|| !Double.isNaN(value) && !Double.isNaN(state.value)
+							&& Math.abs(value - state.value) < rule.deadband;
+			if (drop) {
+				FILTERED.increment();
+				if (LOG.isEnabled(Log.Level.DEBUG)) {
+					LOG.debug("Filtered message on {}", topic);
+				}
+				return false;
+			}
+		}
+		state.sent = true;
+		state.sentMillis = now;
+		state.hash = hash;
+		state.value = value;
+		return true;
+	}
+
+	private Rule rule(String topic) {
+		for (int i = 0; i < filters.size(); i++) {
+			if (MqttTopic.isMatched(filters.get(i), topic)) {
+				return rules.get(i);
+			}
+		}
+		return null;
+	}
+
+	// 64-bit FNV-1a, collisions are negligible for consecutive payloads on a topic
+	static long hash(byte[] payload) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : payload) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * The number that follows the first "field": in the payload, or the whole
+	 * payload as a number when field is null. A scan, not a JSON parse; NaN if
+	 * there is no such number.
+	 */
+	static double value(byte[] payload, byte[] field) {
+		int start = 0;
+		if (field != null) {
+			start = indexOf(payload, field);
+			if (start < 0) {
+				return Double.NaN;
+			}
+			start = skipWhitespace(payload, start + field.length);
+			if (start >= payload.length || payload[start] != ':') {
+				return Double.NaN;
+			}
+			start++;
+		}
+		start = skipWhitespace(payload, start);
+		int end = start;
+		while (end < payload.length && isNumberChar(payload[end])) {
+			end++;
+		}
+		if (end == start) {
+			return Double.NaN;
+		}
+		try {
+			return Double.parseDouble(new String(payload, start, end - start, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static int indexOf(byte[] payload, byte[] key) {
+		outer: for (int i = 0; i <= payload.length - key.length; i++) {
+			for (int j = 0; j < key.length; j++) {
+				if (payload[i + j] != key[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static int skipWhitespace(byte[] payload, int i) {
+		while (i < payload.length && (payload[i] == ' ' || payload[i] == '\t' || payload[i] == '\r'
+				|| payload[i] == '\n')) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isNumberChar(byte b) {
+		return b >= '0' && b <= '9' || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+	}
+
+	private static class Rule {
+		private final boolean dropDuplicates;
+		private final double deadband;
+		// The key with its quotes, as it appears in the payload
+		private final byte[] field;
+		private final long minIntervalMs;
+		private final long heartbeatMs;
+
+		Rule(Map<String, Object> settings) {
+			dropDuplicates = Boolean.TRUE.equals(settings.get(DROP_DUPLICATES));
+			deadband = settings.get(DEADBAND) == null ? 0 : ((Number) settings.get(DEADBAND)).doubleValue();
+			String name = (String) settings.get(FIELD);
+			field = name == null ? null : ("\"" + name + "\"").getBytes(StandardCharsets.UTF_8);
+			minIntervalMs = Main.longValue(settings, MIN_INTERVAL_MS, 0);
+			heartbeatMs = Main.longValue(settings, HEARTBEAT_MS, 0);
+		}
+	}
+
+	private static class State {
+		private final Rule rule;
+		private boolean sent;
+		private long sentMillis;
+		private long hash;
+		private double value = Double.NaN;
+
+		State(Rule rule) {
+			this.rule = rule;
+		}
+	}
+}
@@ -6,16 +6,35 @@ public class MessageObject {
 	private String topic;
 	private int qos;
 	private byte[] message;
+	// Position just past this message in the spill log, or -1 if it never left memory
+	private long logOffset = -1;
+	// System.nanoTime() when the message reached the bridge, or 0 if unknown
+	private long arrivalNanos;
 
 	public MessageObject(String topic, int qos, byte[] message) {
 		this.topic = topic;
+		this.qos = qos;
 		this.message = message;
+		this.arrivalNanos = System.nanoTime();
 	}
-	
-	public MessageObject(String topic, MqttMessage mqttMessage) {
+
+	/**
+	 * A message read back from the spill log, whose arrival time is not kept.
+	 */
+	public MessageObject(String topic, int qos, byte[] message, long logOffset) {
+		this(topic, qos, message, logOffset, 0);
+	}
+
+	public MessageObject(String topic, int qos, byte[] message, long logOffset, long arrivalNanos) {
 		this.topic = topic;
-		this.qos = mqttMessage.getQos();
-		this.message = mqttMessage.getPayload();
+		this.qos = qos;
+		this.message = message;
+		this.logOffset = logOffset;
+		this.arrivalNanos = arrivalNanos;
+	}
+
+	public MessageObject(String topic, MqttMessage mqttMessage) {
+		this(topic, mqttMessage.getQos(), mqttMessage.getPayload());
 	}
 
 	public String getTopic() {
@@ -25,8 +44,16 @@ public class MessageObject {
 	public int getQos() {
 		return qos;
 	}
-	
+
 	public byte[] getMessage() {
 		return message;
 	}
-}
\ No newline at end of file
+
+	public long getLogOffset() {
+		return logOffset;
+	}
+
+	public long getArrivalNanos() {
+		return arrivalNanos;
+	}
+}
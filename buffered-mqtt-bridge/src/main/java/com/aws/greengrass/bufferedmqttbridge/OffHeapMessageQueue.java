@@ -0,0 +1,499 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Message queue bounded by bytes rather than messages, held outside the Java
+ * heap. Queued messages are records in a ring over one direct ByteBuffer, so
+ * a backlog costs its size in native memory and nothing to the garbage
+ * collector; only messages being offered or taken are on the heap. Large
+ * payloads can not blow the heap, and small ones do not waste a slot each.
+ *
+ * Each record is laid out as: int record length, int topic id, byte qos, long
+ * arrival time (System.nanoTime()) and the payload bytes. Topics are interned
+ * in a table, so a queued message carries a 4 byte id instead of its topic.
+ * Each id counts the records using it and is reused once none do, so the table
+ * is bounded by the topics queued at once rather than every topic ever seen.
+ * A record that does not fit before the end of the ring is written at the
+ * start, after a wrap marker when there is room for one.
+ *
+ * The handoff from producers to consumers is lock-free: each side owns its own
+ * position and only reads the other's. Offers are serialized by a small lock
+ * only the producers use, as the subscriber's workers offer at once, and takes
+ * by one only the consumers use, since overflow policies that evict the oldest
+ * message poll from the producers' threads.
+ *
+ * Iteration and remove(Object) hold the consumers' lock. Queued messages are
+ * decoded afresh, so remove matches on topic, QoS, arrival time and payload
+ * rather than identity. A message removed from the middle is only marked as
+ * gone; its bytes are freed when takes reach it.
+ */
+public class OffHeapMessageQueue extends AbstractQueue<MessageObject> implements BlockingQueue<MessageObject> {
+
+	private static final int HEADER = 17;
+	private static final int WRAP = -1;
+	// In place of the qos of a record removed from the middle
+	private static final byte REMOVED = -1;
+
+	private final ByteBuffer ring;
+	private final int capacity;
+	// Producer's and consumer's own views, for their bulk copies
+	private final ByteBuffer producerView;
+	private final ByteBuffer consumerView;
+
+	// Logical byte positions, only ever growing; the ring index is position % capacity.
+	// tail and written belong to the producer, head and read to the consumer.
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong read = new AtomicLong();
+
+	// Topic table, added to by a producer before the record that uses it. An id
+	// whose count drops to zero is queued for reuse by the consumer that
+	// dropped it; the producer checks it is still unused before taking it.
+	private final Map<String, Integer> topicIds = new HashMap<>();
+	private volatile String[] topics = new String[64];
+	private volatile AtomicInteger[] topicRefs = new AtomicInteger[64];
+	private final Queue<Integer> unusedTopicIds = new ConcurrentLinkedQueue<>();
+
+	private final Object producerLock = new Object();
+	private final Object consumerLock = new Object();
+	private volatile Thread waitingConsumer;
+	private final Queue<Thread> waitingProducers = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param capacityBytes size of the ring; a message takes its payload plus
+	 *                      17 bytes
+	 */
+	public OffHeapMessageQueue(int capacityBytes) {
+		this.capacity = Math.max(HEADER, capacityBytes);
+		this.ring = ByteBuffer.allocateDirect(capacity);
+		this.producerView = ring.duplicate();
+		this.consumerView = ring.duplicate();
+	}
+
+	public int getCapacityBytes() {
+		return capacity;
+	}
+
+	/**
+	 * @return bytes of the ring in use, including any gap left at its end
+	 */
+	public long getUsedBytes() {
+		return tail.get() - head.get();
+	}
+
+	/**
+	 * @return false if the message could not be queued even with the ring
+	 *         emptied, because it is too large for it or, with the ring's
+	 *         current end, for the space either side of it
+	 */
+	public boolean canFit(MessageObject messageObject) {
+		int length = HEADER + messageObject.getMessage().length;
+		if (length > capacity) {
+			return false;
+		}
+		int index = (int) (tail.get() % capacity);
+		return index + length <= capacity || length <= index;
+	}
+
+	int getTopicTableSize() {
+		return topicIds.size();
+	}
+
+	@Override
+	public boolean offer(MessageObject messageObject) {
+		byte[] payload = messageObject.getMessage();
+		if (payload.length > capacity - HEADER) {
+			return false;
+		}
+		int length = HEADER + payload.length;
+		synchronized (producerLock) {
+			long position = tail.get();
+			int index = (int) (position % capacity);
+			int gap = index + length > capacity ? capacity - index : 0;
+			if (position + gap + length - head.get() > capacity) {
+				return false;
+			}
+			int topicId = topicId(messageObject.getTopic());
+			if (gap > 0) {
+				if (gap >= 4) {
+					ring.putInt(index, WRAP);
+				}
+				position += gap;
+				index = 0;
+			}
+			ring.putInt(index, length);
+			ring.putInt(index + 4, topicId);
+			ring.put(index + 8, (byte) messageObject.getQos());
+			ring.putLong(index + 9, messageObject.getArrivalNanos());
+			producerView.position(index + HEADER);
+			producerView.put(payload);
+			// A volatile write, so the consumer sees the record before it could park
+			tail.set(position + length);
+			written.lazySet(written.get() + 1);
+		}
+		Thread consumer = waitingConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+		return true;
+	}
+
+	@Override
+	public void put(MessageObject messageObject) throws InterruptedException {
+		offer(messageObject, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public boolean offer(MessageObject messageObject, long timeout, TimeUnit unit) throws InterruptedException {
+		if (messageObject.getMessage().length > capacity - HEADER) {
+			return false;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!offer(messageObject)) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			Thread current = Thread.currentThread();
+			waitingProducers.add(current);
+			// Recheck after registering, a take may have just missed us
+			if (!hasRoomFor(messageObject)) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			waitingProducers.remove(current);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public MessageObject poll() {
+		synchronized (consumerLock) {
+			long end = tail.get();
+			long position = recordAt(head.get(), end);
+			if (position == end) {
+				return null;
+			}
+			int index = (int) (position % capacity);
+			int length = ring.getInt(index);
+			int topicId = ring.getInt(index + 4);
+			String topic = topics[topicId];
+			int qos = ring.get(index + 8);
+			long arrivalNanos = ring.getLong(index + 9);
+			byte[] payload = new byte[length - HEADER];
+			consumerView.position(index + HEADER);
+			consumerView.get(payload);
+			head.set(position + length);
+			read.lazySet(read.get() + 1);
+			release(topicId);
+			skipRemoved();
+			wakeProducers();
+			return new MessageObject(topic, qos, payload, -1, arrivalNanos);
+		}
+	}
+
+	@Override
+	public MessageObject take() throws InterruptedException {
+		return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public MessageObject poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		MessageObject messageObject;
+		while ((messageObject = poll()) == null) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			waitingConsumer = Thread.currentThread();
+			// Recheck after registering, an offer may have just missed us
+			if (isEmpty()) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			waitingConsumer = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return messageObject;
+	}
+
+	@Override
+	public MessageObject peek() {
+		synchronized (consumerLock) {
+			long end = tail.get();
+			long position = recordAt(head.get(), end);
+			return position == end ? null : decode(position);
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+
+	@Override
+	public int size() {
+		return (int) (written.get() - read.get());
+	}
+
+	/**
+	 * @return free bytes, not messages
+	 */
+	@Override
+	public int remainingCapacity() {
+		return (int) (capacity - getUsedBytes());
+	}
+
+	@Override
+	public int drainTo(Collection<? super MessageObject> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super MessageObject> c, int maxElements) {
+		int n = 0;
+		MessageObject messageObject;
+		while (n < maxElements && (messageObject = poll()) != null) {
+			c.add(messageObject);
+			n++;
+		}
+		return n;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof MessageObject)) {
+			return false;
+		}
+		MessageObject target = (MessageObject) o;
+		synchronized (consumerLock) {
+			long end = tail.get();
+			for (long position = recordAt(head.get(), end); position != end; position = nextRecord(position, end)) {
+				if (matches(position, target)) {
+					removeAt(position);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A weakly consistent iterator from the oldest message, like those of the
+	 * java.util.concurrent queues. Messages taken meanwhile are skipped.
+	 */
+	@Override
+	public Iterator<MessageObject> iterator() {
+		return new Itr();
+	}
+
+	private class Itr implements Iterator<MessageObject> {
+		// Of the next record to return, or tail when there is none yet
+		private long cursor = head.get();
+		private MessageObject next;
+		private long nextPosition;
+		private MessageObject last;
+		private long lastPosition;
+
+		@Override
+		public boolean hasNext() {
+			if (next != null) {
+				return true;
+			}
+			synchronized (consumerLock) {
+				long end = tail.get();
+				long position = recordAt(Math.max(cursor, head.get()), end);
+				while (position != end && ring.get((int) (position % capacity) + 8) == REMOVED) {
+					position = nextRecord(position, end);
+				}
+				if (position == end) {
+					cursor = position;
+					return false;
+				}
+				next = decode(position);
+				nextPosition = position;
+				cursor = position + ring.getInt((int) (position % capacity));
+				return true;
+			}
+		}
+
+		@Override
+		public MessageObject next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			lastPosition = nextPosition;
+			next = null;
+			return last;
+		}
+
+		@Override
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			synchronized (consumerLock) {
+				// Unless taken or removed since
+				if (lastPosition >= head.get() && matches(lastPosition, last)) {
+					removeAt(lastPosition);
+				}
+			}
+			last = null;
+		}
+	}
+
+	// The following hold the consumer lock
+
+	// Skips a wrap marker or gap at position to the record there, given a
+	// snapshot of the tail
+	private long recordAt(long position, long end) {
+		if (position == end) {
+			return position;
+		}
+		int index = (int) (position % capacity);
+		if (capacity - index < 4 || ring.getInt(index) == WRAP) {
+			return position + capacity - index;
+		}
+		return position;
+	}
+
+	private long nextRecord(long position, long end) {
+		return recordAt(position + ring.getInt((int) (position % capacity)), end);
+	}
+
+	// Frees records removed from the middle once they reach the head, so the
+	// head is always at a queued record or the tail
+	private void skipRemoved() {
+		long end = tail.get();
+		long position = recordAt(head.get(), end);
+		boolean freed = false;
+		while (position != end && ring.get((int) (position % capacity) + 8) == REMOVED) {
+			position = nextRecord(position, end);
+			freed = true;
+		}
+		if (freed) {
+			head.set(position);
+			wakeProducers();
+		}
+	}
+
+	private MessageObject decode(long position) {
+		int index = (int) (position % capacity);
+		int length = ring.getInt(index);
+		byte[] payload = new byte[length - HEADER];
+		ByteBuffer view = ring.duplicate();
+		view.position(index + HEADER);
+		view.get(payload);
+		return new MessageObject(topics[ring.getInt(index + 4)], ring.get(index + 8), payload, -1,
+				ring.getLong(index + 9));
+	}
+
+	private boolean matches(long position, MessageObject target) {
+		int index = (int) (position % capacity);
+		int length = ring.getInt(index);
+		if (ring.get(index + 8) == REMOVED || ring.get(index + 8) != target.getQos()
+				|| ring.getLong(index + 9) != target.getArrivalNanos()
+				|| length - HEADER != target.getMessage().length
+				|| !topics[ring.getInt(index + 4)].equals(target.getTopic())) {
+			return false;
+		}
+		ByteBuffer view = ring.duplicate();
+		view.position(index + HEADER).limit(index + length);
+		return view.equals(ByteBuffer.wrap(target.getMessage()));
+	}
+
+	private void removeAt(long position) {
+		int index = (int) (position % capacity);
+		ring.put(index + 8, REMOVED);
+		read.lazySet(read.get() + 1);
+		release(ring.getInt(index + 4));
+		skipRemoved();
+	}
+
+	private void release(int topicId) {
+		if (topicRefs[topicId].decrementAndGet() == 0) {
+			unusedTopicIds.add(topicId);
+		}
+	}
+
+	private void wakeProducers() {
+		if (!waitingProducers.isEmpty()) {
+			// Each checks for room for its own message
+			for (Thread producer : waitingProducers) {
+				LockSupport.unpark(producer);
+			}
+		}
+	}
+
+	private boolean hasRoomFor(MessageObject messageObject) {
+		int length = HEADER + messageObject.getMessage().length;
+		long position = tail.get();
+		int index = (int) (position % capacity);
+		int gap = index + length > capacity ? capacity - index : 0;
+		return position + gap + length - head.get() <= capacity;
+	}
+
+	// Under the producer lock, for a record about to be written
+	private int topicId(String topic) {
+		Integer id = topicIds.get(topic);
+		if (id == null) {
+			id = reusableTopicId();
+			String[] table = topics;
+			AtomicInteger[] refs = topicRefs;
+			if (id == null) {
+				id = topicIds.size();
+				if (id == table.length) {
+					table = Arrays.copyOf(table, table.length * 2);
+					refs = Arrays.copyOf(refs, refs.length * 2);
+				}
+				refs[id] = new AtomicInteger();
+			} else {
+				topicIds.remove(table[id]);
+			}
+			table[id] = topic;
+			// Published by the write of tail that follows
+			topicRefs = refs;
+			topics = table;
+			topicIds.put(topic, id);
+		}
+		topicRefs[id].incrementAndGet();
+		return id;
+	}
+
+	// An id may have been queued more than once, or used again since
+	private Integer reusableTopicId() {
+		Integer id;
+		while ((id = unusedTopicIds.poll()) != null) {
+			if (topicRefs[id].get() == 0) {
+				return id;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.aws.greengrass.componentcommon.Log;
+
+/**
+ * Decides what happens to an incoming message when the message queue is full.
+ * A policy never throws, so a full queue can not disconnect the local MQTT
+ * client; it either makes room, waits, or drops the message and counts it.
+ *
+ * Policies are called from the subscriber's workers and the aggregator at once,
+ * and hold no lock of their own while they wait for space. Two callers may race
+ * for the room one of them made; a policy that evicts evicts again for the
+ * loser, any other drops the loser's message and counts it.
+ */
+public abstract class OverflowPolicy {
+
+	private static final Log LOG = Log.get("OverflowPolicy");
+
+	public static final String DROP_NEWEST = "dropNewest";
+	public static final String DROP_OLDEST = "dropOldest";
+	public static final String BLOCK = "block";
+	public static final String PRIORITY = "priority";
+	public static final String SAMPLE = "sample";
+
+	private final String name;
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+	private final AtomicBoolean overflowing = new AtomicBoolean();
+	private volatile long droppedAtOverflow;
+	private volatile long evictedAtOverflow;
+
+	protected OverflowPolicy(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Create a policy by its configured name.
+	 *
+	 * @param name            one of the policy name constants, null for DROP_NEWEST
+	 * @param blockTimeoutMs  how long BLOCK waits for space
+	 * @param sampleRate      SAMPLE keeps one in every sampleRate messages per topic
+	 * @param topicPriorities the priorities PRIORITY ranks messages by, null for none
+	 * @return the policy
+	 */
+	public static OverflowPolicy create(String name, long blockTimeoutMs, int sampleRate,
+			TopicPriorities topicPriorities) {
+		if (name == null || DROP_NEWEST.equals(name)) {
+			return new DropNewest();
+		} else if (DROP_OLDEST.equals(name)) {
+			return new DropOldest();
+		} else if (BLOCK.equals(name)) {
+			return new Block(blockTimeoutMs);
+		} else if (PRIORITY.equals(name)) {
+			return new Priority(topicPriorities);
+		} else if (SAMPLE.equals(name)) {
+			return new Sample(sampleRate);
+		}
+		throw new IllegalArgumentException("Unknown overflow policy: " + name);
+	}
+
+	/**
+	 * Add a message to the queue, applying this policy if the queue is full.
+	 *
+	 * @param queue         the message queue
+	 * @param messageObject the arriving message
+	 * @return true if the message was queued
+	 */
+	public final boolean enqueue(BlockingQueue<MessageObject> queue, MessageObject messageObject) {
+		if (queue.offer(messageObject)) {
+			accepted.increment();
+			if (overflowing.get() && overflowing.compareAndSet(true, false)) {
+				LOG.info("Message Queue recovered. {} dropped, {} evicted while full", getDropped() - droppedAtOverflow,
+						getEvicted() - evictedAtOverflow);
+			}
+			return true;
+		}
+
+		if (!overflowing.get() && overflowing.compareAndSet(false, true)) {
+			droppedAtOverflow = getDropped();
+			evictedAtOverflow = getEvicted();
+			LOG.warn("Message Queue is FULL! Applying {} overflow policy", name);
+		}
+
+		boolean queued;
+		try {
+			queued = handleOverflow(queue, messageObject);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			queued = false;
+		}
+		if (queued) {
+			accepted.increment();
+		} else {
+			dropped.increment();
+		}
+		return queued;
+	}
+
+	/**
+	 * Called when a plain offer failed.
+	 *
+	 * @return true if the message ended up in the queue
+	 */
+	protected abstract boolean handleOverflow(BlockingQueue<MessageObject> queue, MessageObject messageObject)
+			throws InterruptedException;
+
+	/**
+	 * Remove a queued message to make room, counting it as evicted.
+	 */
+	protected boolean evict(BlockingQueue<MessageObject> queue, MessageObject victim) {
+		if (queue.remove(victim)) {
+			evicted.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the oldest queued message to make room, counting it as evicted. A
+	 * {@link PriorityMessageQueue} gives up its lowest priority message instead,
+	 * as its oldest may be the next one it would publish.
+	 */
+	protected boolean evictOldest(BlockingQueue<MessageObject> queue) {
+		MessageObject victim = queue instanceof PriorityMessageQueue ? ((PriorityMessageQueue) queue).evictLowest()
+				: queue.poll();
+		if (victim != null) {
+			evicted.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Evict the oldest queued messages until the arriving one fits. On a queue
+	 * bounded by bytes one eviction may not free enough, but nothing is evicted
+	 * for a message that could not fit in the emptied queue.
+	 *
+	 * @return true if the message ended up in the queue
+	 */
+	protected boolean evictOldestUntilQueued(BlockingQueue<MessageObject> queue, MessageObject messageObject) {
+		if (queue instanceof OffHeapMessageQueue && !((OffHeapMessageQueue) queue).canFit(messageObject)) {
+			return false;
+		}
+		while (!queue.offer(messageObject)) {
+			if (!evictOldest(queue)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getEvicted() {
+		return evicted.sum();
+	}
+
+	/**
+	 * Drop the arriving message.
+	 */
+	private static class DropNewest extends OverflowPolicy {
+		DropNewest() {
+			super(DROP_NEWEST);
+		}
+
+		@Override
+		protected boolean handleOverflow(BlockingQueue<MessageObject> queue, MessageObject messageObject) {
+			return false;
+		}
+	}
+
+	/**
+	 * Discard the oldest queued message to make room for the arriving one.
+	 */
+	private static class DropOldest extends OverflowPolicy {
+		DropOldest() {
+			super(DROP_OLDEST);
+		}
+
+		@Override
+		protected boolean handleOverflow(BlockingQueue<MessageObject> queue, MessageObject messageObject) {
+			return evictOldestUntilQueued(queue, messageObject);
+		}
+	}
+
+	/**
+	 * Wait up to a timeout for space, which pushes back on the local broker
+	 * instead of dropping, then drop the arriving message.
+	 */
+	private static class Block extends OverflowPolicy {
+		private final long timeoutMs;
+
+		Block(long timeoutMs) {
+			super(BLOCK);
+			this.timeoutMs = timeoutMs;
+		}
+
+		@Override
+		protected boolean handleOverflow(BlockingQueue<MessageObject> queue, MessageObject messageObject)
+				throws InterruptedException {
+			return queue.offer(messageObject, timeoutMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Evict the oldest queued message with the lowest priority, if it is lower
+	 * than the arriving message's; otherwise drop the arriving message. Topics
+	 * that match no filter have priority 0. Within a priority, QoS 0 messages
+	 * rank below QoS 1, so they are evicted first, and a QoS 1 message can
+	 * evict a QoS 0 message of its own priority.
+	 *
+	 * Finding a victim scans the queue. The spilling queue can only scan what is
+	 * in memory, and the off-heap queue frees a message removed from the middle
+	 * only when takes reach it, so with them this behaves like DROP_NEWEST.
+	 */
+	private static class Priority extends OverflowPolicy {
+		private final TopicPriorities topicPriorities;
+
+		Priority(TopicPriorities topicPriorities) {
+			super(PRIORITY);
+			this.topicPriorities = topicPriorities == null ? new TopicPriorities(null) : topicPriorities;
+		}
+
+		// Priority first, then QoS 0 below QoS 1 and 2
+		private long rank(MessageObject messageObject) {
+			return 2L * topicPriorities.priorityOf(messageObject.getTopic()) + (messageObject.getQos() > 0 ? 1 : 0);
+		}
+
+		@Override
+		protected boolean handleOverflow(BlockingQueue<MessageObject> queue, MessageObject messageObject) {
+			if (queue instanceof SpillingMessageQueue || queue instanceof OffHeapMessageQueue) {
+				return false;
+			}
+			long lowest = rank(messageObject);
+			MessageObject victim = null;
+			for (MessageObject queued : queue) {
+				long rank = rank(queued);
+				if (rank < lowest) {
+					lowest = rank;
+					victim = queued;
+				}
+			}
+			return victim != null && evict(queue, victim) && queue.offer(messageObject);
+		}
+	}
+
+	/**
+	 * Keep one in every rate messages per topic, evicting the oldest queued
+	 * message to make room for it, and drop the rest. Noisy topics are thinned
+	 * out rather than cut off, and quiet topics still get through.
+	 */
+	private static class Sample extends OverflowPolicy {
+		private final int rate;
+		private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+		Sample(int rate) {
+			super(SAMPLE);
+			this.rate = Math.max(1, rate);
+		}
+
+		@Override
+		protected boolean handleOverflow(BlockingQueue<MessageObject> queue, MessageObject messageObject) {
+			AtomicInteger count = counts.computeIfAbsent(messageObject.getTopic(), t -> new AtomicInteger());
+			if (count.getAndIncrement() % rate != 0) {
+				return false;
+			}
+			return evictOldestUntilQueued(queue, messageObject);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+
+/**
+ * Compresses payloads on the way to IoT Core, for topics matching a filter in
+ * mappings.compressTopics. Applied by the publisher just before each publish,
+ * so batch envelopes are compressed whole.
+ *
+ * Encodings (see README.md):
+ * GZIP - a gzip member (RFC 1952).
+ * DEFLATE - a zlib stream (RFC 1950), optionally with a preset dictionary,
+ * whose Adler-32 the stream header carries.
+ *
+ * Payloads under minBytes, and payloads that would not get smaller, are
+ * published as they are. A compressed message's topic gets the suffix
+ * "/&lt;encoding&gt;", where the encoding is gzip, deflate, or
+ * deflate-&lt;dictionary Adler-32 in hex&gt;, so cloud rules can route it to
+ * the right decoder.
+ *
+ * Thread safe; each publisher thread keeps its own Deflater.
+ */
+public class PayloadCompressor {
+
+	private static final Log LOG = Log.get("PayloadCompressor");
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	private static final LongAdder COMPRESSED = Metrics.registry().counter("bridge_compressed_total",
+			"Messages compressed before publishing");
+	private static final LongAdder BYTES_IN = Metrics.registry().counter("bridge_compression_in_bytes_total",
+			"Payload bytes of compressed messages, before compression");
+	private static final LongAdder BYTES_OUT = Metrics.registry().counter("bridge_compression_out_bytes_total",
+			"Payload bytes of compressed messages, after compression");
+
+	// Fixed gzip header: magic, deflate, no flags, no time, no extra flags, unknown OS
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+	private static final int GZIP_TRAILER = 8;
+
+	private final List<String> compressTopics;
+	private final boolean gzip;
+	private final int minBytes;
+	private final byte[] dictionary;
+	private final String suffix;
+	private final Map<String, Boolean> compressedTopicCache = new ConcurrentHashMap<>();
+	private final ThreadLocal<Deflater> deflaters;
+
+	/**
+	 * @param compressTopics topic filters whose messages are compressed
+	 * @param encoding       GZIP or DEFLATE
+	 * @param minBytes       smallest payload worth compressing
+	 * @param level          Deflater level, 0 to 9, or -1 for the default
+	 * @param dictionary     preset dictionary for DEFLATE, null for none
+	 */
+	public PayloadCompressor(List<String> compressTopics, String encoding, int minBytes, int level,
+			byte[] dictionary) {
+		if (!GZIP.equals(encoding) && !DEFLATE.equals(encoding)) {
+			throw new IllegalArgumentException("Unknown compression: " + encoding);
+		}
+		if (dictionary != null && GZIP.equals(encoding)) {
+			throw new IllegalArgumentException("A compression dictionary needs " + DEFLATE + ", gzip has none");
+		}
+		this.compressTopics = compressTopics;
+		this.gzip = GZIP.equals(encoding);
+		// Nothing shorter than two bytes can shrink
+		this.minBytes = Math.max(2, minBytes);
+		this.dictionary = dictionary;
+		if (dictionary == null) {
+			this.suffix = "/" + encoding;
+		} else {
+			Adler32 adler = new Adler32();
+			adler.update(dictionary);
+			this.suffix = String.format("/%s-%08x", encoding, adler.getValue());
+		}
+		// gzip wraps a raw deflate stream itself
+		this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, gzip));
+		LOG.info("Compressing messages on {} with {}", compressTopics, suffix.substring(1));
+	}
+
+	/**
+	 * The message to publish in place of this one: a copy with its payload
+	 * compressed and its topic marked, or the message itself if it is left as
+	 * it is.
+	 */
+	public MessageObject compress(MessageObject messageObject) {
+		byte[] payload = messageObject.getMessage();
+		if (payload.length < minBytes || !isCompressed(messageObject.getTopic())) {
+			return messageObject;
+		}
+		byte[] compressed = gzip ? gzip(payload) : deflate(payload);
+		if (compressed == null) {
+			return messageObject;
+		}
+		COMPRESSED.increment();
+		BYTES_IN.add(payload.length);
+		BYTES_OUT.add(compressed.length);
+		return new MessageObject(messageObject.getTopic() + suffix, messageObject.getQos(), compressed,
+				messageObject.getLogOffset(), messageObject.getArrivalNanos());
+	}
+
+	private boolean isCompressed(String topic) {
+		Boolean compressed = compressedTopicCache.get(topic);
+		if (compressed == null) {
+			compressed = false;
+			for (String filter : compressTopics) {
+				if (MqttTopic.isMatched(filter, topic)) {
+					compressed = true;
+					break;
+				}
+			}
+			compressedTopicCache.put(topic, compressed);
+		}
+		return compressed;
+	}
+
+	private byte[] deflate(byte[] payload) {
+		// Anything that doesn't fit in a smaller buffer isn't worth sending
+		byte[] out = new byte[payload.length - 1];
+		int length = deflate(payload, out, 0, out.length);
+		return length < 0 ? null : Arrays.copyOf(out, length);
+	}
+
+	private byte[] gzip(byte[] payload) {
+		byte[] out = new byte[payload.length - 1];
+		if (out.length <= GZIP_HEADER.length + GZIP_TRAILER) {
+			return null;
+		}
+		System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+		int length = deflate(payload, out, GZIP_HEADER.length, out.length - GZIP_TRAILER);
+		if (length < 0) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		writeIntLE(out, length, (int) crc.getValue());
+		writeIntLE(out, length + 4, payload.length);
+		return Arrays.copyOf(out, length + GZIP_TRAILER);
+	}
+
+	// Deflate into out between offset and limit, returning the end of the output
+	// or -1 if it didn't fit
+	private int deflate(byte[] payload, byte[] out, int offset, int limit) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(payload);
+		deflater.finish();
+		int length = offset;
+		while (!deflater.finished() && length < limit) {
+			length += deflater.deflate(out, length, limit - length);
+		}
+		return deflater.finished() ? length : -1;
+	}
+
+	private static void writeIntLE(byte[] out, int offset, int value) {
+		out[offset] = (byte) value;
+		out[offset + 1] = (byte) (value >>> 8);
+		out[offset + 2] = (byte) (value >>> 16);
+		out[offset + 3] = (byte) (value >>> 24);
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link BoundedMessageQueue} that hands out messages by priority class
+ * instead of in arrival order, so a backlog built up during an outage drains
+ * its most important messages first. The classes are the priorities in
+ * mappings.topicPriorities, plus 0 for topics that match no filter; messages
+ * are FIFO within a class.
+ *
+ * With STRICT, the highest priority class with anything queued always goes
+ * next. With WEIGHTED, classes share the publisher in proportion to their
+ * weights (smooth weighted round robin), so low priorities still make progress
+ * under a steady stream of high priority messages.
+ *
+ * Overflow policies that evict the oldest message use {@link #evictLowest()}
+ * instead, so a full queue loses its least important messages, not the ones
+ * it would publish next.
+ */
+public class PriorityMessageQueue extends BoundedMessageQueue {
+
+	public static final String FIFO = "fifo";
+	public static final String STRICT = "strict";
+	public static final String WEIGHTED = "weighted";
+
+	private final TopicPriorities topicPriorities;
+
+	/**
+	 * @param capacity        messages held across all classes
+	 * @param scheduler       STRICT or WEIGHTED
+	 * @param topicPriorities topic filter to priority, higher wins
+	 * @param priorityWeights priority, as a string, to its weight for WEIGHTED;
+	 *                        missing priorities have weight 1
+	 */
+	public PriorityMessageQueue(int capacity, String scheduler, Map<String, Object> topicPriorities,
+			Map<String, Object> priorityWeights) {
+		this(capacity, scheduler, new TopicPriorities(topicPriorities), priorityWeights);
+	}
+
+	private PriorityMessageQueue(int capacity, String scheduler, TopicPriorities topicPriorities,
+			Map<String, Object> priorityWeights) {
+		super(capacity, new Classes(scheduler, topicPriorities, priorityWeights));
+		this.topicPriorities = topicPriorities;
+	}
+
+	/**
+	 * @return the priorities the classes are by, for the priority overflow
+	 *         policy to rank messages the same way
+	 */
+	public TopicPriorities getTopicPriorities() {
+		return topicPriorities;
+	}
+
+	/**
+	 * Remove the message to lose first: the oldest QoS 0 message of the lowest
+	 * priority class, else the oldest QoS 1 message of that class, else the same
+	 * in the next class up.
+	 *
+	 * @return the removed message, or null if the queue is empty
+	 */
+	public MessageObject evictLowest() {
+		return removeChosen(messages -> ((Classes) messages).pollLowest());
+	}
+
+	/**
+	 * Validate a scheduler name.
+	 *
+	 * @return true for STRICT or WEIGHTED, false for FIFO or null
+	 */
+	public static boolean isPriority(String scheduler) {
+		if (scheduler == null || FIFO.equals(scheduler)) {
+			return false;
+		} else if (STRICT.equals(scheduler) || WEIGHTED.equals(scheduler)) {
+			return true;
+		}
+		throw new IllegalArgumentException("Unknown scheduler: " + scheduler);
+	}
+
+	// One FIFO per priority class, highest priority first. Only used under the
+	// queue's lock.
+	private static class Classes extends AbstractQueue<MessageObject> {
+		private final boolean weighted;
+		private final TopicPriorities topicPriorities;
+		private final int[] priorities;
+		private final ArrayDeque<MessageObject>[] queues;
+		private final int[] weights;
+		private final int[] current;
+		// QoS 0 messages queued in each class
+		private final int[] qos0;
+		private int size;
+
+		@SuppressWarnings("unchecked")
+		Classes(String scheduler, TopicPriorities topicPriorities, Map<String, Object> priorityWeights) {
+			this.weighted = WEIGHTED.equals(scheduler);
+			this.topicPriorities = topicPriorities;
+			priorities = topicPriorities.priorities();
+			int count = priorities.length;
+			queues = (ArrayDeque<MessageObject>[]) new ArrayDeque<?>[count];
+			weights = new int[count];
+			current = new int[count];
+			qos0 = new int[count];
+			for (int i = 0; i < count; i++) {
+				queues[i] = new ArrayDeque<>();
+				Object weight = priorityWeights == null ? null : priorityWeights.get(Integer.toString(priorities[i]));
+				weights[i] = weight == null ? 1 : Math.max(1, ((Number) weight).intValue());
+			}
+		}
+
+		// A handful of classes, so a scan
+		private int classOf(String topic) {
+			int priority = topicPriorities.priorityOf(topic);
+			int index = 0;
+			while (priorities[index] != priority) {
+				index++;
+			}
+			return index;
+		}
+
+		// Index of the class to take from next, -1 when empty
+		private int next(boolean advance) {
+			if (!weighted) {
+				for (int i = 0; i < queues.length; i++) {
+					if (!queues[i].isEmpty()) {
+						return i;
+					}
+				}
+				return -1;
+			}
+			int best = -1;
+			int total = 0;
+			for (int i = 0; i < queues.length; i++) {
+				if (!queues[i].isEmpty()) {
+					int candidate = current[i] + weights[i];
+					total += weights[i];
+					if (best < 0 || candidate > current[best] + weights[best]) {
+						best = i;
+					}
+				}
+			}
+			if (advance && best >= 0) {
+				for (int i = 0; i < queues.length; i++) {
+					if (!queues[i].isEmpty()) {
+						current[i] += weights[i];
+					}
+				}
+				current[best] -= total;
+			}
+			return best;
+		}
+
+		@Override
+		public boolean offer(MessageObject messageObject) {
+			int index = classOf(messageObject.getTopic());
+			queues[index].add(messageObject);
+			if (messageObject.getQos() == 0) {
+				qos0[index]++;
+			}
+			size++;
+			return true;
+		}
+
+		@Override
+		public MessageObject poll() {
+			int index = next(true);
+			if (index < 0) {
+				return null;
+			}
+			return removed(index, queues[index].poll());
+		}
+
+		// Oldest QoS 0 of the lowest class, else its oldest, else the next class up
+		MessageObject pollLowest() {
+			for (int index = queues.length - 1; index >= 0; index--) {
+				if (queues[index].isEmpty()) {
+					continue;
+				}
+				if (qos0[index] > 0) {
+					for (Iterator<MessageObject> it = queues[index].iterator(); it.hasNext();) {
+						MessageObject messageObject = it.next();
+						if (messageObject.getQos() == 0) {
+							it.remove();
+							return removed(index, messageObject);
+						}
+					}
+				}
+				return removed(index, queues[index].poll());
+			}
+			return null;
+		}
+
+		private MessageObject removed(int index, MessageObject messageObject) {
+			size--;
+			if (messageObject.getQos() == 0) {
+				qos0[index]--;
+			}
+			if (queues[index].isEmpty()) {
+				// An idle class starts over, it doesn't bank credit
+				current[index] = 0;
+			}
+			return messageObject;
+		}
+
+		@Override
+		public MessageObject peek() {
+			int index = next(false);
+			return index < 0 ? null : queues[index].peek();
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!(o instanceof MessageObject)) {
+				return false;
+			}
+			int index = classOf(((MessageObject) o).getTopic());
+			if (queues[index].removeFirstOccurrence(o)) {
+				removed(index, (MessageObject) o);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		// Highest priority first, FIFO within a class
+		@Override
+		public Iterator<MessageObject> iterator() {
+			List<MessageObject> all = new ArrayList<>(size);
+			for (ArrayDeque<MessageObject> queue : queues) {
+				all.addAll(queue);
+			}
+			return all.iterator();
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+
+import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPC;
+
+/**
+ * Publishes to AWS IoT Core over several lanes, each an {@link IoTCorePublisher}
+ * with its own queue, in-flight window and retry state. A message's lane is
+ * chosen by a hash of its topic, so messages on one topic stay in order while a
+ * slow or failing topic only holds up the topics that share its lane.
+ *
+ * This thread moves messages from the shared queue to the lanes. When a lane's
+ * own queue of laneQueueDepth messages is full, its messages are set aside in
+ * order and go to it as it frees up room, while the other lanes carry on. Up to
+ * laneQueueDepth messages in all are set aside; a lane that stops draining for
+ * long enough to fill that too holds up the others, and behind that the shared
+ * queue fills and its overflow policy applies as before.
+ */
+public class PublishLanes extends Thread {
+
+	private static final Log LOG = Log.get("PublishLanes");
+
+	// How often to look for new messages while some are set aside
+	private static final long HELD_POLL_MS = 10;
+
+	private final BlockingQueue<MessageObject> messageQueue;
+	private final List<BlockingQueue<MessageObject>> laneQueues = new ArrayList<>();
+	private final List<IoTCorePublisher> lanes = new ArrayList<>();
+	private final Consumer<MessageObject> acknowledger;
+
+	// Messages set aside because their lane was full, by lane; only used by this
+	// thread, except the count for the gauge
+	private final List<Deque<MessageObject>> held = new ArrayList<>();
+	private final int holdLimit;
+	private volatile int heldCount;
+	// Notified by the lanes as they take messages, while this thread waits
+	private final Object space = new Object();
+	private volatile boolean awaitingSpace;
+
+	// Messages taken from the shared queue and not yet acknowledged, in the order
+	// they were taken, and the same entries split by lane. Guarded by this.
+	private final Deque<Entry> unacknowledged = new ArrayDeque<>();
+	private final List<Deque<Entry>> laneUnacknowledged = new ArrayList<>();
+
+	/**
+	 * @param laneCount       number of lanes, each with its own publisher thread
+	 * @param laneQueueDepth  messages each lane holds, and messages set aside
+	 *                        for full lanes before they block the others
+	 * @param maxInFlight     publishes outstanding at once in each lane
+	 * @param acknowledger    called with delivered messages in the order they
+	 *                        were taken from messageQueue; a call covers every
+	 *                        earlier message too
+	 * @param retryMinDelayMs longest wait before a lane's first retry
+	 * @param retryMaxDelayMs longest wait before any retry
+	 * @param deadLetters     receives messages that can never be published
+	 * @param rateLimiter     shapes publishes across all lanes, null for no
+	 *                        limit
+	 * @param compressor      compresses payloads, null for none
+	 * @param strictTopicOrder keep at most one publish per topic in flight
+	 */
+	public PublishLanes(GreengrassCoreIPC ipcClient, BlockingQueue<MessageObject> messageQueue, int laneCount,
+			int laneQueueDepth, int maxInFlight, Consumer<MessageObject> acknowledger, long retryMinDelayMs,
+			long retryMaxDelayMs, DeadLetterSink deadLetters, PublishRateLimiter rateLimiter,
+			PayloadCompressor compressor, boolean strictTopicOrder) {
+		super("publish-lanes");
+		this.messageQueue = messageQueue;
+		this.acknowledger = acknowledger;
+		this.holdLimit = Math.max(1, laneQueueDepth);
+		for (int i = 0; i < Math.max(1, laneCount); i++) {
+			int lane = i;
+			BlockingQueue<MessageObject> laneQueue = new LaneQueue(Math.max(1, laneQueueDepth));
+			IoTCorePublisher publisher = new IoTCorePublisher(ipcClient, laneQueue, maxInFlight,
+					messageObject -> delivered(lane, messageObject), retryMinDelayMs, retryMaxDelayMs, deadLetters,
+					rateLimiter, compressor, strictTopicOrder);
+			publisher.setName("publisher-lane-" + lane);
+			laneQueues.add(laneQueue);
+			lanes.add(publisher);
+			laneUnacknowledged.add(new ArrayDeque<>());
+			held.add(new ArrayDeque<>());
+			Metrics.registry().gauge("bridge_publish_lane_" + lane + "_queued",
+					"Messages waiting in publish lane " + lane, laneQueue::size);
+		}
+		// Replaces each lane's own registration with the total
+		Metrics.registry().gauge("bridge_publish_in_flight", "Publishes to IoT Core awaiting acknowledgement",
+				() -> lanes.stream().mapToLong(IoTCorePublisher::getInFlight).sum());
+		Metrics.registry().gauge("bridge_publish_lanes_held", "Messages set aside because their lane was full",
+				() -> heldCount);
+	}
+
+	/**
+	 * Start the lanes and hand them messages until the thread is interrupted.
+	 */
+	@Override
+	public void run() {
+		for (IoTCorePublisher lane : lanes) {
+			lane.start();
+		}
+		try {
+			while (true) {
+				dispatchHeld();
+				if (heldCount >= holdLimit) {
+					awaitSpace();
+					continue;
+				}
+				MessageObject messageObject = heldCount == 0 ? messageQueue.take()
+						: messageQueue.poll(HELD_POLL_MS, TimeUnit.MILLISECONDS);
+				if (messageObject == null) {
+					continue;
+				}
+				int lane = lane(messageObject.getTopic(), lanes.size());
+				Entry entry = new Entry(messageObject);
+				synchronized (this) {
+					unacknowledged.add(entry);
+					laneUnacknowledged.get(lane).add(entry);
+				}
+				Deque<MessageObject> laneHeld = held.get(lane);
+				// Behind any set aside for the lane, to keep its order
+				if (!laneHeld.isEmpty() || !laneQueues.get(lane).offer(messageObject)) {
+					laneHeld.add(messageObject);
+					heldCount++;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Application is exiting, time to get out.
+			LOG.info("PublishLanes InterruptedException: {}", e.getMessage());
+			for (IoTCorePublisher lane : lanes) {
+				lane.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Wake every lane that is backing off, so it retries at once.
+	 */
+	public void retryNow() {
+		for (IoTCorePublisher lane : lanes) {
+			lane.retryNow();
+		}
+	}
+
+	// Move set-aside messages into their lanes as far as they have room
+	private void dispatchHeld() {
+		if (heldCount == 0) {
+			return;
+		}
+		int count = heldCount;
+		for (int lane = 0; lane < held.size(); lane++) {
+			Deque<MessageObject> laneHeld = held.get(lane);
+			BlockingQueue<MessageObject> laneQueue = laneQueues.get(lane);
+			while (!laneHeld.isEmpty() && laneQueue.offer(laneHeld.peek())) {
+				laneHeld.poll();
+				count--;
+			}
+		}
+		heldCount = count;
+	}
+
+	// Wait until a lane with messages set aside takes one from its queue
+	private void awaitSpace() throws InterruptedException {
+		synchronized (space) {
+			awaitingSpace = true;
+			try {
+				for (int lane = 0; lane < held.size(); lane++) {
+					if (!held.get(lane).isEmpty() && laneQueues.get(lane).remainingCapacity() > 0) {
+						// Freed up since dispatchHeld
+						return;
+					}
+				}
+				space.wait(100);
+			} finally {
+				awaitingSpace = false;
+			}
+		}
+	}
+
+	static int lane(String topic, int laneCount) {
+		return Math.floorMod(topic.hashCode(), laneCount);
+	}
+
+	/**
+	 * A lane acknowledges in its own order, and one call covers its earlier
+	 * messages too. Mark those delivered, then pass on everything delivered at
+	 * the head of the shared order.
+	 */
+	private synchronized void delivered(int lane, MessageObject messageObject) {
+		Deque<Entry> pending = laneUnacknowledged.get(lane);
+		int covered = 0;
+		for (Entry entry : pending) {
+			covered++;
+			if (entry.messageObject == messageObject) {
+				break;
+			}
+			if (covered == pending.size()) {
+				// Already covered by a later acknowledgement
+				return;
+			}
+		}
+		for (int i = 0; i < covered; i++) {
+			pending.poll().delivered = true;
+		}
+		MessageObject newest = null;
+		while (!unacknowledged.isEmpty() && unacknowledged.peek().delivered) {
+			newest = unacknowledged.poll().messageObject;
+		}
+		if (newest != null) {
+			acknowledger.accept(newest);
+		}
+	}
+
+	private MessageObject taken(MessageObject messageObject) {
+		if (messageObject != null && awaitingSpace) {
+			synchronized (space) {
+				space.notifyAll();
+			}
+		}
+		return messageObject;
+	}
+
+	// A lane's queue, which wakes the dispatcher when it frees up room
+	private class LaneQueue extends ArrayBlockingQueue<MessageObject> {
+		private static final long serialVersionUID = 1L;
+
+		LaneQueue(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		public MessageObject take() throws InterruptedException {
+			return taken(super.take());
+		}
+
+		@Override
+		public MessageObject poll() {
+			return taken(super.poll());
+		}
+
+		@Override
+		public MessageObject poll(long timeout, TimeUnit unit) throws InterruptedException {
+			return taken(super.poll(timeout, unit));
+		}
+	}
+
+	private static class Entry {
+		private final MessageObject messageObject;
+		private boolean delivered;
+
+		Entry(MessageObject messageObject) {
+			this.messageObject = messageObject;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+
+import software.amazon.awssdk.aws.greengrass.model.ServiceError;
+
+/**
+ * Shapes publishes to IoT Core with token buckets: one for all topics, and one
+ * per topic matching a filter in mappings.topicRateLimits. Each bucket refills
+ * at its rate and holds at most burst tokens, so a backlog drains at a steady
+ * rate instead of all at once when the connection returns.
+ *
+ * The rates adapt to IoT Core, AIMD style: a throttling error halves the rate
+ * of the buckets the message went through, and every publish that succeeds
+ * raises it a little, by about increase messages per second each second,
+ * back up to the configured rate. The drain settles just under the highest
+ * rate IoT Core accepts.
+ *
+ * Shared by all publish lanes; thread safe.
+ */
+public class PublishRateLimiter {
+
+	private static final Log LOG = Log.get("PublishRateLimiter");
+	private static final LongAdder THROTTLED = Metrics.registry().counter("bridge_publish_throttled_total",
+			"Publishes to IoT Core refused by throttling");
+	private static final LongAdder WAITS = Metrics.registry().counter("bridge_publish_rate_limited_total",
+			"Publishes delayed by the rate limiter");
+
+	static final double MIN_RATE = 1;
+
+	private volatile TokenBucket global;
+	private volatile Map<String, Double> topicRates = Collections.emptyMap();
+	private volatile double burst;
+	private volatile double increase;
+	private final Map<String, TokenBucket> topicBuckets = new ConcurrentHashMap<>();
+
+	/**
+	 * @param rate       messages per second for all topics, 0 for no limit
+	 * @param burst      messages that may go at once after a quiet period
+	 * @param increase   messages per second the rate grows by each second
+	 *                   without throttling
+	 * @param topicRates topic filter to messages per second for each topic it
+	 *                   matches
+	 */
+	public PublishRateLimiter(double rate, double burst, double increase, Map<String, Object> topicRates) {
+		configure(rate, burst, increase, topicRates);
+		Metrics.registry().gauge("bridge_publish_rate_limit", "Current publish rate limit for all topics",
+				() -> {
+					TokenBucket bucket = global;
+					return bucket == null ? 0 : (long) bucket.getRate();
+				});
+	}
+
+	/**
+	 * Change the limits in place. Adapted rates start over from the new limits.
+	 */
+	public void configure(double rate, double burst, double increase, Map<String, Object> topicRates) {
+		Map<String, Double> rates = new HashMap<>();
+		if (topicRates != null) {
+			for (Map.Entry<String, Object> entry : topicRates.entrySet()) {
+				rates.put(entry.getKey(), ((Number) entry.getValue()).doubleValue());
+			}
+		}
+		this.burst = Math.max(1, burst);
+		this.increase = Math.max(0, increase);
+		this.topicRates = rates;
+		this.global = rate > 0 ? new TokenBucket(rate, this.burst) : null;
+		topicBuckets.clear();
+	}
+
+	/**
+	 * Wait until a message on this topic may be published.
+	 */
+	public void acquire(String topic) throws InterruptedException {
+		long now = System.nanoTime();
+		long waitNanos = 0;
+		TokenBucket bucket = global;
+		if (bucket != null) {
+			waitNanos = bucket.reserve(now);
+		}
+		bucket = topicBucket(topic);
+		if (bucket != null) {
+			waitNanos = Math.max(waitNanos, bucket.reserve(now));
+		}
+		if (waitNanos > 0) {
+			WAITS.increment();
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	/**
+	 * Record the outcome of a publish on this topic.
+	 *
+	 * @param cause null if it succeeded
+	 */
+	public void completed(String topic, Throwable cause) {
+		if (cause == null) {
+			forEachBucket(topic, bucket -> bucket.increase(increase));
+		} else if (isThrottling(cause)) {
+			THROTTLED.increment();
+			forEachBucket(topic, bucket -> {
+				double rate = bucket.decrease();
+				LOG.info("Throttled by IoT Core, publish rate for {} lowered to {}/s",
+						bucket == global ? "all topics" : topic, String.format(Locale.ROOT, "%.1f", rate));
+			});
+		}
+	}
+
+	/**
+	 * IoT Core's and the Greengrass MQTT proxy's ways of saying slow down: a
+	 * service error about throttling, a rate being exceeded or too many requests.
+	 */
+	static boolean isThrottling(Throwable cause) {
+		if (!(cause instanceof ServiceError) || cause.getMessage() == null) {
+			return false;
+		}
+		String message = cause.getMessage().toLowerCase(Locale.ROOT);
+		return message.contains("throttl") || message.contains("rate exceeded") || message.contains("too many");
+	}
+
+	private void forEachBucket(String topic, Consumer<TokenBucket> action) {
+		TokenBucket bucket = global;
+		if (bucket != null) {
+			action.accept(bucket);
+		}
+		bucket = topicBucket(topic);
+		if (bucket != null) {
+			action.accept(bucket);
+		}
+	}
+
+	// The topic's own bucket, at the highest rate of the filters it matches
+	private TokenBucket topicBucket(String topic) {
+		Map<String, Double> rates = topicRates;
+		if (rates.isEmpty()) {
+			return null;
+		}
+		TokenBucket bucket = topicBuckets.get(topic);
+		if (bucket == null) {
+			double rate = 0;
+			for (Map.Entry<String, Double> entry : rates.entrySet()) {
+				if (MqttTopic.isMatched(entry.getKey(), topic)) {
+					rate = Math.max(rate, entry.getValue());
+				}
+			}
+			// Unlimited topics are cached too, as buckets with rate 0
+			double limit = rate;
+			bucket = topicBuckets.computeIfAbsent(topic, t -> new TokenBucket(limit, burst));
+		}
+		return bucket.getRate() > 0 ? bucket : null;
+	}
+
+	/**
+	 * Token bucket whose rate can move between MIN_RATE and its limit. Tokens
+	 * may go negative: a caller takes its token at once and waits out the debt,
+	 * so waiting callers are served in order.
+	 */
+	static class TokenBucket {
+		private final double burst;
+		private final double limit;
+		private double rate;
+		private double tokens;
+		private long refilledNanos = System.nanoTime();
+
+		TokenBucket(double limit, double burst) {
+			this.limit = limit;
+			this.rate = limit;
+			this.burst = burst;
+			this.tokens = burst;
+		}
+
+		synchronized double getRate() {
+			return rate;
+		}
+
+		/**
+		 * Take a token.
+		 *
+		 * @return nanoseconds to wait before using it
+		 */
+		synchronized long reserve(long now) {
+			// Another thread may have refilled with a later reading
+			tokens = Math.min(burst, tokens + Math.max(0, now - refilledNanos) * rate / 1e9);
+			refilledNanos = Math.max(refilledNanos, now);
+			tokens -= 1;
+			return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+		}
+
+		// Called per success, so at rate r this adds about increase per second
+		synchronized void increase(double increase) {
+			rate = Math.min(limit, rate + increase / rate);
+		}
+
+		synchronized double decrease() {
+			rate = Math.max(Math.min(MIN_RATE, limit), rate / 2);
+			// Forget the burst, the limit was just hit
+			tokens = Math.min(tokens, 0);
+			return rate;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+
+/**
+ * Keeps the local MQTT client connected. When the connection is lost, reconnect
+ * attempts run on the manager's own thread with jittered exponential backoff,
+ * so Paho's callback thread is never blocked. Paho's automatic reconnect is
+ * turned off so the two do not race each other.
+ *
+ * Outbound local publishes are buffered by the CloudForwarder, which is resumed
+ * from the onReconnected hook.
+ */
+public class ReconnectManager implements Closeable {
+
+	private static final Log LOG = Log.get("ReconnectManager");
+
+	private static final LongAdder RECONNECTS = Metrics.registry().counter("bridge_local_reconnects_total",
+			"Reconnections to the local broker");
+
+	private final MqttAsyncClient mqttClient;
+	private final MqttConnectOptions options;
+	private final long minDelayMs;
+	private final long maxDelayMs;
+	private final Runnable onReconnected;
+	private final ScheduledExecutorService executor;
+	private final AtomicBoolean reconnecting = new AtomicBoolean();
+	private volatile boolean closed;
+
+	/**
+	 * @param onReconnected run on the manager thread after each successful
+	 *                      reconnect (for example, to restore subscriptions)
+	 */
+	public ReconnectManager(MqttAsyncClient mqttClient, MqttConnectOptions options, long minDelayMs,
+			long maxDelayMs, Runnable onReconnected) {
+		this.mqttClient = mqttClient;
+		this.options = options;
+		this.minDelayMs = Math.max(1, minDelayMs);
+		this.maxDelayMs = Math.max(this.minDelayMs, maxDelayMs);
+		this.onReconnected = onReconnected;
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "mqtt-reconnect");
+			t.setDaemon(true);
+			return t;
+		});
+		options.setAutomaticReconnect(false);
+	}
+
+	/**
+	 * Make the initial connection, blocking until it completes.
+	 *
+	 * @throws MqttException if connecting fails
+	 */
+	public void connect() throws MqttException {
+		LOG.info("Connecting to broker...");
+		mqttClient.connect(options).waitForCompletion();
+		LOG.info("Connected to broker");
+	}
+
+	/**
+	 * Start reconnecting in the background. Safe to call from a Paho callback;
+	 * returns immediately, and does nothing if a reconnect is already running.
+	 *
+	 * @param cause why the connection was lost
+	 */
+	public void connectionLost(Throwable cause) {
+		if (closed || !reconnecting.compareAndSet(false, true)) {
+			return;
+		}
+		LOG.warn("Lost connection to broker: {}", cause == null ? "unknown" : cause.getMessage());
+		schedule(0);
+	}
+
+	public boolean isConnected() {
+		return !reconnecting.get() && mqttClient.isConnected();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		executor.shutdownNow();
+	}
+
+	private void schedule(int attempt) {
+		long ceiling = Math.min(maxDelayMs, minDelayMs << Math.min(attempt, 30));
+		// Equal jitter: half the delay is fixed, half is random
+		long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+		executor.schedule(() -> reconnect(attempt), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void reconnect(int attempt) {
+		if (closed) {
+			return;
+		}
+		try {
+			if (!mqttClient.isConnected()) {
+				mqttClient.connect(options).waitForCompletion();
+			}
+			LOG.info("Reconnected to broker after {} attempt(s)", (attempt + 1));
+			RECONNECTS.increment();
+		} catch (MqttException e) {
+			LOG.warn("Reconnect attempt {} failed: {}", attempt + 1, e.getMessage());
+			schedule(attempt + 1);
+			return;
+		}
+
+		reconnecting.set(false);
+		try {
+			onReconnected.run();
+		} catch (RuntimeException e) {
+			LOG.error("Resubscribe after reconnect failed", e);
+		}
+	}
+}
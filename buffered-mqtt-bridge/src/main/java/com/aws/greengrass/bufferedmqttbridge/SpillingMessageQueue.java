@@ -0,0 +1,777 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.aws.greengrass.componentcommon.Log;
+
+/**
+ * Message queue that keeps up to memoryCapacity messages in memory and spills
+ * everything beyond that to an append-only segment log on disk.
+ *
+ * Messages only go to memory while the log is empty, so memory always holds the
+ * oldest messages and FIFO order is kept across both tiers. The log is a series
+ * of segment files named after the logical offset of their first byte. Writes
+ * are fsynced in groups, either every syncBatch records or every syncIntervalMs.
+ * Consumers call {@link #acknowledge(MessageObject)} once a message read from
+ * the log has been delivered; the ack cursor is persisted with each sync, and
+ * segments wholly behind it are deleted. On startup, everything after the ack
+ * cursor is replayed, so spilled messages are delivered at least once across a
+ * restart. {@link #close()} writes the messages still in memory to a snapshot
+ * file, which the next start loads back ahead of the log; memory is not written
+ * otherwise, so a crash loses it, as do messages taken from memory but not yet
+ * delivered at shutdown.
+ *
+ * Each record, in the log and the snapshot, is laid out as: int body length,
+ * int CRC32 of body, then the body of short topic length, topic bytes (UTF-8),
+ * byte qos and payload bytes.
+ *
+ * Iterators walk a snapshot of memory and then the log records not yet taken,
+ * read as they go; they do not support remove. {@link #remove(Object)} only
+ * removes messages still in memory.
+ */
+public class SpillingMessageQueue extends AbstractQueue<MessageObject>
+		implements BlockingQueue<MessageObject>, Closeable {
+
+	private static final Log LOG = Log.get("SpillingMessageQueue");
+
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CURSOR_FILE = "cursor";
+	private static final String MEMORY_FILE = "memory";
+	private static final int RECORD_HEADER = 8;
+
+	private int memoryCapacity;
+	private long maxBytes;
+	private final long segmentBytes;
+	private final int syncBatch;
+	private final Path directory;
+
+	private final ArrayDeque<MessageObject> memory = new ArrayDeque<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final ScheduledExecutorService syncer;
+
+	// Segment base offset -> segment file, oldest first
+	private final TreeMap<Long, Path> segments = new TreeMap<>();
+	private final FileChannel cursorChannel;
+	private FileChannel writeChannel;
+	private long writeBase;
+	private long writeOffset;
+	private FileChannel readChannel;
+	private long readBase = -1;
+	private long readOffset;
+	private long ackOffset;
+	private long diskCount;
+	private int unsynced;
+	private boolean cursorDirty;
+
+	public SpillingMessageQueue(Path directory, int memoryCapacity, long maxBytes, long segmentBytes,
+			long syncIntervalMs, int syncBatch) throws IOException {
+		this.directory = directory;
+		this.memoryCapacity = memoryCapacity;
+		this.maxBytes = maxBytes;
+		this.segmentBytes = segmentBytes;
+		this.syncBatch = Math.max(1, syncBatch);
+
+		Files.createDirectories(directory);
+		cursorChannel = FileChannel.open(directory.resolve(CURSOR_FILE), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		recover();
+
+		syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "spill-sync");
+			t.setDaemon(true);
+			return t;
+		});
+		syncer.scheduleWithFixedDelay(this::sync, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Record that a message has been delivered. Messages must be acknowledged in
+	 * the order they were taken; acknowledging a message that never left memory
+	 * is a no-op.
+	 *
+	 * @param messageObject the delivered message
+	 */
+	public void acknowledge(MessageObject messageObject) {
+		lock.lock();
+		try {
+			if (messageObject.getLogOffset() > ackOffset) {
+				ackOffset = messageObject.getLogOffset();
+				cursorDirty = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Change the memory and disk limits in place. Nothing already queued is
+	 * dropped; after shrinking, new messages spill or are refused until the queue
+	 * has drained below the new limits.
+	 *
+	 * @param memoryCapacity messages kept in memory
+	 * @param maxBytes       size limit of the log
+	 */
+	public void resize(int memoryCapacity, long maxBytes) {
+		lock.lock();
+		try {
+			this.memoryCapacity = memoryCapacity;
+			this.maxBytes = maxBytes;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return bytes held in the log, including records already acknowledged but
+	 *         not yet compacted away
+	 */
+	public long getSpilledBytes() {
+		lock.lock();
+		try {
+			return diskBytes();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(MessageObject messageObject) {
+		lock.lock();
+		try {
+			return enqueue(messageObject);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(MessageObject messageObject) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (!enqueue(messageObject)) {
+				notFull.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(MessageObject messageObject, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (!enqueue(messageObject)) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public MessageObject poll() {
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public MessageObject take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			MessageObject messageObject;
+			while ((messageObject = dequeue()) == null) {
+				notEmpty.await();
+			}
+			return messageObject;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public MessageObject poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			MessageObject messageObject;
+			while ((messageObject = dequeue()) == null) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return messageObject;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public MessageObject peek() {
+		lock.lock();
+		try {
+			if (!memory.isEmpty()) {
+				return memory.peek();
+			}
+			return diskCount > 0 ? readRecord(false) : null;
+		} catch (IOException e) {
+			LOG.warn("Spill read error: {}", e.getMessage());
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return (int) Math.min(Integer.MAX_VALUE, memory.size() + diskCount);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The log is bounded by bytes rather than by count, so this reports either
+	 * the free memory slots or, once spilling, whether the log has room at all.
+	 */
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			if (diskCount == 0 && memory.size() < memoryCapacity) {
+				return memoryCapacity - memory.size();
+			}
+			return diskBytes() < maxBytes ? Integer.MAX_VALUE : 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super MessageObject> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super MessageObject> c, int maxElements) {
+		int n = 0;
+		MessageObject messageObject;
+		while (n < maxElements && (messageObject = poll()) != null) {
+			c.add(messageObject);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Remove a message still in memory; spilled messages can only be consumed.
+	 */
+	@Override
+	public boolean remove(Object o) {
+		lock.lock();
+		try {
+			if (memory.remove(o)) {
+				notFull.signal();
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Iterator<MessageObject> iterator() {
+		lock.lock();
+		try {
+			return new SnapshotIterator(new ArrayList<>(memory), readOffset, writeOffset);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sync the log and write the messages still in memory to the snapshot, so
+	 * the next start delivers them first.
+	 */
+	@Override
+	public void close() throws IOException {
+		syncer.shutdownNow();
+		lock.lock();
+		try {
+			sync();
+			try {
+				if (!memory.isEmpty()) {
+					saveMemory();
+				}
+			} finally {
+				writeChannel.close();
+				if (readChannel != null) {
+					readChannel.close();
+				}
+				cursorChannel.close();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Caller must hold the lock
+	private boolean enqueue(MessageObject messageObject) {
+		if (diskCount == 0 && memory.size() < memoryCapacity) {
+			memory.add(messageObject);
+			notEmpty.signal();
+			return true;
+		}
+		try {
+			if (!append(messageObject)) {
+				return false;
+			}
+			notEmpty.signal();
+			return true;
+		} catch (IOException e) {
+			LOG.warn("Spill write error: {}", e.getMessage());
+			return false;
+		}
+	}
+
+	// Caller must hold the lock
+	private MessageObject dequeue() {
+		MessageObject messageObject = memory.poll();
+		if (messageObject == null && diskCount > 0) {
+			try {
+				messageObject = readRecord(true);
+			} catch (IOException e) {
+				LOG.warn("Spill read error: {}", e.getMessage());
+			}
+		}
+		if (messageObject != null) {
+			notFull.signal();
+		}
+		return messageObject;
+	}
+
+	private boolean append(MessageObject messageObject) throws IOException {
+		ByteBuffer record = encode(messageObject);
+		int recordLength = record.remaining();
+
+		if (diskBytes() + recordLength > maxBytes) {
+			return false;
+		}
+		if (writeOffset > writeBase && writeOffset - writeBase + recordLength > segmentBytes) {
+			rotate();
+		}
+
+		while (record.hasRemaining()) {
+			writeChannel.write(record);
+		}
+
+		writeOffset += recordLength;
+		diskCount++;
+		if (++unsynced >= syncBatch) {
+			writeChannel.force(false);
+			unsynced = 0;
+		}
+		return true;
+	}
+
+	private MessageObject readRecord(boolean advance) throws IOException {
+		MessageObject messageObject = readFrom(readOffset, writeOffset, this::readChannel);
+		if (messageObject == null) {
+			diskCount = 0;
+		} else if (advance) {
+			readOffset = messageObject.getLogOffset();
+			diskCount--;
+		}
+		return messageObject;
+	}
+
+	// The consumer's channel, kept open on the segment being read
+	private FileChannel readChannel(long base) throws IOException {
+		if (readBase != base) {
+			if (readChannel != null) {
+				readChannel.close();
+			}
+			readChannel = FileChannel.open(segments.get(base), StandardOpenOption.READ);
+			readBase = base;
+		}
+		return readChannel;
+	}
+
+	/**
+	 * Read the first good record at or after offset and before end, moving on
+	 * to the next segment at the end of one or at a damaged record. Caller must
+	 * hold the lock.
+	 *
+	 * @return the message, with the offset of the record after it as its log
+	 *         offset, or null if there is none
+	 */
+	private MessageObject readFrom(long offset, long end, SegmentOpener opener) throws IOException {
+		while (offset < end) {
+			long base = segments.floorKey(offset);
+			Long nextBase = segments.higherKey(base);
+			// Segments are contiguous, so each one ends where the next begins
+			long segmentEnd = nextBase == null ? writeOffset : nextBase;
+			if (offset >= segmentEnd) {
+				if (nextBase == null) {
+					return null;
+				}
+				offset = nextBase;
+				continue;
+			}
+
+			FileChannel channel = opener.open(base);
+			long position = offset - base;
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+			readFully(channel, header, position);
+			int bodyLength = header.getInt(0);
+			if (bodyLength <= 0 || offset + RECORD_HEADER + bodyLength > segmentEnd) {
+				LOG.warn("Skipping damaged spill segment {}", segments.get(base));
+				offset = segmentEnd;
+				continue;
+			}
+			ByteBuffer body = ByteBuffer.allocate(bodyLength);
+			readFully(channel, body, position + RECORD_HEADER);
+			MessageObject messageObject = decode(header, body, offset + RECORD_HEADER + bodyLength);
+			if (messageObject == null) {
+				LOG.warn("Skipping damaged spill segment {}", segments.get(base));
+				offset = segmentEnd;
+				continue;
+			}
+			return messageObject;
+		}
+		return null;
+	}
+
+	private static ByteBuffer encode(MessageObject messageObject) {
+		byte[] topic = messageObject.getTopic().getBytes(StandardCharsets.UTF_8);
+		byte[] payload = messageObject.getMessage();
+		int bodyLength = 2 + topic.length + 1 + payload.length;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + bodyLength);
+		record.position(RECORD_HEADER);
+		record.putShort((short) topic.length).put(topic).put((byte) messageObject.getQos()).put(payload);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER, bodyLength);
+		record.putInt(0, bodyLength).putInt(4, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	// The message in a record, or null if its CRC does not match
+	private static MessageObject decode(ByteBuffer header, ByteBuffer body, long logOffset) {
+		int bodyLength = body.capacity();
+		CRC32 crc = new CRC32();
+		crc.update(body.array(), 0, bodyLength);
+		if ((int) crc.getValue() != header.getInt(4)) {
+			return null;
+		}
+		short topicLength = body.getShort(0);
+		String topic = new String(body.array(), 2, topicLength, StandardCharsets.UTF_8);
+		int qos = body.get(2 + topicLength);
+		byte[] payload = new byte[bodyLength - 3 - topicLength];
+		System.arraycopy(body.array(), 3 + topicLength, payload, 0, payload.length);
+		return new MessageObject(topic, qos, payload, logOffset);
+	}
+
+	// Written through a temporary file, so a crash leaves the old snapshot or none
+	private void saveMemory() throws IOException {
+		Path temporary = directory.resolve(MEMORY_FILE + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for (MessageObject messageObject : memory) {
+				ByteBuffer record = encode(messageObject);
+				while (record.hasRemaining()) {
+					channel.write(record);
+				}
+			}
+			channel.force(false);
+		}
+		Files.move(temporary, directory.resolve(MEMORY_FILE), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		LOG.info("Saved {} in-memory messages to {}", memory.size(), directory);
+	}
+
+	// Load the snapshot left by close(), up to the first damaged record, and
+	// delete it; these messages are the oldest, so they go out first
+	private void loadMemory() throws IOException {
+		Path path = directory.resolve(MEMORY_FILE);
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long position = 0;
+			while (position + RECORD_HEADER <= size) {
+				ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+				readFully(channel, header, position);
+				int bodyLength = header.getInt(0);
+				if (bodyLength <= 0 || position + RECORD_HEADER + bodyLength > size) {
+					break;
+				}
+				ByteBuffer body = ByteBuffer.allocate(bodyLength);
+				readFully(channel, body, position + RECORD_HEADER);
+				MessageObject messageObject = decode(header, body, -1);
+				if (messageObject == null) {
+					break;
+				}
+				memory.add(messageObject);
+				position += RECORD_HEADER + bodyLength;
+			}
+			if (position < size) {
+				LOG.warn("Ignoring the damaged end of {}", path);
+			}
+		}
+		Files.delete(path);
+	}
+
+	private void rotate() throws IOException {
+		writeChannel.force(false);
+		writeChannel.close();
+		unsynced = 0;
+		openWriteSegment(writeOffset);
+	}
+
+	private void openWriteSegment(long base) throws IOException {
+		Path path = directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+		writeChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		writeChannel.position(writeChannel.size());
+		writeBase = base;
+		writeOffset = base + writeChannel.size();
+		segments.put(base, path);
+	}
+
+	private long diskBytes() {
+		return writeOffset - segments.firstKey();
+	}
+
+	/**
+	 * Flush pending writes and the ack cursor to disk, and delete segments that
+	 * have been fully acknowledged.
+	 */
+	private void sync() {
+		lock.lock();
+		try {
+			if (unsynced > 0) {
+				writeChannel.force(false);
+				unsynced = 0;
+			}
+			if (cursorDirty) {
+				ByteBuffer cursor = ByteBuffer.allocate(8).putLong(0, ackOffset);
+				cursorChannel.write(cursor, 0);
+				cursorChannel.force(false);
+				cursorDirty = false;
+				compact();
+			}
+		} catch (IOException e) {
+			LOG.warn("Spill sync error: {}", e.getMessage());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void compact() throws IOException {
+		boolean deleted = false;
+		while (segments.size() > 1) {
+			Map.Entry<Long, Path> oldest = segments.firstEntry();
+			long next = segments.higherKey(oldest.getKey());
+			if (next > ackOffset) {
+				break;
+			}
+			if (readBase == oldest.getKey()) {
+				readChannel.close();
+				readChannel = null;
+				readBase = -1;
+			}
+			Files.deleteIfExists(oldest.getValue());
+			segments.remove(oldest.getKey());
+			deleted = true;
+		}
+		if (deleted) {
+			notFull.signalAll();
+		}
+	}
+
+	/**
+	 * Rebuild state from the segment files and the ack cursor. A torn record at
+	 * the end of the newest segment (from a crash mid-write) is truncated away.
+	 */
+	private void recover() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+			}
+		}
+
+		if (cursorChannel.size() >= 8) {
+			ByteBuffer cursor = ByteBuffer.allocate(8);
+			readFully(cursorChannel, cursor, 0);
+			ackOffset = cursor.getLong(0);
+		}
+
+		if (segments.isEmpty()) {
+			openWriteSegment(ackOffset);
+		} else {
+			openWriteSegment(segments.lastKey());
+		}
+		if (ackOffset < segments.firstKey()) {
+			ackOffset = segments.firstKey();
+		}
+		readOffset = ackOffset;
+		loadMemory();
+
+		// Count the unacknowledged records, stopping at the first bad one
+		long offset = ackOffset;
+		for (Map.Entry<Long, Path> segment : segments.tailMap(segments.floorKey(ackOffset), true).entrySet()) {
+			try (FileChannel channel = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+				long size = channel.size();
+				long position = Math.max(0, offset - segment.getKey());
+				while (position + RECORD_HEADER <= size) {
+					ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+					readFully(channel, header, position);
+					int bodyLength = header.getInt(0);
+					if (bodyLength <= 0 || position + RECORD_HEADER + bodyLength > size) {
+						break;
+					}
+					ByteBuffer body = ByteBuffer.allocate(bodyLength);
+					readFully(channel, body, position + RECORD_HEADER);
+					CRC32 crc = new CRC32();
+					crc.update(body.array(), 0, bodyLength);
+					if ((int) crc.getValue() != header.getInt(4)) {
+						break;
+					}
+					position += RECORD_HEADER + bodyLength;
+					diskCount++;
+				}
+				if (segment.getKey() == writeBase && position < size) {
+					LOG.warn("Truncating damaged spill segment {}", segment.getValue());
+					writeChannel.truncate(position);
+					writeOffset = writeBase + position;
+				}
+				offset = segment.getKey() + position;
+			}
+		}
+
+		LOG.info("Recovered {} in-memory and {} spilled messages from {}", memory.size(), diskCount, directory);
+	}
+
+	private interface SegmentOpener {
+		FileChannel open(long base) throws IOException;
+	}
+
+	// Memory as it was, then the log records from the consumer's position as
+	// it was, each read under the lock as the iteration reaches it
+	private class SnapshotIterator implements Iterator<MessageObject> {
+		private final Iterator<MessageObject> inMemory;
+		private final long end;
+		private long offset;
+		private MessageObject next;
+
+		SnapshotIterator(List<MessageObject> inMemory, long offset, long end) {
+			this.inMemory = inMemory.iterator();
+			this.offset = offset;
+			this.end = end;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				next = inMemory.hasNext() ? inMemory.next() : readNext();
+			}
+			return next != null;
+		}
+
+		@Override
+		public MessageObject next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			MessageObject messageObject = next;
+			next = null;
+			return messageObject;
+		}
+
+		private MessageObject readNext() {
+			List<FileChannel> opened = new ArrayList<>(1);
+			lock.lock();
+			try {
+				// Records behind the ack cursor may have been compacted away meanwhile
+				offset = Math.max(offset, Math.max(ackOffset, segments.firstKey()));
+				MessageObject messageObject = readFrom(offset, end, base -> {
+					FileChannel channel = FileChannel.open(segments.get(base), StandardOpenOption.READ);
+					opened.add(channel);
+					return channel;
+				});
+				if (messageObject != null) {
+					offset = messageObject.getLogOffset();
+				}
+				return messageObject;
+			} catch (IOException e) {
+				LOG.warn("Spill read error: {}", e.getMessage());
+				return null;
+			} finally {
+				lock.unlock();
+				for (FileChannel channel : opened) {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						// Only read from
+					}
+				}
+			}
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0) {
+				throw new IOException("Unexpected end of spill file");
+			}
+		}
+	}
+}
@@ -6,22 +6,31 @@ package com.aws.greengrass.bufferedmqttbridge;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.MqttSecurityException;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+import com.aws.greengrass.componentcommon.MetricsReporter;
 
 import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPC;
+import software.amazon.awssdk.aws.greengrass.SubscribeToIoTCoreResponseHandler;
 import software.amazon.awssdk.aws.greengrass.model.GetConfigurationRequest;
 import software.amazon.awssdk.aws.greengrass.model.GetConfigurationResponse;
 import software.amazon.awssdk.aws.greengrass.model.IoTCoreMessage;
@@ -32,36 +41,77 @@ import software.amazon.awssdk.eventstreamrpc.StreamResponseHandler;
 
 public class Subscriber implements Closeable {
 
+    private static final Log LOG = Log.get("Subscriber");
+
     protected static final String MAPPINGS = "mappings";
     protected static final String CONNECTION_INFO = "connectionInfo";
     protected static final String LOCAL_TOPICS = "localTopics";
     protected static final String CLOUD_TOPICS = "cloudTopics";
+    protected static final String ORDERED_TOPICS = "orderedTopics";
+    protected static final String TOPIC_PRIORITIES = "topicPriorities";
+    protected static final String MESSAGE_FILTERS = "messageFilters";
+    protected static final String FILTER_MAX_TOPICS = "filterMaxTopics";
+    protected static final String AGGREGATIONS = "aggregations";
+    protected static final String OVERFLOW_POLICY = "overflowPolicy";
+    protected static final String OVERFLOW_BLOCK_TIMEOUT_MS = "overflowBlockTimeoutMs";
+    protected static final String OVERFLOW_SAMPLE_RATE = "overflowSampleRate";
+    protected static final String SHARED_SUBSCRIPTION_GROUP = "sharedSubscriptionGroup";
+    protected static final String SUBSCRIBER_WORKERS = "subscriberWorkers";
+    protected static final String RECONNECT_MIN_DELAY_MS = "reconnectMinDelayMs";
+    protected static final String RECONNECT_MAX_DELAY_MS = "reconnectMaxDelayMs";
+    protected static final String DOWNLINK_QUEUE_SIZE = "downlinkQueueSize";
+    protected static final String DOWNLINK_MAX_IN_FLIGHT = "downlinkMaxInFlight";
+    protected static final String DOWNLINK_MAX_ATTEMPTS = "downlinkMaxAttempts";
+    protected static final String METRICS_TOPIC = "metricsTopic";
+    protected static final String METRICS_INTERVAL_MS = "metricsIntervalMs";
+    protected static final String METRICS_PORT = "metricsPort";
+
+    private static final LongAdder RECEIVED = Metrics.registry().counter("bridge_local_received_total",
+            "Messages received from the local broker");
+    private static final Log.Tally RECEIVED_TALLY = LOG.tally("messages received from the local broker");
 
     private final GreengrassCoreIPC ipcClient;
     private String brokerUri;
     private String username;
     private String password;
     private String clientId;
-    private MqttClient mqttClient;
-    private ArrayBlockingQueue<MessageObject> messageQueue;
-    private List<String> localTopics;
+    private MqttConnectOptions options;
+    private MqttAsyncClient mqttClient;
+    // The first worker's client is mqttClient
+    private final List<Worker> workers = new ArrayList<>();
+    private String sharedGroup;
+    private List<Object> workerSettings;
+    private CloudForwarder cloudForwarder;
+    private MetricsReporter metricsReporter;
+    private BlockingQueue<MessageObject> messageQueue;
+    private volatile List<String> localTopics;
+    private volatile List<String> orderedTopics;
     private List<String> cloudTopics;
+    private final Map<String, SubscribeToIoTCoreResponseHandler> cloudStreams = new HashMap<>();
+    private volatile OverflowPolicy overflowPolicy;
+    private List<Object> overflowSettings;
+    private volatile MessageFilter messageFilter;
+    private List<Object> filterSettings;
+    private volatile MessageAggregator aggregator;
+    private Object aggregations;
+    private boolean subscribed;
 
-    public Subscriber(GreengrassCoreIPC ipcClient, ArrayBlockingQueue<MessageObject> messageQueue) {
+    public Subscriber(GreengrassCoreIPC ipcClient, BlockingQueue<MessageObject> messageQueue) {
         this.ipcClient = ipcClient;
         this.messageQueue = messageQueue;
     }
 
     /**
      * Get the initial configuration from Greengrass and connect to the broker.
-     * Does NOT dynamically reconfigure when configuration changes.
+     * Later changes are applied by {@link #reconfigure()}.
      *
      * @throws ExecutionException if reading configuration fails
      * @throws InterruptedException if anything is interrupted
      * @throws MqttException if connecting to the broker fails
+     * @throws IOException if the metrics endpoint can not be started
      */
     @SuppressWarnings("unchecked")
-    public void startup() throws ExecutionException, InterruptedException, MqttException {
+    public void startup() throws ExecutionException, InterruptedException, MqttException, IOException {
         GetConfigurationRequest getConfigurationRequest = new GetConfigurationRequest();
 
         // Get MQTT Topics
@@ -70,6 +120,10 @@ public class Subscriber implements Closeable {
 
         localTopics = (List<String>) response.getValue().get(LOCAL_TOPICS);
         cloudTopics = (List<String>) response.getValue().get(CLOUD_TOPICS);
+        orderedTopics = (List<String>) response.getValue().get(ORDERED_TOPICS);
+        Map<String, Object> topicPriorities = (Map<String, Object>) response.getValue().get(TOPIC_PRIORITIES);
+        Map<String, Object> messageFilters = (Map<String, Object>) response.getValue().get(MESSAGE_FILTERS);
+        Map<String, Object> newAggregations = (Map<String, Object>) response.getValue().get(AGGREGATIONS);
 
         // Get MQTT Connection Information
         getConfigurationRequest.setKeyPath(Arrays.asList(CONNECTION_INFO));
@@ -79,66 +133,69 @@ public class Subscriber implements Closeable {
         username = (String) response.getValue().get("username");
         password = (String) response.getValue().get("password");
         clientId = (String) response.getValue().get("clientId");
+        sharedGroup = (String) response.getValue().get(SHARED_SUBSCRIPTION_GROUP);
+        workerSettings = Arrays.asList(sharedGroup, response.getValue().get(SUBSCRIBER_WORKERS));
+        int workerCount = Math.max(1, Main.intValue(response.getValue(), SUBSCRIBER_WORKERS, 1));
+        if (workerCount > 1 && sharedGroup == null) {
+            // Every worker would get every message
+            LOG.warn("{} needs {}, using one worker", SUBSCRIBER_WORKERS, SHARED_SUBSCRIPTION_GROUP);
+            workerCount = 1;
+        }
+
+        // What to do with arriving messages when the queue is full
+        updateOverflowPolicy(response.getValue(), topicPriorities);
+        // Which arriving messages are worth sending at all
+        updateMessageFilter(response.getValue(), messageFilters);
+        // High-rate topics are summarized per window instead
+        updateAggregator(newAggregations);
 
         // Create our Local Mosquitto MQTT Client and connect
-        mqttClient = new MqttClient(brokerUri, clientId);
-        MqttConnectOptions options = new MqttConnectOptions();
-        options.setAutomaticReconnect(true);
+        mqttClient = new MqttAsyncClient(brokerUri, clientId);
+        int downlinkMaxInFlight = Main.intValue(response.getValue(), DOWNLINK_MAX_IN_FLIGHT, 10);
+        options = new MqttConnectOptions();
         options.setCleanSession(true);
+        options.setMaxInflight(downlinkMaxInFlight);
         if (username != null) {
             options.setUserName(username);
         }
         if (password != null) {
             options.setPassword(password.toCharArray());
         }
-        System.out.println("Connecting to broker...");
-        mqttClient.connectWithResult(options).waitForCompletion();
-        System.out.println("Connected to broker");
-
-        mqttClient.setCallback(new MqttCallback() {
-
-            @Override
-            public void connectionLost(Throwable throwable) {
-                // Handle reconnection here
-                System.err.println("Lost connection to broker!!! Waiting 10 seconds");
-                try {
-                    TimeUnit.SECONDS.sleep(10);
-                    System.out.println("Connecting to broker...");
-                    mqttClient.connectWithResult(options).waitForCompletion();
-                    System.out.println("Connected to broker");
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (MqttSecurityException e) {
-                    e.printStackTrace();
-                } catch (MqttException e) {
-                    e.printStackTrace();
-                }
-            }
+        long reconnectMinDelayMs = Main.longValue(response.getValue(), RECONNECT_MIN_DELAY_MS, 1000);
+        long reconnectMaxDelayMs = Main.longValue(response.getValue(), RECONNECT_MAX_DELAY_MS, 60_000);
+        // Cloud to local forwards are queued and published off the IPC thread
+        cloudForwarder = new CloudForwarder(mqttClient,
+                Main.intValue(response.getValue(), DOWNLINK_QUEUE_SIZE, 1000), downlinkMaxInFlight,
+                reconnectMinDelayMs, reconnectMaxDelayMs,
+                Main.intValue(response.getValue(), DOWNLINK_MAX_ATTEMPTS, 10));
+        for (int i = 0; i < workerCount; i++) {
+            MqttAsyncClient client = i == 0 ? mqttClient : new MqttAsyncClient(brokerUri, clientId + "-" + i);
+            workers.add(new Worker(i, client, reconnectMinDelayMs, reconnectMaxDelayMs));
+        }
+        if (sharedGroup != null) {
+            LOG.info("Sharing local topics in group {} across {} worker(s)", sharedGroup, workerCount);
+        }
 
-            @Override
-            public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
-                // Instead of publishing to IoT Core, you could instead write into a Stream
-                // Manager stream
-                // and have that data sent to Kinesis, IoT Analytics, or more
-                //
-                // Assuming you had created a stream manager client, then:
-                // streamManagerClient.appendMessage("streamName", mqttMessage.getPayload());
-                //
-                MessageObject obj = new MessageObject(topic, mqttMessage);
-                System.out.println("Local Message Arrived");
-                if (messageQueue.remainingCapacity() > 0) {
-                    messageQueue.put(obj);
-                } else {
-                    throw new Exception("Message Queue is FULL! Dropping message.");
-                }
-            }
+        for (Worker worker : workers) {
+            worker.reconnectManager.connect();
+        }
+        cloudForwarder.start();
 
-            @Override
-            public void deliveryComplete(IMqttDeliveryToken t) {
-                System.out.println("Message delivery complete - " + t.toString());
-            }
-        });
+        registerMetrics();
+        metricsReporter = new MetricsReporter(Metrics.registry(), mqttClient,
+                (String) response.getValue().get(METRICS_TOPIC),
+                Main.longValue(response.getValue(), METRICS_INTERVAL_MS, 60_000));
+        metricsReporter.start();
+        if (response.getValue().get(METRICS_PORT) != null) {
+            metricsReporter.serve(Main.intValue(response.getValue(), METRICS_PORT, 9100));
+        }
+    }
 
+    /**
+     * @return the client for the local broker, once {@link #startup()} has run
+     */
+    public MqttAsyncClient getMqttClient() {
+        return mqttClient;
     }
 
     /**
@@ -149,58 +206,395 @@ public class Subscriber implements Closeable {
      * @throws InterruptedException if subscribing is interrupted
      */
     public void run() throws MqttException, InterruptedException {
-        System.out.println("Subscribing to local topics");
-        // Subscribe to broker's messages
-        mqttClient.subscribeWithResponse(localTopics.toArray(new String[0])).waitForCompletion();
+        synchronized (this) {
+            LOG.info("Subscribing to local topics");
+            // Subscribe to broker's messages
+            for (Worker worker : workers) {
+                subscribe(worker.client, subscriptions(worker.index, localTopics, orderedTopics));
+            }
+
+            LOG.info("Subscribing to cloud topics");
+            // Subscribe to IoT Core's messages
+            for (String topic : cloudTopics) {
+                subscribeCloudTopic(topic);
+            }
+            subscribed = true;
+        }
+
+        // Just keep the main thread alive here.
+        while (!Thread.currentThread().isInterrupted()) {
+            Thread.sleep(100_000);
+        }
+    }
 
-        System.out.println("Subscribing to cloud topics");
-        // Subscribe to IoT Core's messages
+    /**
+     * Apply a configuration update without reconnecting. Local and cloud
+     * subscriptions are changed by the difference between the old and new topic
+     * lists, and the overflow policy, message filters and aggregations are
+     * replaced if their settings changed.
+     * Credentials are used from the next reconnect; a new broker URI, client ID,
+     * share group or number of workers needs a restart.
+     *
+     * @throws ExecutionException if reading configuration fails
+     * @throws InterruptedException if anything is interrupted
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void reconfigure() throws ExecutionException, InterruptedException {
+        GetConfigurationRequest getConfigurationRequest = new GetConfigurationRequest();
+        getConfigurationRequest.setKeyPath(Arrays.asList(MAPPINGS));
+        Map<String, Object> mappings = ipcClient.getConfiguration(getConfigurationRequest, Optional.empty())
+                .getResponse().get().getValue();
+        getConfigurationRequest.setKeyPath(Arrays.asList(CONNECTION_INFO));
+        Map<String, Object> connectionInfo = ipcClient.getConfiguration(getConfigurationRequest, Optional.empty())
+                .getResponse().get().getValue();
+
+        List<String> newLocalTopics = (List<String>) mappings.get(LOCAL_TOPICS);
+        List<String> newCloudTopics = (List<String>) mappings.get(CLOUD_TOPICS);
+        List<String> newOrderedTopics = (List<String>) mappings.get(ORDERED_TOPICS);
+        if (subscribed) {
+            updateSubscriptions(newLocalTopics, newOrderedTopics, newCloudTopics);
+        } else {
+            // run() has not subscribed yet and will use the new lists
+            localTopics = newLocalTopics;
+            orderedTopics = newOrderedTopics;
+            cloudTopics = newCloudTopics;
+        }
+
+        updateOverflowPolicy(connectionInfo, (Map<String, Object>) mappings.get(TOPIC_PRIORITIES));
+        updateMessageFilter(connectionInfo, (Map<String, Object>) mappings.get(MESSAGE_FILTERS));
+        updateAggregator((Map<String, Object>) mappings.get(AGGREGATIONS));
+
+        String newUsername = (String) connectionInfo.get("username");
+        String newPassword = (String) connectionInfo.get("password");
+        if (!Objects.equals(username, newUsername) || !Objects.equals(password, newPassword)) {
+            LOG.info("Broker credentials changed, using them from the next reconnect");
+            username = newUsername;
+            password = newPassword;
+            options.setUserName(username);
+            options.setPassword(password == null ? null : password.toCharArray());
+        }
+        if (!Objects.equals(brokerUri, connectionInfo.get("brokerUri"))
+                || !Objects.equals(clientId, connectionInfo.get("clientId"))) {
+            LOG.info("Broker URI or client ID changed, restart the component to apply");
+        }
+        if (!workerSettings.equals(Arrays.asList(connectionInfo.get(SHARED_SUBSCRIPTION_GROUP),
+                connectionInfo.get(SUBSCRIBER_WORKERS)))) {
+            LOG.info("Shared subscription group or workers changed, restart the component to apply");
+        }
+    }
+
+    /**
+     * Open the IoT Core subscriptions again after the IPC connection was
+     * re-established; streams do not survive a reconnect.
+     */
+    public synchronized void resubscribeCloudTopics() {
+        if (!subscribed) {
+            // run() has not subscribed yet
+            return;
+        }
+        LOG.info("Resubscribing to cloud topics {}", cloudTopics);
         for (String topic : cloudTopics) {
-            SubscribeToIoTCoreRequest request = new SubscribeToIoTCoreRequest();
-            request.setTopicName(topic);
-            request.setQos(QOS.AT_MOST_ONCE);
+            SubscribeToIoTCoreResponseHandler stream = cloudStreams.remove(topic);
+            if (stream != null) {
+                stream.closeStream();
+            }
+            subscribeCloudTopic(topic);
+        }
+    }
 
-            ipcClient.subscribeToIoTCore(request, Optional.of(new StreamResponseHandler<IoTCoreMessage>() {
-                @Override
-                public void onStreamEvent(IoTCoreMessage ioTCoreMessage) {
-                    // Forward message to local broker
-                    System.out.println("Forwarding message to local broker");
-                    MQTTMessage message = ioTCoreMessage.getMessage();
-                    try {
-                        mqttClient.publish(message.getTopicName(), new MqttMessage(message.getPayload()));
-                    } catch (MqttException e) {
-                        // Handle publish errors
-                        System.out.println("Publish Error: " + e.getMessage());
-                        e.printStackTrace();
-                    }
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    private void updateSubscriptions(List<String> newLocalTopics, List<String> newOrderedTopics,
+            List<String> newCloudTopics) {
+        // Local topics, set first so a reconnect meanwhile restores the new lists
+        List<String> oldLocalTopics = localTopics;
+        List<String> oldOrderedTopics = orderedTopics;
+        localTopics = newLocalTopics;
+        orderedTopics = newOrderedTopics;
+        for (Worker worker : workers) {
+            List<String> oldSubscriptions = subscriptions(worker.index, oldLocalTopics, oldOrderedTopics);
+            List<String> newSubscriptions = subscriptions(worker.index, newLocalTopics, newOrderedTopics);
+            List<String> removed = new ArrayList<>(oldSubscriptions);
+            removed.removeAll(newSubscriptions);
+            List<String> added = new ArrayList<>(newSubscriptions);
+            added.removeAll(oldSubscriptions);
+            try {
+                if (!removed.isEmpty()) {
+                    LOG.info("Unsubscribing from local topics {}", removed);
+                    worker.client.unsubscribe(removed.toArray(new String[0])).waitForCompletion();
                 }
+                if (!added.isEmpty()) {
+                    LOG.info("Subscribing to local topics {}", added);
+                    subscribe(worker.client, added);
+                }
+            } catch (MqttException e) {
+                // Disconnected, the reconnect will subscribe to the new lists
+                LOG.warn("Subscribe Error: {}", e.getMessage());
+            }
+        }
 
-                @Override
-                public boolean onStreamError(Throwable throwable) {
-                    throwable.printStackTrace();
-                    return false;
+        // Cloud topics
+        for (String topic : cloudTopics) {
+            if (!newCloudTopics.contains(topic)) {
+                LOG.info("Unsubscribing from cloud topic {}", topic);
+                SubscribeToIoTCoreResponseHandler stream = cloudStreams.remove(topic);
+                if (stream != null) {
+                    stream.closeStream();
                 }
+            }
+        }
+        for (String topic : newCloudTopics) {
+            if (!cloudTopics.contains(topic)) {
+                LOG.info("Subscribing to cloud topic {}", topic);
+                subscribeCloudTopic(topic);
+            }
+        }
+        cloudTopics = newCloudTopics;
+    }
 
-                @Override
-                public void onStreamClosed() {
+    private void updateOverflowPolicy(Map<String, Object> connectionInfo, Map<String, Object> topicPriorities) {
+        String name = (String) connectionInfo.get(OVERFLOW_POLICY);
+        long blockTimeoutMs = Main.longValue(connectionInfo, OVERFLOW_BLOCK_TIMEOUT_MS, 1000);
+        int sampleRate = Main.intValue(connectionInfo, OVERFLOW_SAMPLE_RATE, 10);
+        List<Object> settings = Arrays.asList(name, blockTimeoutMs, sampleRate, topicPriorities);
+        if (!settings.equals(overflowSettings)) {
+            TopicPriorities priorities;
+            if (messageQueue instanceof PriorityMessageQueue) {
+                // Rank messages as the scheduler does, by the classes it was started with
+                priorities = ((PriorityMessageQueue) messageQueue).getTopicPriorities();
+                if (OverflowPolicy.DROP_NEWEST.equals(name)) {
+                    // Would drop an arriving alarm to keep queued telemetry
+                    LOG.warn("{} {} drops high priority messages under a priority scheduler, using {}",
+                            OVERFLOW_POLICY, name, OverflowPolicy.PRIORITY);
+                }
+                if (name == null || OverflowPolicy.DROP_NEWEST.equals(name)) {
+                    name = OverflowPolicy.PRIORITY;
                 }
-            }));
+            } else {
+                priorities = new TopicPriorities(topicPriorities);
+            }
+            if (overflowSettings != null) {
+                LOG.info("Overflow policy is now {}", name == null ? OverflowPolicy.DROP_NEWEST : name);
+            }
+            overflowPolicy = OverflowPolicy.create(name, blockTimeoutMs, sampleRate, priorities);
+            overflowSettings = settings;
         }
+    }
 
-        // Just keep the main thread alive here.
-        while (!Thread.currentThread().isInterrupted()) {
-            Thread.sleep(100_000);
+    private void updateMessageFilter(Map<String, Object> connectionInfo, Map<String, Object> messageFilters) {
+        int maxTopics = Main.intValue(connectionInfo, FILTER_MAX_TOPICS, 10_000);
+        List<Object> settings = Arrays.asList(messageFilters, maxTopics);
+        if (!settings.equals(filterSettings)) {
+            if (filterSettings != null) {
+                LOG.info("Message filters changed, per-topic state starts over");
+            }
+            messageFilter = new MessageFilter(messageFilters, maxTopics);
+            filterSettings = settings;
+        }
+    }
+
+    private void updateAggregator(Map<String, Object> newAggregations) {
+        if (aggregator != null && Objects.equals(aggregations, newAggregations)) {
+            return;
+        }
+        MessageAggregator old = aggregator;
+        MessageAggregator replacement = new MessageAggregator(newAggregations, this::enqueue);
+        replacement.start();
+        aggregator = replacement;
+        aggregations = newAggregations;
+        if (old != null) {
+            LOG.info("Aggregations changed, sending the current windows early");
+            old.close();
+        }
+    }
+
+    // Called by every worker's callback thread and the aggregator at once
+    private void enqueue(MessageObject messageObject) {
+        // Never throws, so a full queue can not take down the local connection
+        overflowPolicy.enqueue(messageQueue, messageObject);
+    }
+
+    private void subscribeCloudTopic(String topic) {
+        SubscribeToIoTCoreRequest request = new SubscribeToIoTCoreRequest();
+        request.setTopicName(topic);
+        request.setQos(QOS.AT_MOST_ONCE);
+
+        cloudStreams.put(topic, ipcClient.subscribeToIoTCore(request, Optional.of(new StreamResponseHandler<IoTCoreMessage>() {
+            @Override
+            public void onStreamEvent(IoTCoreMessage ioTCoreMessage) {
+                // Forward message to local broker
+                MQTTMessage message = ioTCoreMessage.getMessage();
+                // Only queues, so a slow local broker can not hold up the IPC stream
+                cloudForwarder.forward(message.getTopicName(), message.getPayload());
+            }
+
+            @Override
+            public boolean onStreamError(Throwable throwable) {
+                LOG.error("IoT Core subscription to {} failed", topic, throwable);
+                return false;
+            }
+
+            @Override
+            public void onStreamClosed() {
+            }
+        })));
+    }
+
+    private void subscribe(MqttAsyncClient client, List<String> topics) throws MqttException {
+        if (topics.isEmpty()) {
+            return;
+        }
+        int[] qos = new int[topics.size()];
+        Arrays.fill(qos, 1);
+        client.subscribe(topics.toArray(new String[0]), qos).waitForCompletion();
+    }
+
+    /**
+     * The subscriptions of one worker. Without a share group the only worker
+     * subscribes to the local topics as they are. With one, every worker
+     * subscribes to $share/&lt;group&gt;/&lt;topic&gt;, so the broker hands each
+     * message to just one of the subscribers in the group, here or in another
+     * bridge; topics also in orderedTopics are instead subscribed as they are by
+     * the first worker alone, so they arrive in order.
+     */
+    private List<String> subscriptions(int worker, List<String> topics, List<String> ordered) {
+        if (sharedGroup == null) {
+            return worker == 0 ? topics : Collections.emptyList();
         }
+        List<String> subscriptions = new ArrayList<>();
+        for (String topic : topics) {
+            if (ordered != null && ordered.contains(topic)) {
+                if (worker == 0) {
+                    subscriptions.add(topic);
+                }
+            } else {
+                subscriptions.add("$share/" + sharedGroup + "/" + topic);
+            }
+        }
+        return subscriptions;
+    }
+
+    private void messageArrived(String topic, MqttMessage mqttMessage) {
+        // Instead of publishing to IoT Core, you could instead write into a Stream
+        // Manager stream
+        // and have that data sent to Kinesis, IoT Analytics, or more
+        //
+        // Assuming you had created a stream manager client, then:
+        // streamManagerClient.appendMessage("streamName", mqttMessage.getPayload());
+        //
+        MessageObject obj = new MessageObject(topic, mqttMessage);
+        RECEIVED.increment();
+        RECEIVED_TALLY.increment();
+        if (LOG.isEnabled(Log.Level.DEBUG)) {
+            LOG.debug("Local message arrived on {}, {} bytes", topic, mqttMessage.getPayload().length);
+        }
+        if (!messageFilter.accept(obj) || aggregator.add(obj)) {
+            return;
+        }
+        enqueue(obj);
+    }
+
+    // The overflow policy can be replaced, so its counters are read through this
+    private void registerMetrics() {
+        Metrics metrics = Metrics.registry();
+        metrics.counter("bridge_enqueued_total", "Messages added to the message queue",
+                () -> overflowPolicy.getAccepted());
+        metrics.counter("bridge_overflow_dropped_total", "Arriving messages dropped because the queue was full",
+                () -> overflowPolicy.getDropped());
+        metrics.counter("bridge_overflow_evicted_total", "Queued messages evicted to make room for newer ones",
+                () -> overflowPolicy.getEvicted());
+        metrics.counter("bridge_cloud_received_total", "Messages received from IoT Core",
+                cloudForwarder::getReceived);
+        metrics.counter("bridge_cloud_forwarded_total", "Messages from IoT Core published to the local broker",
+                cloudForwarder::getForwarded);
+        metrics.counter("bridge_cloud_dropped_total", "Messages from IoT Core dropped because the downlink queue was full",
+                cloudForwarder::getDropped);
+        metrics.counter("bridge_cloud_failed_total", "Failed publishes to the local broker, retried",
+                cloudForwarder::getFailed);
+        metrics.counter("bridge_cloud_abandoned_total", "Messages from IoT Core given up after repeated failed publishes",
+                cloudForwarder::getAbandoned);
+        metrics.gauge("bridge_cloud_queued", "Messages from IoT Core waiting for the local broker",
+                cloudForwarder::getQueued);
+    }
+
+    public CloudForwarder getCloudForwarder() {
+        return cloudForwarder;
     }
 
     @Override
     public void close() throws IOException {
-        if (mqttClient != null) {
+        if (metricsReporter != null) {
+            metricsReporter.close();
+        }
+        if (aggregator != null) {
+            aggregator.close();
+        }
+        if (cloudForwarder != null) {
+            cloudForwarder.close();
+        }
+        for (Worker worker : workers) {
+            worker.reconnectManager.close();
             try {
-                mqttClient.close(true);
+                // close refuses a connected client, even when forced
+                if (worker.client.isConnected()) {
+                    worker.client.disconnectForcibly(1000, 1000);
+                }
+                worker.client.close(true);
             } catch (MqttException e) {
                 throw new IOException(e);
             }
         }
     }
+
+    /**
+     * One connection to the local broker. Each has its own Paho callback thread
+     * and reconnects on its own; the first one also carries the messages from
+     * IoT Core and the metrics.
+     */
+    private class Worker {
+        private final int index;
+        private final MqttAsyncClient client;
+        private final ReconnectManager reconnectManager;
+
+        Worker(int index, MqttAsyncClient client, long reconnectMinDelayMs, long reconnectMaxDelayMs) {
+            this.index = index;
+            this.client = client;
+            // Clean sessions lose their subscriptions, so restore them on reconnect
+            this.reconnectManager = new ReconnectManager(client, options, reconnectMinDelayMs,
+                    reconnectMaxDelayMs, () -> {
+                        resubscribe();
+                        if (index == 0) {
+                            cloudForwarder.resume();
+                        }
+                    });
+            client.setCallback(new MqttCallback() {
+
+                @Override
+                public void connectionLost(Throwable throwable) {
+                    // Reconnects in the background, never blocks this callback thread
+                    reconnectManager.connectionLost(throwable);
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage mqttMessage) {
+                    Subscriber.this.messageArrived(topic, mqttMessage);
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken t) {
+                    // Counted by the CloudForwarder
+                }
+            });
+        }
+
+        private void resubscribe() {
+            try {
+                subscribe(client, subscriptions(index, localTopics, orderedTopics));
+            } catch (MqttException e) {
+                LOG.warn("Subscribe Error: {}", e.getMessage());
+            }
+        }
+    }
 }
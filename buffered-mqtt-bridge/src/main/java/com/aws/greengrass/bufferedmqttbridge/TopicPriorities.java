@@ -0,0 +1,69 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * The priorities of mappings.topicPriorities: a topic takes the highest
+ * priority of the filters it matches, and 0 if none. The priority scheduler
+ * and the priority overflow policy both look topics up here.
+ *
+ * Matching every filter is done once per topic. Results are kept for up to
+ * MAX_CACHED_TOPICS topics, after which the cache starts over, so topics with
+ * ids in them do not grow it without bound.
+ */
+public class TopicPriorities {
+
+	static final int MAX_CACHED_TOPICS = 10_000;
+
+	private final Map<String, Integer> filters = new HashMap<>();
+	private final Map<String, Integer> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * @param topicPriorities topic filter to priority, higher wins; null for none
+	 */
+	public TopicPriorities(Map<String, Object> topicPriorities) {
+		if (topicPriorities != null) {
+			for (Map.Entry<String, Object> entry : topicPriorities.entrySet()) {
+				filters.put(entry.getKey(), ((Number) entry.getValue()).intValue());
+			}
+		}
+	}
+
+	public int priorityOf(String topic) {
+		Integer priority = cache.get(topic);
+		if (priority == null) {
+			priority = 0;
+			boolean matched = false;
+			for (Map.Entry<String, Integer> filter : filters.entrySet()) {
+				if (MqttTopic.isMatched(filter.getKey(), topic) && (!matched || filter.getValue() > priority)) {
+					priority = filter.getValue();
+					matched = true;
+				}
+			}
+			if (cache.size() >= MAX_CACHED_TOPICS) {
+				cache.clear();
+			}
+			cache.put(topic, priority);
+		}
+		return priority;
+	}
+
+	/**
+	 * @return every priority a topic can have, including 0, highest first
+	 */
+	public int[] priorities() {
+		TreeSet<Integer> distinct = new TreeSet<>(filters.values());
+		distinct.add(0);
+		return distinct.descendingSet().stream().mapToInt(Integer::intValue).toArray();
+	}
+}
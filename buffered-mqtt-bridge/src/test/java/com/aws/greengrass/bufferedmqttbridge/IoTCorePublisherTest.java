@@ -0,0 +1,190 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPC;
+import software.amazon.awssdk.aws.greengrass.PublishToIoTCoreResponseHandler;
+import software.amazon.awssdk.aws.greengrass.model.PublishToIoTCoreRequest;
+import software.amazon.awssdk.aws.greengrass.model.PublishToIoTCoreResponse;
+import software.amazon.awssdk.eventstreamrpc.OperationResponse;
+
+class IoTCorePublisherTest {
+
+	// Each publish the publisher makes, to be completed by the test
+	private final BlockingQueue<Publish> publishes = new LinkedBlockingQueue<>();
+	private final GreengrassCoreIPC ipc = (GreengrassCoreIPC) Proxy.newProxyInstance(
+			GreengrassCoreIPC.class.getClassLoader(), new Class<?>[] { GreengrassCoreIPC.class },
+			(proxy, method, args) -> {
+				if (!method.getName().equals("publishToIoTCore")) {
+					throw new UnsupportedOperationException(method.getName());
+				}
+				Publish publish = new Publish((PublishToIoTCoreRequest) args[0]);
+				publishes.add(publish);
+				return new PublishToIoTCoreResponseHandler(
+						new OperationResponse<>(null, null, publish.response, CompletableFuture.completedFuture(null)));
+			});
+	private final BlockingQueue<MessageObject> queue = new LinkedBlockingQueue<>();
+	private final List<String> acknowledged = Collections.synchronizedList(new ArrayList<>());
+	private IoTCorePublisher publisher;
+
+	@AfterEach
+	void stop() throws InterruptedException {
+		if (publisher != null) {
+			publisher.interrupt();
+			publisher.join(5000);
+		}
+	}
+
+	private void start(int maxInFlight, boolean strictTopicOrder) {
+		publisher = new IoTCorePublisher(ipc, queue, maxInFlight, m -> acknowledged.add(text(m)), 1, 1,
+				new DeadLetterSink(null, null, 0), null, null, strictTopicOrder);
+		publisher.setDaemon(true);
+		publisher.start();
+	}
+
+	private void enqueue(String... payloads) {
+		for (String payload : payloads) {
+			// Topic is the payload's first letter
+			queue.add(new MessageObject(payload.substring(0, 1), 1, payload.getBytes(StandardCharsets.UTF_8)));
+		}
+	}
+
+	private static String text(MessageObject messageObject) {
+		return new String(messageObject.getMessage(), StandardCharsets.UTF_8);
+	}
+
+	private Publish next(String expected) throws InterruptedException {
+		Publish publish = publishes.poll(5, TimeUnit.SECONDS);
+		assertNotNull(publish, "no publish of " + expected);
+		assertEquals(expected, publish.payload);
+		return publish;
+	}
+
+	private void assertNoPublish() throws InterruptedException {
+		Publish publish = publishes.poll(100, TimeUnit.MILLISECONDS);
+		assertNull(publish, () -> "unexpected publish of " + publish.payload);
+	}
+
+	private void awaitAcknowledged(String... expected) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (acknowledged.size() < expected.length && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(Arrays.asList(expected), acknowledged);
+	}
+
+	@Test
+	void keepsTheWindowFullAndAcknowledgesInQueueOrder() throws InterruptedException {
+		enqueue("a1", "b1", "c1", "d1", "e1");
+		start(3, false);
+
+		Publish a1 = next("a1");
+		Publish b1 = next("b1");
+		Publish c1 = next("c1");
+		assertNoPublish();
+
+		c1.succeed();
+		b1.succeed();
+		assertNoPublish();
+		assertTrue(acknowledged.isEmpty());
+
+		a1.succeed();
+		awaitAcknowledged("a1", "b1", "c1");
+		next("d1").succeed();
+		next("e1").succeed();
+		awaitAcknowledged("a1", "b1", "c1", "d1", "e1");
+	}
+
+	@Test
+	void retriesFailedPublishesOldestFirstBeforeTakingMore() throws InterruptedException {
+		enqueue("a1", "b1", "c1", "d1");
+		start(3, false);
+
+		Publish a1 = next("a1");
+		Publish b1 = next("b1");
+		Publish c1 = next("c1");
+		c1.fail();
+		b1.succeed();
+		a1.fail();
+
+		// Nothing is acknowledged past a message still waiting to be retried
+		next("a1").succeed();
+		assertTrue(acknowledged.isEmpty());
+		next("c1").succeed();
+		next("d1").succeed();
+		awaitAcknowledged("c1", "b1", "d1");
+	}
+
+	@Test
+	void strictTopicOrderHoldsTheNextMessageOnATopicInFlight() throws InterruptedException {
+		enqueue("a1", "b1", "a2", "b2");
+		start(4, true);
+
+		Publish a1 = next("a1");
+		Publish b1 = next("b1");
+		// a2 waits for a1
+		assertNoPublish();
+
+		a1.fail();
+		b1.succeed();
+		next("a1").succeed();
+		next("a2").succeed();
+		next("b2").succeed();
+		awaitAcknowledged("a1", "b1", "a2", "b2");
+	}
+
+	@Test
+	void withoutStrictTopicOrderARetryLandsAfterALaterMessage() throws InterruptedException {
+		enqueue("a1", "b1", "a2");
+		start(4, false);
+
+		Publish a1 = next("a1");
+		Publish b1 = next("b1");
+		Publish a2 = next("a2");
+		a1.fail();
+		b1.succeed();
+		a2.succeed();
+		next("a1").succeed();
+		awaitAcknowledged("a1", "a2");
+	}
+
+	private static class Publish {
+		private final String payload;
+		private final CompletableFuture<PublishToIoTCoreResponse> response = new CompletableFuture<>();
+
+		Publish(PublishToIoTCoreRequest request) {
+			this.payload = new String(request.getPayload(), StandardCharsets.UTF_8);
+		}
+
+		void succeed() {
+			response.complete(new PublishToIoTCoreResponse());
+		}
+
+		// A failure worth retrying, like throttling
+		void fail() {
+			response.completeExceptionally(new RuntimeException("throttled"));
+		}
+	}
+}
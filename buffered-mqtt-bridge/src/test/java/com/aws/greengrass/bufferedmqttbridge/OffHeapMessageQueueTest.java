@@ -0,0 +1,146 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class OffHeapMessageQueueTest {
+
+	// A record of message(i) for i < 10 is the 17 byte header and "mi"
+	private static final int RECORD = 19;
+
+	private static MessageObject message(int i) {
+		return new MessageObject("t/" + i, 1, ("m" + i).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String text(MessageObject messageObject) {
+		return new String(messageObject.getMessage(), StandardCharsets.UTF_8);
+	}
+
+	private static List<String> drain(OffHeapMessageQueue queue) {
+		List<String> taken = new ArrayList<>();
+		MessageObject messageObject;
+		while ((messageObject = queue.poll()) != null) {
+			taken.add(text(messageObject));
+		}
+		return taken;
+	}
+
+	@Test
+	void dropOldestEvictsUntilALargerMessageFits() {
+		OffHeapMessageQueue queue = new OffHeapMessageQueue(4 * RECORD);
+		OverflowPolicy policy = OverflowPolicy.create(OverflowPolicy.DROP_OLDEST, 0, 1, null);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(policy.enqueue(queue, message(i)));
+		}
+
+		// Needs the room of two small records
+		byte[] large = new byte[RECORD + 2];
+		Arrays.fill(large, (byte) 'x');
+		assertTrue(policy.enqueue(queue, new MessageObject("t/large", 1, large)));
+
+		assertEquals(2, policy.getEvicted());
+		assertEquals(0, policy.getDropped());
+		assertEquals(Arrays.asList("m2", "m3", new String(large, StandardCharsets.UTF_8)), drain(queue));
+	}
+
+	@Test
+	void evictsNothingForAMessageLargerThanTheRing() {
+		OffHeapMessageQueue queue = new OffHeapMessageQueue(4 * RECORD);
+		OverflowPolicy policy = OverflowPolicy.create(OverflowPolicy.SAMPLE, 0, 1, null);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(policy.enqueue(queue, message(i)));
+		}
+
+		assertFalse(policy.enqueue(queue, new MessageObject("t/large", 1, new byte[4 * RECORD])));
+
+		assertEquals(0, policy.getEvicted());
+		assertEquals(1, policy.getDropped());
+		assertEquals(4, queue.size());
+	}
+
+	@Test
+	void iteratesInOrderAcrossTheWrap() {
+		OffHeapMessageQueue queue = new OffHeapMessageQueue(4 * RECORD + 5);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.offer(message(i)));
+		}
+		queue.poll();
+		queue.poll();
+		// Leaves a 5 byte gap at the end, so these two go at the start
+		assertTrue(queue.offer(message(4)));
+		assertTrue(queue.offer(message(5)));
+
+		List<String> seen = new ArrayList<>();
+		for (MessageObject messageObject : queue) {
+			seen.add(text(messageObject));
+		}
+		assertEquals(Arrays.asList("m2", "m3", "m4", "m5"), seen);
+	}
+
+	@Test
+	void removesFromTheMiddleAndFreesTheBytesOnceTaken() {
+		OffHeapMessageQueue queue = new OffHeapMessageQueue(8 * RECORD);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(queue.offer(message(i)));
+		}
+
+		MessageObject second = null;
+		for (MessageObject messageObject : queue) {
+			if (text(messageObject).equals("m2")) {
+				second = messageObject;
+			}
+		}
+		assertTrue(queue.remove(second));
+		assertFalse(queue.remove(second));
+		assertFalse(queue.remove(message(3)), "matches on content, including arrival time");
+		assertEquals(4, queue.size());
+		// Still held until takes reach it
+		assertEquals(5 * RECORD, queue.getUsedBytes());
+
+		Iterator<MessageObject> iterator = queue.iterator();
+		assertEquals("m0", text(iterator.next()));
+		iterator.remove();
+		// The head, so freed at once
+		assertEquals(4 * RECORD, queue.getUsedBytes());
+
+		assertEquals("m1", text(queue.poll()));
+		// Past the removed m2 as well
+		assertEquals(2 * RECORD, queue.getUsedBytes());
+		assertEquals(Arrays.asList("m3", "m4"), drain(queue));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	void reusesTopicIdsOnceTheirMessagesAreTaken() {
+		OffHeapMessageQueue queue = new OffHeapMessageQueue(4 * 1024);
+		for (int i = 0; i < 10_000; i++) {
+			assertTrue(queue.offer(new MessageObject("t/" + i, 1, new byte[1])));
+			if (i % 4 == 3) {
+				for (MessageObject messageObject : drainList(queue)) {
+					assertTrue(messageObject.getTopic().startsWith("t/"));
+				}
+			}
+		}
+		assertTrue(queue.getTopicTableSize() <= 8, "table has " + queue.getTopicTableSize() + " topics");
+	}
+
+	private static List<MessageObject> drainList(OffHeapMessageQueue queue) {
+		List<MessageObject> taken = new ArrayList<>();
+		queue.drainTo(taken);
+		return taken;
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.bufferedmqttbridge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SpillingMessageQueueTest {
+
+	// A record of message(i) for i < 10 is 16 bytes: 8 of header, then a
+	// 2 byte topic length, "t/i", the qos and "mi"
+	private static final int RECORD = 16;
+
+	@TempDir
+	Path directory;
+
+	private SpillingMessageQueue open(int memoryCapacity, long segmentBytes) throws IOException {
+		return new SpillingMessageQueue(directory, memoryCapacity, 1024 * 1024, segmentBytes, 60_000, 1);
+	}
+
+	private static MessageObject message(int i) {
+		return new MessageObject("t/" + i, 1, ("m" + i).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static List<String> take(SpillingMessageQueue queue, int count) throws InterruptedException {
+		List<String> taken = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			taken.add(new String(queue.take().getMessage(), StandardCharsets.UTF_8));
+		}
+		return taken;
+	}
+
+	private static List<String> expected(int from, int to) {
+		List<String> expected = new ArrayList<>();
+		for (int i = from; i < to; i++) {
+			expected.add("m" + i);
+		}
+		return expected;
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(f -> f.toString().endsWith(".log")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	void rotatesSegmentsAndDeletesThemOnceAcknowledged() throws Exception {
+		SpillingMessageQueue queue = open(2, 2 * RECORD);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(queue.offer(message(i)));
+		}
+		assertEquals(10, queue.size());
+		// Two records per segment for the eight spilled messages
+		assertEquals(4, segments().size());
+		assertEquals(8L * RECORD, queue.getSpilledBytes());
+
+		MessageObject last = null;
+		for (int i = 0; i < 10; i++) {
+			last = queue.take();
+			assertEquals("m" + i, new String(last.getMessage(), StandardCharsets.UTF_8));
+		}
+		queue.acknowledge(last);
+		queue.close();
+		// Only the segment being written to is kept
+		assertEquals(1, segments().size());
+
+		queue = open(2, 2 * RECORD);
+		assertEquals(0, queue.size());
+		assertNull(queue.poll());
+		queue.close();
+	}
+
+	@Test
+	void replaysFromTheAckCursorAfterARestart() throws Exception {
+		SpillingMessageQueue queue = open(0, 4 * RECORD);
+		for (int i = 0; i < 10; i++) {
+			queue.offer(message(i));
+		}
+		MessageObject acknowledged = null;
+		for (int i = 0; i < 6; i++) {
+			MessageObject messageObject = queue.take();
+			if (i == 3) {
+				acknowledged = messageObject;
+			}
+		}
+		// m4 and m5 were taken but never acknowledged
+		queue.acknowledge(acknowledged);
+		queue.close();
+
+		queue = open(0, 4 * RECORD);
+		assertEquals(6, queue.size());
+		assertEquals(expected(4, 10), take(queue, 6));
+		queue.close();
+	}
+
+	@Test
+	void savesMemoryOnCloseAheadOfTheLog() throws Exception {
+		SpillingMessageQueue queue = open(3, 4 * RECORD);
+		for (int i = 0; i < 8; i++) {
+			queue.offer(message(i));
+		}
+		queue.take();
+		queue.close();
+		assertTrue(Files.exists(directory.resolve("memory")));
+
+		queue = open(3, 4 * RECORD);
+		assertFalse(Files.exists(directory.resolve("memory")));
+		assertEquals(7, queue.size());
+		assertEquals(expected(1, 8), take(queue, 7));
+		queue.close();
+	}
+
+	@Test
+	void truncatesATornRecordAtTheEndOfTheLog() throws Exception {
+		SpillingMessageQueue queue = open(0, 1024);
+		for (int i = 0; i < 5; i++) {
+			queue.offer(message(i));
+		}
+		queue.close();
+		Path segment = segments().get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+
+		queue = open(0, 1024);
+		assertEquals(4, queue.size());
+		assertEquals(4L * RECORD, Files.size(segment));
+		queue.offer(message(5));
+		assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m5"), take(queue, 5));
+		queue.close();
+	}
+
+	@Test
+	void skipsTheRestOfASegmentWithABadCrc() throws Exception {
+		SpillingMessageQueue queue = open(0, 2 * RECORD);
+		for (int i = 0; i < 6; i++) {
+			queue.offer(message(i));
+		}
+		queue.close();
+		// Flip a payload byte of m0, the first record of the first segment
+		try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 'x' }), RECORD - 1);
+		}
+
+		queue = open(0, 2 * RECORD);
+		assertEquals(4, queue.size());
+		assertEquals(expected(2, 6), take(queue, 4));
+		assertNull(queue.poll());
+		queue.close();
+	}
+
+	@Test
+	void iteratesMemoryThenTheLog() throws Exception {
+		SpillingMessageQueue queue = open(2, 2 * RECORD);
+		for (int i = 0; i < 6; i++) {
+			queue.offer(message(i));
+		}
+		queue.take();
+		List<String> iterated = new ArrayList<>();
+		queue.forEach(m -> iterated.add(new String(m.getMessage(), StandardCharsets.UTF_8)));
+		assertEquals(expected(1, 6), iterated);
+		// Iterating takes nothing
+		assertEquals(5, queue.size());
+		queue.close();
+	}
+
+	@Test
+	void removesOnlyFromMemory() throws Exception {
+		SpillingMessageQueue queue = open(2, 2 * RECORD);
+		MessageObject inMemory = message(0);
+		queue.offer(inMemory);
+		queue.offer(message(1));
+		queue.offer(message(2));
+		MessageObject spilled = queue.toArray(new MessageObject[0])[2];
+
+		assertTrue(queue.remove(inMemory));
+		assertFalse(queue.remove(spilled));
+		assertEquals(Arrays.asList("m1", "m2"), take(queue, 2));
+		queue.close();
+	}
+}
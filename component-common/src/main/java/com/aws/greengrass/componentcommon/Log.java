@@ -0,0 +1,339 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.componentcommon;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Leveled logging that keeps stdout off the message path.
+ *
+ * A log call checks the level and queues a record; the "log-writer" thread
+ * formats records and writes them to stdout (DEBUG and INFO) or stderr (WARN
+ * and ERROR) in batches. Greengrass writes both to disk, so a slow disk delays
+ * the log, not the messages. If the queue is full the record is dropped and
+ * counted instead of blocking the caller.
+ *
+ * Every message template is an event type with its own rate limit: past
+ * rateLimit records of one template in a summary interval the rest are only
+ * counted, and the count is logged when the interval ends. Events that are
+ * only worth a count, like each forwarded message, use a {@link Tally}, which
+ * logs "N messages forwarded in last 10s" once per interval.
+ *
+ * Templates use {} placeholders. A Throwable after the last placeholder
+ * argument is logged with its stack trace.
+ */
+public final class Log {
+
+	public static final String LOG_LEVEL = "logLevel";
+	public static final String LOG_LEVELS = "logLevels";
+	public static final String LOG_RATE_LIMIT = "logRateLimit";
+	public static final String LOG_SUMMARY_INTERVAL_MS = "logSummaryIntervalMs";
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	private static final int QUEUE_SIZE = 8192;
+	private static final int WRITE_BATCH = 256;
+
+	private static final Map<String, Log> LOGGERS = new ConcurrentHashMap<>();
+	private static final BlockingQueue<Record> QUEUE = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private static final LongAdder DROPPED = new LongAdder();
+	private static final PrintStream OUT = System.out;
+	private static final PrintStream ERR = System.err;
+
+	private static volatile Level defaultLevel = Level.INFO;
+	private static volatile Map<String, Level> levels = Collections.emptyMap();
+	private static volatile int rateLimit = 20;
+	private static volatile long intervalMs = 10_000;
+
+	private static final Log SELF = get("Log");
+
+	static {
+		Thread writer = new Thread(Log::writeLoop, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+	}
+
+	private final String name;
+	private volatile Level level;
+	private final Map<String, Event> events = new ConcurrentHashMap<>();
+	private final List<Tally> tallies = new CopyOnWriteArrayList<>();
+
+	private Log(String name) {
+		this.name = name;
+		this.level = levels.get(name);
+	}
+
+	/**
+	 * @return the logger with this name, created on first use
+	 */
+	public static Log get(String name) {
+		return LOGGERS.computeIfAbsent(name, Log::new);
+	}
+
+	/**
+	 * Apply the logging settings in the component configuration: logLevel, a
+	 * logLevels map of logger name to level, logRateLimit and
+	 * logSummaryIntervalMs. Invalid levels are reported and ignored.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void configure(Map<String, Object> config) {
+		defaultLevel = level(config.get(LOG_LEVEL), Level.INFO);
+		Map<String, Level> newLevels = new HashMap<>();
+		Map<String, Object> configured = (Map<String, Object>) config.get(LOG_LEVELS);
+		if (configured != null) {
+			for (Map.Entry<String, Object> entry : configured.entrySet()) {
+				newLevels.put(entry.getKey(), level(entry.getValue(), defaultLevel));
+			}
+		}
+		levels = newLevels;
+		for (Log log : LOGGERS.values()) {
+			log.level = newLevels.get(log.name);
+		}
+		rateLimit = Math.max(1, number(config, LOG_RATE_LIMIT, 20).intValue());
+		intervalMs = Math.max(1000, number(config, LOG_SUMMARY_INTERVAL_MS, 10_000).longValue());
+	}
+
+	private static Number number(Map<String, Object> config, String key, long defaultValue) {
+		Object value = config.get(key);
+		return value == null ? defaultValue : (Number) value;
+	}
+
+	private static Level level(Object value, Level defaultLevel) {
+		if (value == null) {
+			return defaultLevel;
+		}
+		try {
+			return Level.valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			SELF.warn("Unknown log level {}, using {}", value, defaultLevel);
+			return defaultLevel;
+		}
+	}
+
+	public boolean isEnabled(Level level) {
+		Level threshold = this.level;
+		return level.compareTo(threshold != null ? threshold : defaultLevel) >= 0;
+	}
+
+	public void debug(String template, Object... args) {
+		log(Level.DEBUG, template, args);
+	}
+
+	public void info(String template, Object... args) {
+		log(Level.INFO, template, args);
+	}
+
+	public void warn(String template, Object... args) {
+		log(Level.WARN, template, args);
+	}
+
+	public void error(String template, Object... args) {
+		log(Level.ERROR, template, args);
+	}
+
+	/**
+	 * Log at level, unless this template is past its rate limit for the
+	 * current interval.
+	 */
+	public void log(Level level, String template, Object... args) {
+		if (!isEnabled(level)) {
+			return;
+		}
+		Event event = events.get(template);
+		if (event == null) {
+			event = events.computeIfAbsent(template, t -> new Event(level));
+		}
+		if (event.seen.incrementAndGet() > rateLimit) {
+			return;
+		}
+		enqueue(new Record(System.currentTimeMillis(), level, this, template, args));
+	}
+
+	/**
+	 * @param description what is counted, as in "messages forwarded"
+	 * @return a counter logged at INFO once per summary interval when not zero
+	 */
+	public Tally tally(String description) {
+		Tally tally = new Tally(description);
+		tallies.add(tally);
+		return tally;
+	}
+
+	/**
+	 * A count of events logged as one line per summary interval.
+	 */
+	public static final class Tally {
+		private final String description;
+		private final LongAdder count = new LongAdder();
+
+		private Tally(String description) {
+			this.description = description;
+		}
+
+		public void increment() {
+			count.increment();
+		}
+
+		public void add(long n) {
+			count.add(n);
+		}
+	}
+
+	private static final class Event {
+		private final Level level;
+		private final AtomicInteger seen = new AtomicInteger();
+
+		Event(Level level) {
+			this.level = level;
+		}
+	}
+
+	private static final class Record {
+		private final long timestamp;
+		private final Level level;
+		private final Log log;
+		private final String template;
+		private final Object[] args;
+
+		Record(long timestamp, Level level, Log log, String template, Object[] args) {
+			this.timestamp = timestamp;
+			this.level = level;
+			this.log = log;
+			this.template = template;
+			this.args = args;
+		}
+	}
+
+	private static void enqueue(Record record) {
+		if (!QUEUE.offer(record)) {
+			DROPPED.increment();
+		}
+	}
+
+	private static void writeLoop() {
+		List<Record> batch = new ArrayList<>(WRITE_BATCH);
+		long lastSummary = System.nanoTime();
+		while (true) {
+			try {
+				long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSummary);
+				if (elapsedMs >= intervalMs) {
+					summarize(elapsedMs);
+					lastSummary = System.nanoTime();
+					continue;
+				}
+				Record record = QUEUE.poll(intervalMs - elapsedMs, TimeUnit.MILLISECONDS);
+				if (record != null) {
+					batch.add(record);
+					QUEUE.drainTo(batch, WRITE_BATCH - 1);
+					write(batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				// A record whose argument fails to format must not stop the writer
+				e.printStackTrace(ERR);
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Write everything queued so far, on the calling thread.
+	 */
+	public static void flush() {
+		List<Record> batch = new ArrayList<>();
+		QUEUE.drainTo(batch);
+		write(batch);
+	}
+
+	// Logs suppressed event counts, tallies and dropped records, and starts a new interval
+	private static void summarize(long elapsedMs) {
+		long seconds = Math.max(1, Math.round(elapsedMs / 1000.0));
+		long now = System.currentTimeMillis();
+		List<Record> batch = new ArrayList<>();
+		for (Log log : LOGGERS.values()) {
+			for (Iterator<Map.Entry<String, Event>> it = log.events.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Event> entry = it.next();
+				int seen = entry.getValue().seen.getAndSet(0);
+				if (seen == 0) {
+					it.remove();
+				} else if (seen > rateLimit) {
+					batch.add(new Record(now, entry.getValue().level, log, "{} similar messages suppressed in last {}s: {}",
+							new Object[] { seen - rateLimit, seconds, entry.getKey() }));
+				}
+			}
+			for (Tally tally : log.tallies) {
+				long count = tally.count.sumThenReset();
+				if (count > 0 && log.isEnabled(Level.INFO)) {
+					batch.add(new Record(now, Level.INFO, log, "{} {} in last {}s",
+							new Object[] { count, tally.description, seconds }));
+				}
+			}
+		}
+		long dropped = DROPPED.sumThenReset();
+		if (dropped > 0) {
+			batch.add(new Record(now, Level.WARN, SELF, "{} log records dropped, the log queue was full",
+					new Object[] { dropped }));
+		}
+		write(batch);
+	}
+
+	private static synchronized void write(List<Record> batch) {
+		StringBuilder out = new StringBuilder();
+		StringBuilder err = new StringBuilder();
+		for (Record record : batch) {
+			format(record, record.level.compareTo(Level.WARN) >= 0 ? err : out);
+		}
+		if (out.length() > 0) {
+			OUT.print(out);
+			OUT.flush();
+		}
+		if (err.length() > 0) {
+			ERR.print(err);
+			ERR.flush();
+		}
+	}
+
+	private static void format(Record record, StringBuilder line) {
+		line.append(Instant.ofEpochMilli(record.timestamp)).append(' ').append(record.level).append(' ')
+				.append(record.log.name).append(": ");
+		String template = record.template;
+		Object[] args = record.args;
+		int used = 0;
+		int start = 0;
+		for (int i = template.indexOf("{}"); i >= 0 && used < args.length; i = template.indexOf("{}", start)) {
+			line.append(template, start, i).append(args[used++]);
+			start = i + 2;
+		}
+		line.append(template, start, template.length()).append(System.lineSeparator());
+		if (used < args.length && args[args.length - 1] instanceof Throwable) {
+			StringWriter trace = new StringWriter();
+			((Throwable) args[args.length - 1]).printStackTrace(new PrintWriter(trace));
+			line.append(trace);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.componentcommon;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of counters, gauges and latency histograms.
+ *
+ * Recording is cheap enough for the message path: counters are LongAdders, so
+ * threads incrementing the same counter do not contend, and a histogram record
+ * is a couple of shifts and one atomic increment. Instrumented classes look
+ * their metrics up once and keep them in static fields.
+ *
+ * {@link MetricsReporter} publishes the registry as JSON and serves it in the
+ * Prometheus text format.
+ */
+public class Metrics {
+
+	private static final Metrics REGISTRY = new Metrics();
+
+	private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+	public static Metrics registry() {
+		return REGISTRY;
+	}
+
+	/**
+	 * @return the counter with this name, created on first use
+	 */
+	public LongAdder counter(String name, String help) {
+		return ((Counter) metrics.computeIfAbsent(name, n -> new Counter(help))).adder;
+	}
+
+	/**
+	 * Register a counter whose value is kept elsewhere. Replaces any earlier
+	 * registration with the same name.
+	 */
+	public void counter(String name, String help, LongSupplier value) {
+		metrics.put(name, new Gauge(help, value, "counter"));
+	}
+
+	/**
+	 * Register a value sampled when metrics are reported. Replaces any earlier
+	 * registration with the same name.
+	 */
+	public void gauge(String name, String help, LongSupplier value) {
+		metrics.put(name, new Gauge(help, value, "gauge"));
+	}
+
+	/**
+	 * @return the histogram with this name, created on first use
+	 */
+	public Histogram histogram(String name, String help) {
+		return (Histogram) metrics.computeIfAbsent(name, n -> new Histogram(help));
+	}
+
+	/**
+	 * Counter and gauge values, and for each histogram its count, sum, maximum
+	 * and percentiles, as one JSON object. Histogram figures cover the period
+	 * since the previous call, counters are totals since startup.
+	 */
+	public synchronized String toJson() {
+		StringBuilder json = new StringBuilder("{\"timestamp\":").append(System.currentTimeMillis());
+		for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+			json.append(",\"").append(entry.getKey()).append("\":");
+			entry.getValue().appendJson(json);
+		}
+		return json.append('}').toString();
+	}
+
+	/**
+	 * All metrics in the Prometheus text exposition format. Histograms are
+	 * cumulative, in seconds, with _seconds added to their name.
+	 */
+	public String toPrometheus() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+			Metric metric = entry.getValue();
+			String name = metric.prometheusName(entry.getKey());
+			text.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+			text.append("# TYPE ").append(name).append(' ').append(metric.type()).append('\n');
+			metric.appendPrometheus(name, text);
+		}
+		return text.toString();
+	}
+
+	private abstract static class Metric {
+		final String help;
+
+		Metric(String help) {
+			this.help = help;
+		}
+
+		abstract String type();
+
+		String prometheusName(String name) {
+			return name;
+		}
+
+		abstract void appendJson(StringBuilder json);
+
+		abstract void appendPrometheus(String name, StringBuilder text);
+	}
+
+	private static class Counter extends Metric {
+		final LongAdder adder = new LongAdder();
+
+		Counter(String help) {
+			super(help);
+		}
+
+		@Override
+		String type() {
+			return "counter";
+		}
+
+		@Override
+		void appendJson(StringBuilder json) {
+			json.append(adder.sum());
+		}
+
+		@Override
+		void appendPrometheus(String name, StringBuilder text) {
+			text.append(name).append(' ').append(adder.sum()).append('\n');
+		}
+	}
+
+	private static class Gauge extends Metric {
+		final LongSupplier value;
+		final String type;
+
+		Gauge(String help, LongSupplier value, String type) {
+			super(help);
+			this.value = value;
+			this.type = type;
+		}
+
+		@Override
+		String type() {
+			return type;
+		}
+
+		@Override
+		void appendJson(StringBuilder json) {
+			json.append(value.getAsLong());
+		}
+
+		@Override
+		void appendPrometheus(String name, StringBuilder text) {
+			text.append(name).append(' ').append(value.getAsLong()).append('\n');
+		}
+	}
+
+	/**
+	 * Log-linear histogram of non-negative values, in microseconds. Values below
+	 * 64 get a bucket each; above that, every power of two is split into 32
+	 * buckets, so any recorded value is known to within about 3%, HdrHistogram
+	 * style, from one microsecond to centuries in under 2,000 buckets.
+	 */
+	public static class Histogram extends Metric {
+		private static final int LINEAR = 64;
+		private static final int SUB_BUCKETS = 32;
+		private static final int BUCKETS = LINEAR + (62 - 6 + 1) * SUB_BUCKETS;
+		// Prometheus bucket bounds, in microseconds
+		private static final long[] BOUNDS = { 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+				100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000, 30_000_000, 60_000_000 };
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder sum = new LongAdder();
+		// Counts at the previous JSON report, to report each period on its own
+		private long[] reported = new long[BUCKETS];
+		private long reportedSum;
+
+		/**
+		 * A histogram outside the registry, such as a test harness keeps for itself.
+		 */
+		public Histogram(String help) {
+			super(help);
+		}
+
+		/**
+		 * @param micros the value, negative values count as zero
+		 */
+		public void record(long micros) {
+			long value = Math.max(0, micros);
+			counts.incrementAndGet(index(value));
+			sum.add(value);
+		}
+
+		/**
+		 * Record the time since startNanos, a System.nanoTime() reading.
+		 */
+		public void recordSince(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000);
+		}
+
+		static int index(long value) {
+			if (value < LINEAR) {
+				return (int) value;
+			}
+			int msb = Math.min(62, 63 - Long.numberOfLeadingZeros(value));
+			long sub = Math.min(2 * SUB_BUCKETS - 1, value >>> (msb - 5));
+			return LINEAR + (msb - 6) * SUB_BUCKETS + (int) (sub - SUB_BUCKETS);
+		}
+
+		// Largest value that falls into the bucket
+		static long highestValue(int index) {
+			if (index < LINEAR) {
+				return index;
+			}
+			int msb = (index - LINEAR) / SUB_BUCKETS + 6;
+			long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+			return ((sub + 1) << (msb - 5)) - 1;
+		}
+
+		private long[] snapshot() {
+			long[] snapshot = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts.get(i);
+			}
+			return snapshot;
+		}
+
+		private static long valueAt(long[] counts, long total, double quantile) {
+			long rank = (long) Math.ceil(quantile * total);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0) {
+					return highestValue(i);
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		String type() {
+			return "histogram";
+		}
+
+		@Override
+		String prometheusName(String name) {
+			return name + "_seconds";
+		}
+
+		/**
+		 * Append this period's counts as a JSON object, then start a new period.
+		 */
+		@Override
+		public void appendJson(StringBuilder json) {
+			long[] now = snapshot();
+			long nowSum = sum.sum();
+			long[] period = new long[BUCKETS];
+			long total = 0;
+			long max = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				period[i] = now[i] - reported[i];
+				total += period[i];
+				if (period[i] > 0) {
+					max = highestValue(i);
+				}
+			}
+			long periodSum = nowSum - reportedSum;
+			reported = now;
+			reportedSum = nowSum;
+
+			json.append("{\"count\":").append(total).append(",\"sum\":").append(periodSum).append(",\"max\":")
+					.append(max).append(",\"p50\":").append(valueAt(period, total, 0.50)).append(",\"p90\":")
+					.append(valueAt(period, total, 0.90)).append(",\"p99\":").append(valueAt(period, total, 0.99))
+					.append(",\"p999\":").append(valueAt(period, total, 0.999)).append('}');
+		}
+
+		@Override
+		void appendPrometheus(String name, StringBuilder text) {
+			long[] now = snapshot();
+			long cumulative = 0;
+			int index = 0;
+			for (long bound : BOUNDS) {
+				while (index < BUCKETS && highestValue(index) <= bound) {
+					cumulative += now[index++];
+				}
+				text.append(name).append("_bucket{le=\"").append(seconds(bound)).append("\"} ").append(cumulative)
+						.append('\n');
+			}
+			while (index < BUCKETS) {
+				cumulative += now[index++];
+			}
+			text.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+			text.append(name).append("_sum ").append(seconds(sum.sum())).append('\n');
+			text.append(name).append("_count ").append(cumulative).append('\n');
+		}
+
+		private static String seconds(long micros) {
+			return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.greengrass.componentcommon;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exposes a {@link Metrics} registry: every intervalMs its JSON form is
+ * published at QoS 0 on a local MQTT topic (skipped while disconnected), and
+ * optionally the Prometheus text form is served over HTTP at /metrics.
+ */
+public class MetricsReporter implements Closeable {
+
+	private static final Log LOG = Log.get("MetricsReporter");
+
+	private final Metrics metrics;
+	private final MqttAsyncClient mqttClient;
+	private final String topic;
+	private final long intervalMs;
+	private final ScheduledExecutorService executor;
+	private HttpServer server;
+
+	/**
+	 * @param topic local topic for JSON reports, null to not publish them
+	 */
+	public MetricsReporter(Metrics metrics, MqttAsyncClient mqttClient, String topic, long intervalMs) {
+		this.metrics = metrics;
+		this.mqttClient = mqttClient;
+		this.topic = topic;
+		this.intervalMs = intervalMs;
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-reporter");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public void start() {
+		if (topic != null && intervalMs > 0) {
+			executor.scheduleWithFixedDelay(this::publish, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Serve the Prometheus text format at /metrics on its own HTTP server.
+	 *
+	 * @param port port to listen on
+	 * @throws IOException if the server can not be started
+	 */
+	public void serve(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", prometheusHandler(metrics));
+		server.start();
+		LOG.info("Serving metrics on port {}", port);
+	}
+
+	/**
+	 * @return a handler answering GET requests with the Prometheus text format
+	 */
+	public static HttpHandler prometheusHandler(Metrics metrics) {
+		return he -> {
+			try {
+				if (!he.getRequestMethod().equalsIgnoreCase("GET")) {
+					he.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+					return;
+				}
+				byte[] response = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+				he.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				he.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+				OutputStream os = he.getResponseBody();
+				os.write(response);
+			} finally {
+				he.close();
+			}
+		};
+	}
+
+	private void publish() {
+		try {
+			if (mqttClient.isConnected()) {
+				MqttMessage message = new MqttMessage(metrics.toJson().getBytes(StandardCharsets.UTF_8));
+				message.setQos(0);
+				mqttClient.publish(topic, message);
+			}
+		} catch (MqttException | RuntimeException e) {
+			LOG.warn("Metrics publish error: {}", e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+}
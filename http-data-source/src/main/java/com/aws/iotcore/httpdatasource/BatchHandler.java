@@ -0,0 +1,357 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.iotcore.httpdatasource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Accepts many records in one POST and publishes each as its own MQTT message.
+ *
+ * The body is either a JSON array of records or newline-delimited JSON (one
+ * record per line), told apart by its first character. It is parsed as a stream,
+ * one record at a time, and each record is published as soon as it is parsed.
+ * An NDJSON line that is not valid JSON is skipped; a syntax error in an array
+ * ends the batch, since the rest can not be split reliably.
+ *
+ * Records go to the request's route (see TopicRouter), or to a topic built
+ * from a template such as "sensors/{deviceId}/data", where each {field} is
+ * replaced with that field of the record, at the route's QoS.
+ *
+ * Records are published as the client's in-flight slots free up, so a batch
+ * larger than mqttMaxInFlight is paced by the broker's acknowledgements rather
+ * than spilling into the outage buffer. Waiting for slots and for delivery share
+ * one publishTimeoutMs for the whole batch; a record that gets no slot in time
+ * is FAILED.
+ *
+ * The response lists a status per record, in order:
+ * {"result":"OK","records":["SENT","SENT","INVALID"]}
+ */
+public class BatchHandler implements HttpHandler {
+
+	private static final Log LOG = Log.get("BatchHandler");
+
+	static final String SENT = "SENT";
+	static final String ACCEPTED = "ACCEPTED";
+	static final String QUEUED = "QUEUED";
+	static final String FAILED = "FAILED";
+	static final String INVALID = "INVALID";
+	static final String NO_TOPIC = "NO_TOPIC";
+
+	private static final LongAdder BATCHES = Metrics.registry().counter("httpdatasource_batches_total",
+			"Batch requests received");
+	private static final LongAdder RECORDS = Metrics.registry().counter("httpdatasource_batch_records_total",
+			"Records received in batch requests");
+
+	private final ReconnectManager reconnectManager;
+	private final TopicRouter router;
+	// Literal text at even indexes, field names at odd indexes; null to use the route
+	private volatile List<String> topicTemplate;
+	private final BodyReader bodyReader;
+	private final boolean fastAck;
+	private final long publishTimeoutMs;
+	private final JsonParser parser = new JsonParser();
+
+	/**
+	 * @param topicTemplate topic with {field} placeholders, or null for the route's
+	 *                      topic
+	 */
+	public BatchHandler(ReconnectManager reconnectManager, TopicRouter router, String topicTemplate,
+			BodyReader bodyReader, boolean fastAck, long publishTimeoutMs) {
+		this.reconnectManager = reconnectManager;
+		this.router = router;
+		this.topicTemplate = topicTemplate == null ? null : parseTemplate(topicTemplate);
+		this.bodyReader = bodyReader;
+		this.fastAck = fastAck;
+		this.publishTimeoutMs = publishTimeoutMs;
+	}
+
+	/**
+	 * @param topicTemplate topic with {field} placeholders, or null for the route's
+	 *                      topic
+	 */
+	public void setTopicTemplate(String topicTemplate) {
+		this.topicTemplate = topicTemplate == null ? null : parseTemplate(topicTemplate);
+	}
+
+	public void handle(HttpExchange he) throws IOException {
+		long start = System.nanoTime();
+		BATCHES.increment();
+
+		try {
+			if (!he.getRequestMethod().equalsIgnoreCase("POST")) {
+				respond(he, HttpURLConnection.HTTP_BAD_METHOD, "METHOD_NOT_ALLOWED", null);
+				return;
+			}
+
+			TopicRouter.Destination destination = router.route(he);
+			if (destination == null) {
+				respond(he, HttpURLConnection.HTTP_NOT_FOUND, "NO_ROUTE", null);
+				return;
+			}
+
+			InputStream body;
+			try {
+				String contentLength = he.getRequestHeaders().getFirst("Content-length");
+				body = bodyReader.limit(he.getRequestBody(),
+						contentLength == null ? -1 : Long.parseLong(contentLength.trim()));
+			} catch (BodyReader.TooLargeException e) {
+				LOG.warn("Rejected batch: {}", e.getMessage());
+				respond(he, HttpURLConnection.HTTP_ENTITY_TOO_LARGE, "TOO_LARGE", null);
+				return;
+			} catch (NumberFormatException e) {
+				respond(he, HttpURLConnection.HTTP_BAD_REQUEST, "BAD_REQUEST", null);
+				return;
+			}
+
+			Batch batch = new Batch(destination);
+			boolean tooLarge = false;
+			try {
+				parse(body, batch);
+			} catch (BodyReader.TooLargeException e) {
+				// Records before the limit have already been published
+				LOG.warn("Rejected batch: {}", e.getMessage());
+				tooLarge = true;
+			}
+			batch.await();
+
+			int ok = batch.count(SENT) + batch.count(ACCEPTED) + batch.count(QUEUED);
+			int status;
+			String result;
+			if (tooLarge) {
+				status = HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+				result = "TOO_LARGE";
+			} else if (ok == batch.results.size()) {
+				status = batch.count(SENT) > 0 || ok == 0 ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_ACCEPTED;
+				result = "OK";
+			} else if (ok > 0) {
+				status = 207; // Multi-Status, check each record
+				result = "PARTIAL";
+			} else if (batch.count(FAILED) > 0) {
+				status = HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+				result = "FAILED";
+			} else {
+				status = HttpURLConnection.HTTP_BAD_REQUEST;
+				result = "INVALID";
+			}
+			RECORDS.add(batch.results.size());
+			respond(he, status, result, batch.results);
+
+		} catch (Exception e) {
+			LOG.error("Batch request failed", e);
+		} finally {
+			he.close();
+			Worker.REQUEST_LATENCY.recordSince(start);
+		}
+	}
+
+	private void parse(InputStream body, Batch batch) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+
+		// Peek at the first non-blank character to tell an array from NDJSON
+		int c;
+		do {
+			reader.mark(1);
+			c = reader.read();
+		} while (c >= 0 && Character.isWhitespace(c));
+		if (c < 0) {
+			return;
+		}
+		reader.reset();
+
+		if (c == '[') {
+			JsonReader json = new JsonReader(reader);
+			try {
+				json.beginArray();
+				while (json.hasNext()) {
+					JsonElement record = parser.parse(json);
+					publish(batch, record, record.toString().getBytes(StandardCharsets.UTF_8));
+				}
+				json.endArray();
+			} catch (JsonParseException | MalformedJsonException e) {
+				if (e.getCause() instanceof BodyReader.TooLargeException) {
+					throw (BodyReader.TooLargeException) e.getCause();
+				}
+				LOG.warn("Invalid batch: {}", e.getMessage());
+				batch.add(INVALID, null);
+			}
+		} else {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				JsonElement record;
+				try {
+					record = parser.parse(line);
+				} catch (JsonParseException e) {
+					batch.add(INVALID, null);
+					continue;
+				}
+				// Publish the line as it was sent, not re-serialized
+				publish(batch, record, line.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	private void publish(Batch batch, JsonElement record, byte[] payload) {
+		List<String> topicTemplate = this.topicTemplate;
+		String topic = topicTemplate == null ? batch.destination.getTopic() : topicFor(topicTemplate, record);
+		if (topic == null) {
+			batch.add(NO_TOPIC, null);
+			return;
+		}
+
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(batch.destination.getQos());
+		IMqttDeliveryToken token;
+		try {
+			token = reconnectManager.publish(topic, message, batch.deadline - System.currentTimeMillis());
+		} catch (MqttException e) {
+			Worker.PUBLISH_FAILURES.increment();
+			batch.add(FAILED, null);
+			return;
+		}
+		if (token == null) {
+			batch.add(QUEUED, null);
+		} else if (fastAck) {
+			batch.add(ACCEPTED, null);
+		} else {
+			batch.add(SENT, token);
+		}
+	}
+
+	private static String topicFor(List<String> topicTemplate, JsonElement record) {
+		if (!record.isJsonObject()) {
+			return null;
+		}
+		JsonObject object = record.getAsJsonObject();
+		StringBuilder topic = new StringBuilder();
+		for (int i = 0; i < topicTemplate.size(); i++) {
+			if (i % 2 == 0) {
+				topic.append(topicTemplate.get(i));
+				continue;
+			}
+			JsonElement value = object.get(topicTemplate.get(i));
+			if (value == null || !value.isJsonPrimitive()) {
+				return null;
+			}
+			String level = value.getAsString();
+			// A field may only fill in its own topic level
+			if (level.isEmpty() || level.indexOf('/') >= 0 || level.indexOf('+') >= 0 || level.indexOf('#') >= 0) {
+				return null;
+			}
+			topic.append(level);
+		}
+		return topic.toString();
+	}
+
+	static List<String> parseTemplate(String template) {
+		List<String> parts = new ArrayList<>();
+		int start = 0;
+		while (true) {
+			int open = template.indexOf('{', start);
+			if (open < 0) {
+				parts.add(template.substring(start));
+				return parts;
+			}
+			int close = template.indexOf('}', open);
+			if (close < 0) {
+				throw new IllegalArgumentException("Unclosed { in topic template: " + template);
+			}
+			parts.add(template.substring(start, open));
+			parts.add(template.substring(open + 1, close));
+			start = close + 1;
+		}
+	}
+
+	private static void respond(HttpExchange he, int status, String result, List<String> records)
+			throws IOException {
+		Worker.countResponse(status);
+		StringBuilder json = new StringBuilder("{\"result\":\"").append(result).append('"');
+		if (records != null) {
+			json.append(",\"records\":[");
+			for (int i = 0; i < records.size(); i++) {
+				json.append(i > 0 ? ",\"" : "\"").append(records.get(i)).append('"');
+			}
+			json.append(']');
+		}
+		byte[] response = json.append('}').toString().getBytes(StandardCharsets.UTF_8);
+		he.getResponseHeaders().set("Content-Type", "application/json");
+		he.sendResponseHeaders(status, response.length);
+
+		OutputStream os = he.getResponseBody();
+		os.write(response);
+	}
+
+	/**
+	 * Per-record results, with the delivery token of each synchronous publish.
+	 */
+	private class Batch {
+		private final TopicRouter.Destination destination;
+		private final List<String> results = new ArrayList<>();
+		private final List<IMqttDeliveryToken> tokens = new ArrayList<>();
+		// For getting in-flight slots and for delivery
+		private final long deadline = System.currentTimeMillis() + publishTimeoutMs;
+
+		Batch(TopicRouter.Destination destination) {
+			this.destination = destination;
+		}
+
+		void add(String result, IMqttDeliveryToken token) {
+			results.add(result);
+			tokens.add(token);
+		}
+
+		void await() {
+			for (int i = 0; i < tokens.size(); i++) {
+				IMqttDeliveryToken token = tokens.get(i);
+				if (token == null) {
+					continue;
+				}
+				try {
+					token.waitForCompletion(Math.max(1, deadline - System.currentTimeMillis()));
+				} catch (MqttException e) {
+					Worker.PUBLISH_FAILURES.increment();
+					results.set(i, FAILED);
+				}
+			}
+		}
+
+		int count(String result) {
+			int count = 0;
+			for (String r : results) {
+				if (r.equals(result)) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+}
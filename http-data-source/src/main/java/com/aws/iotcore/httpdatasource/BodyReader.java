@@ -0,0 +1,169 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.iotcore.httpdatasource;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads complete HTTP request bodies, up to a maximum size.
+ *
+ * With a Content-Length the body is read straight into a single array of that
+ * size. Without one (chunked uploads, which the server has already de-chunked)
+ * the body is read into pooled scratch buffers until the end of the stream and
+ * then copied once into an array of the exact size, so only the payload itself
+ * is allocated per request. The payload array is handed to the MQTT client,
+ * which keeps it until delivery, so it can not come from the pool.
+ */
+public class BodyReader {
+
+	/**
+	 * Thrown when a body is larger than the configured maximum.
+	 */
+	public static class TooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		TooLargeException(long size, int maxBytes) {
+			super("Request body of " + size + " bytes exceeds the limit of " + maxBytes);
+		}
+	}
+
+	private final int maxBytes;
+	private final int bufferSize;
+	private final BlockingQueue<byte[]> pool;
+
+	/**
+	 * @param maxBytes   largest body accepted
+	 * @param bufferSize size of each pooled buffer, about a typical payload
+	 * @param poolSize   buffers kept for reuse, about the number of request threads
+	 */
+	public BodyReader(int maxBytes, int bufferSize, int poolSize) {
+		this.maxBytes = maxBytes;
+		this.bufferSize = Math.max(512, bufferSize);
+		this.pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+	}
+
+	/**
+	 * Read the whole body.
+	 *
+	 * @param in            the request body
+	 * @param contentLength the declared length, or -1 if unknown
+	 * @return the body
+	 * @throws TooLargeException if the body is larger than maxBytes
+	 * @throws EOFException      if the stream ends before contentLength bytes
+	 */
+	public byte[] read(InputStream in, long contentLength) throws IOException {
+		if (contentLength > maxBytes) {
+			throw new TooLargeException(contentLength, maxBytes);
+		}
+		if (contentLength >= 0) {
+			byte[] body = new byte[(int) contentLength];
+			int offset = 0;
+			while (offset < body.length) {
+				int n = in.read(body, offset, body.length - offset);
+				if (n < 0) {
+					throw new EOFException("Request body ended after " + offset + " of " + body.length + " bytes");
+				}
+				offset += n;
+			}
+			return body;
+		}
+		return readToEnd(in);
+	}
+
+	/**
+	 * Wrap a body for streaming consumers, failing once more than maxBytes have
+	 * been read.
+	 *
+	 * @param in            the request body
+	 * @param contentLength the declared length, or -1 if unknown
+	 * @return the limited stream
+	 * @throws TooLargeException if contentLength is larger than maxBytes
+	 */
+	public InputStream limit(InputStream in, long contentLength) throws IOException {
+		if (contentLength > maxBytes) {
+			throw new TooLargeException(contentLength, maxBytes);
+		}
+		return new FilterInputStream(in) {
+			private long total;
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					count(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					count(n);
+				}
+				return n;
+			}
+
+			private void count(int n) throws TooLargeException {
+				total += n;
+				if (total > maxBytes) {
+					throw new TooLargeException(total, maxBytes);
+				}
+			}
+		};
+	}
+
+	private byte[] readToEnd(InputStream in) throws IOException {
+		List<byte[]> buffers = new ArrayList<>(2);
+		try {
+			byte[] buffer = borrow();
+			buffers.add(buffer);
+			int offset = 0;
+			long total = 0;
+			while (true) {
+				if (offset == buffer.length) {
+					buffer = borrow();
+					buffers.add(buffer);
+					offset = 0;
+				}
+				int n = in.read(buffer, offset, buffer.length - offset);
+				if (n < 0) {
+					break;
+				}
+				offset += n;
+				total += n;
+				if (total > maxBytes) {
+					throw new TooLargeException(total, maxBytes);
+				}
+			}
+
+			byte[] body = new byte[(int) total];
+			int position = 0;
+			for (byte[] full : buffers) {
+				int length = (int) Math.min(full.length, total - position);
+				System.arraycopy(full, 0, body, position, length);
+				position += length;
+			}
+			return body;
+		} finally {
+			for (byte[] buffer : buffers) {
+				pool.offer(buffer);
+			}
+		}
+	}
+
+	private byte[] borrow() {
+		byte[] buffer = pool.poll();
+		return buffer != null ? buffer : new byte[bufferSize];
+	}
+}
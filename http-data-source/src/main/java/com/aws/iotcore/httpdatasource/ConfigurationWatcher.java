@@ -0,0 +1,106 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.iotcore.httpdatasource;
+
+import java.io.Closeable;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.aws.greengrass.componentcommon.Log;
+
+import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPC;
+import software.amazon.awssdk.aws.greengrass.SubscribeToConfigurationUpdateResponseHandler;
+import software.amazon.awssdk.aws.greengrass.model.ConfigurationUpdateEvents;
+import software.amazon.awssdk.aws.greengrass.model.SubscribeToConfigurationUpdateRequest;
+import software.amazon.awssdk.eventstreamrpc.StreamResponseHandler;
+
+/**
+ * Calls back when this component's configuration changes. A deployment updates
+ * keys one at a time, so updates arriving within debounceMs of each other are
+ * applied together. The callback runs on the watcher's own thread, since
+ * reading the new configuration over IPC from the IPC event thread would
+ * deadlock.
+ */
+public class ConfigurationWatcher implements Closeable {
+
+	private static final Log LOG = Log.get("ConfigurationWatcher");
+
+	private final GreengrassCoreIPC ipcClient;
+	private final Runnable onChange;
+	private final long debounceMs;
+	private final ScheduledExecutorService executor;
+	private ScheduledFuture<?> pending;
+	private SubscribeToConfigurationUpdateResponseHandler stream;
+
+	public ConfigurationWatcher(GreengrassCoreIPC ipcClient, long debounceMs, Runnable onChange) {
+		this.ipcClient = ipcClient;
+		this.debounceMs = debounceMs;
+		this.onChange = onChange;
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "config-watcher");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Subscribe to configuration updates.
+	 *
+	 * @throws ExecutionException   if subscribing fails
+	 * @throws InterruptedException if subscribing is interrupted
+	 * @throws TimeoutException     if Greengrass does not answer
+	 */
+	public void start() throws ExecutionException, InterruptedException, TimeoutException {
+		SubscribeToConfigurationUpdateRequest request = new SubscribeToConfigurationUpdateRequest();
+		stream = ipcClient.subscribeToConfigurationUpdate(request,
+				Optional.of(new StreamResponseHandler<ConfigurationUpdateEvents>() {
+					@Override
+					public void onStreamEvent(ConfigurationUpdateEvents events) {
+						LOG.info("Configuration updated: {}", events.getConfigurationUpdateEvent().getKeyPath());
+						changed();
+					}
+
+					@Override
+					public boolean onStreamError(Throwable throwable) {
+						LOG.error("Configuration update stream failed", throwable);
+						return false;
+					}
+
+					@Override
+					public void onStreamClosed() {
+					}
+				}));
+		stream.getResponse().get(10, TimeUnit.SECONDS);
+	}
+
+	private synchronized void changed() {
+		if (pending != null) {
+			pending.cancel(false);
+		}
+		pending = executor.schedule(this::apply, debounceMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void apply() {
+		try {
+			onChange.run();
+		} catch (RuntimeException e) {
+			LOG.error("Configuration update failed: {}", e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		if (stream != null) {
+			stream.closeStream();
+		}
+	}
+}
@@ -1,6 +1,10 @@
 package com.aws.iotcore.httpdatasource;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import com.aws.greengrass.componentcommon.Log;
 
 import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPC;
 import software.amazon.awssdk.aws.greengrass.GreengrassCoreIPCClient;
@@ -9,36 +13,54 @@ import software.amazon.awssdk.eventstreamrpc.EventStreamRPCConnection;
 
 public class Main {
 
+	private static final Log LOG = Log.get("Main");
+
 	private static EventStreamRPCConnection connection;
 	private static GreengrassCoreIPC client;
 	private static Worker worker;
+	private static ConfigurationWatcher watcher;
 
 	public static void main(String[] args) {
 		try {
 
-			System.out.println("HttpDataSource: Starting application...");
+			LOG.info("HttpDataSource: Starting application...");
 
 			connection = IPCUtil.getEventStreamRpcConnection();
 			client = new GreengrassCoreIPCClient(connection);
 
-			System.out.println("HttpDataSource: Starting client");
+			LOG.info("HttpDataSource: Starting client");
 			worker = new Worker(client);
 			worker.startup();
 
+			// Apply configuration changes without a restart
+			watcher = new ConfigurationWatcher(client, 1000, () -> {
+				try {
+					worker.reconfigure();
+				} catch (ExecutionException e) {
+					LOG.warn("Failed to read configuration: {}", e.getMessage());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			watcher.start();
+
 			IPCUtil.reportState(client, ReportedLifecycleState.RUNNING);
 
-			System.out.println("HttpDataSource: Waiting");
+			LOG.info("HttpDataSource: Waiting");
 			// Just keep the main thread alive here.
 			while (!Thread.currentThread().isInterrupted()) {
 				Thread.sleep(100_000);
 			}
 
-			System.out.println("HttpDataSource: Main Thread exiting...");
+			LOG.info("HttpDataSource: Main Thread exiting...");
 
 		} catch (Throwable e) {
-			e.printStackTrace();
+			LOG.error("HttpDataSource failed", e);
 			System.exit(1);
 		} finally {
+			if (watcher != null) {
+				watcher.close();
+			}
 			if (connection != null) {
 				connection.close();
 			}
@@ -46,11 +68,22 @@ public class Main {
 				try {
 					worker.close();
 				} catch (IOException e) {
-					e.printStackTrace();
+					LOG.error("Failed to close the worker", e);
 				}
 			}
 		}
 
-		System.out.println("HttpDataSource: Application has exited");
+		LOG.info("HttpDataSource: Application has exited");
+	}
+
+	// Numbers in the component configuration arrive as Doubles
+	static int intValue(Map<String, Object> config, String key, int defaultValue) {
+		Object value = config.get(key);
+		return value == null ? defaultValue : ((Number) value).intValue();
+	}
+
+	static long longValue(Map<String, Object> config, String key, long defaultValue) {
+		Object value = config.get(key);
+		return value == null ? defaultValue : ((Number) value).longValue();
 	}
 }
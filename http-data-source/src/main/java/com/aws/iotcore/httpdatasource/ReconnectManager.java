@@ -0,0 +1,291 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.iotcore.httpdatasource;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+
+/**
+ * Keeps a local MQTT client connected. When the connection is lost, reconnect
+ * attempts run on the manager's own thread with jittered exponential backoff,
+ * so Paho's callback thread is never blocked. Paho's automatic reconnect is
+ * turned off so the two do not race each other.
+ *
+ * Outbound publishes made while disconnected are held in a bounded buffer
+ * (oldest dropped when full) and sent in order once the link is back.
+ *
+ * While connected, publishes take one of the client's maxInflight slots, freed
+ * as each completes, and wait for one when all are taken; the buffer is only
+ * for outages, never for flow control. Anything left in the buffer is sent by a
+ * single drain, run again whenever a slot frees up.
+ */
+public class ReconnectManager implements Closeable {
+
+	private static final Log LOG = Log.get("ReconnectManager");
+	private static final Log.Tally DRAIN_FAILURES = LOG.tally("buffered publishes refused by the client");
+
+	private static final LongAdder PUBLISHED = Metrics.registry().counter("httpdatasource_published_total",
+			"Messages handed to the local MQTT client");
+	private static final LongAdder BUFFERED = Metrics.registry().counter("httpdatasource_buffered_total",
+			"Messages buffered while the local broker was unavailable");
+	private static final LongAdder RECONNECTS = Metrics.registry().counter("httpdatasource_reconnects_total",
+			"Reconnections to the local broker");
+
+	private final MqttAsyncClient mqttClient;
+	private final MqttConnectOptions options;
+	private final long minDelayMs;
+	private final long maxDelayMs;
+	private final Runnable onReconnected;
+	private final ArrayBlockingQueue<PendingPublish> pending;
+	private final ScheduledExecutorService executor;
+	private final AtomicBoolean reconnecting = new AtomicBoolean();
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+	private final LongAdder dropped = new LongAdder();
+	// One permit per publish the client may have outstanding
+	private final Semaphore inFlight;
+	private final IMqttActionListener completed = new IMqttActionListener() {
+		@Override
+		public void onSuccess(IMqttToken token) {
+			inFlight.release();
+			requestDrain();
+		}
+
+		@Override
+		public void onFailure(IMqttToken token, Throwable exception) {
+			inFlight.release();
+			requestDrain();
+		}
+	};
+	private volatile boolean closed;
+
+	/**
+	 * @param onReconnected run on the manager thread after each successful
+	 *                      reconnect, before buffered publishes are sent (for
+	 *                      example, to restore subscriptions)
+	 */
+	public ReconnectManager(MqttAsyncClient mqttClient, MqttConnectOptions options, long minDelayMs, long maxDelayMs,
+			int bufferSize, Runnable onReconnected) {
+		this.mqttClient = mqttClient;
+		this.options = options;
+		this.minDelayMs = Math.max(1, minDelayMs);
+		this.maxDelayMs = Math.max(this.minDelayMs, maxDelayMs);
+		this.onReconnected = onReconnected;
+		this.pending = new ArrayBlockingQueue<>(Math.max(1, bufferSize));
+		this.inFlight = new Semaphore(Math.max(1, options.getMaxInflight()));
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "mqtt-reconnect");
+			t.setDaemon(true);
+			return t;
+		});
+		options.setAutomaticReconnect(false);
+	}
+
+	/**
+	 * Make the initial connection, blocking until it completes.
+	 *
+	 * @throws MqttException if connecting fails
+	 */
+	public void connect() throws MqttException {
+		LOG.info("Connecting to broker...");
+		mqttClient.connect(options).waitForCompletion();
+		LOG.info("Connected to broker");
+	}
+
+	/**
+	 * Start reconnecting in the background. Safe to call from a Paho callback;
+	 * returns immediately, and does nothing if a reconnect is already running.
+	 *
+	 * @param cause why the connection was lost
+	 */
+	public void connectionLost(Throwable cause) {
+		if (closed || !reconnecting.compareAndSet(false, true)) {
+			return;
+		}
+		LOG.warn("Lost connection to broker: {}", cause == null ? "unknown" : cause.getMessage());
+		schedule(0);
+	}
+
+	/**
+	 * Publish to the local broker, waiting up to waitMs for an in-flight slot,
+	 * or buffer the message if the link is down.
+	 *
+	 * @return the delivery token if the message was handed to the client, or null
+	 *         if it was buffered
+	 * @throws MqttException with REASON_CODE_MAX_INFLIGHT if no slot freed up in
+	 *                       time; the message was neither sent nor buffered
+	 */
+	public IMqttDeliveryToken publish(String topic, MqttMessage message, long waitMs) throws MqttException {
+		if (!reconnecting.get() && pending.isEmpty()) {
+			if (!acquire(waitMs)) {
+				throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+			}
+			try {
+				IMqttDeliveryToken token = mqttClient.publish(topic, message, null, completed);
+				PUBLISHED.increment();
+				return token;
+			} catch (MqttException e) {
+				inFlight.release();
+				LOG.warn("Publish Error: {}", e.getMessage());
+			}
+		}
+		BUFFERED.increment();
+		PendingPublish publish = new PendingPublish(topic, message);
+		while (!pending.offer(publish)) {
+			if (pending.poll() != null) {
+				dropped.increment();
+			}
+		}
+		// Still connected (the publish failed, or lost the race with a drain), so
+		// nothing else may be about to send this
+		requestDrain();
+		return null;
+	}
+
+	public boolean isConnected() {
+		return !reconnecting.get() && mqttClient.isConnected();
+	}
+
+	public int getBuffered() {
+		return pending.size();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		executor.shutdownNow();
+	}
+
+	private void schedule(int attempt) {
+		long ceiling = Math.min(maxDelayMs, minDelayMs << Math.min(attempt, 30));
+		// Equal jitter: half the delay is fixed, half is random
+		long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+		executor.schedule(() -> reconnect(attempt), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void reconnect(int attempt) {
+		if (closed) {
+			return;
+		}
+		try {
+			if (!mqttClient.isConnected()) {
+				mqttClient.connect(options).waitForCompletion();
+			}
+			LOG.info("Reconnected to broker after {} attempt(s)", attempt + 1);
+			RECONNECTS.increment();
+		} catch (MqttException e) {
+			LOG.warn("Reconnect attempt {} failed: {}", attempt + 1, e.getMessage());
+			schedule(attempt + 1);
+			return;
+		}
+
+		try {
+			onReconnected.run();
+		} catch (RuntimeException e) {
+			LOG.error("Reconnect callback failed", e);
+		}
+		if (!drain()) {
+			// Lost again while still flagged as reconnecting, so keep going here
+			schedule(0);
+			return;
+		}
+		reconnecting.set(false);
+		// Anything buffered after the drain but before the flag was cleared, or
+		// left over when the in-flight slots ran out
+		requestDrain();
+	}
+
+	// At most one drain is queued or running outside a reconnect; the next
+	// completed publish starts another if the buffer is still not empty
+	private void requestDrain() {
+		if (reconnecting.get() || closed || pending.isEmpty() || !drainScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(this::runDrain);
+		} catch (RejectedExecutionException e) {
+			// Closed
+			drainScheduled.set(false);
+		}
+	}
+
+	private void runDrain() {
+		// Cleared first so a slot freed while draining queues another pass
+		drainScheduled.set(false);
+		if (reconnecting.get() || closed || drain()) {
+			return;
+		}
+		// Connected, but the client refused the publish. Retry after a pause,
+		// or sooner if one in flight completes first.
+		DRAIN_FAILURES.increment();
+		executor.schedule(this::requestDrain, minDelayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Publish buffered messages in order until the buffer is empty or every
+	 * in-flight slot is taken; a slot freeing up calls requestDrain.
+	 *
+	 * @return false if the client refused a publish
+	 */
+	private boolean drain() {
+		PendingPublish publish;
+		while ((publish = pending.peek()) != null) {
+			if (!inFlight.tryAcquire()) {
+				return true;
+			}
+			try {
+				mqttClient.publish(publish.topic, publish.message, null, completed);
+				pending.poll();
+			} catch (MqttException e) {
+				inFlight.release();
+				LOG.debug("Publish Error: {}", e.getMessage());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean acquire(long waitMs) {
+		try {
+			return inFlight.tryAcquire(Math.max(0, waitMs), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static class PendingPublish {
+		private final String topic;
+		private final MqttMessage message;
+
+		PendingPublish(String topic, MqttMessage message) {
+			this.topic = topic;
+			this.message = message;
+		}
+	}
+}
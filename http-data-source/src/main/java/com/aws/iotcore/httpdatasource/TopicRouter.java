@@ -0,0 +1,332 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.aws.iotcore.httpdatasource;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Chooses the MQTT topic and QoS for a request from the routing table in
+ * mappings.routes. Each route is a map such as:
+ *
+ * <pre>
+ * { path: "/api/lines/{line}", topic: "factory/{line}/data", qos: 1,
+ *   headers: { "X-Source": "plc" }, query: { "type": "telemetry" } }
+ * </pre>
+ *
+ * path is matched segment by segment: a literal matches itself, {name} matches
+ * any one segment and captures it, and a trailing * matches the rest. headers
+ * and query are optional values the request must also carry. Placeholders in
+ * topic are filled from path captures, then query parameters, then headers of
+ * the same name.
+ *
+ * Routes are compiled once into a trie keyed by path segment. Literal segments
+ * are preferred over {name}, and {name} over *; routes on the same path are
+ * tried in configuration order. Requests that match no route go to the default
+ * topic, if there is one.
+ *
+ * {@link #update(List, String)} compiles a new table and swaps it in at once, so
+ * a request is routed by either the old table or the new one, never a mix.
+ */
+public class TopicRouter {
+
+	public static final String PATH = "path";
+	public static final String TOPIC = "topic";
+	public static final String QOS = "qos";
+	public static final String HEADERS = "headers";
+	public static final String QUERY = "query";
+
+	/**
+	 * Where a request's messages are published.
+	 */
+	public static class Destination {
+		private final String topic;
+		private final int qos;
+
+		public Destination(String topic, int qos) {
+			this.topic = topic;
+			this.qos = qos;
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		public int getQos() {
+			return qos;
+		}
+	}
+
+	private volatile Table table;
+
+	/**
+	 * @param routes       the routes from the component configuration, may be null
+	 * @param defaultTopic topic for requests no route matches, null to reject them
+	 */
+	public TopicRouter(List<Object> routes, String defaultTopic) {
+		update(routes, defaultTopic);
+	}
+
+	/**
+	 * Replace the routing table.
+	 *
+	 * @param routes       the routes from the component configuration, may be null
+	 * @param defaultTopic topic for requests no route matches, null to reject them
+	 * @throws IllegalArgumentException if a route is invalid, the current table is
+	 *                                  kept
+	 */
+	@SuppressWarnings("unchecked")
+	public void update(List<Object> routes, String defaultTopic) {
+		Node root = new Node();
+		if (routes != null) {
+			for (Object route : routes) {
+				add(root, (Map<String, Object>) route);
+			}
+		}
+		table = new Table(root, defaultTopic == null ? null : new Destination(defaultTopic, 1));
+	}
+
+	/**
+	 * @return the destination for the request, or null if nothing matches
+	 */
+	public Destination route(HttpExchange he) {
+		Table table = this.table;
+		String[] segments = split(he.getRequestURI().getPath());
+		Request request = new Request(he);
+		Destination destination = table.root.match(segments, 0, request);
+		return destination != null ? destination : table.fallback;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void add(Node root, Map<String, Object> config) {
+		String path = (String) config.get(PATH);
+		String topic = (String) config.get(TOPIC);
+		if (path == null || topic == null) {
+			throw new IllegalArgumentException("Route needs a " + PATH + " and a " + TOPIC + ": " + config);
+		}
+
+		Route route = new Route(BatchHandler.parseTemplate(topic), Main.intValue(config, QOS, 1),
+				strings((Map<String, Object>) config.get(HEADERS)), strings((Map<String, Object>) config.get(QUERY)));
+		if (route.qos < 0 || route.qos > 2) {
+			throw new IllegalArgumentException("Route QoS must be 0, 1 or 2: " + config);
+		}
+
+		Node node = root;
+		String[] segments = split(path);
+		for (int i = 0; i < segments.length; i++) {
+			String segment = segments[i];
+			if (segment.equals("*")) {
+				if (i != segments.length - 1) {
+					throw new IllegalArgumentException("* must be the last segment of a route path: " + path);
+				}
+				node.rest.add(route);
+				return;
+			}
+			if (segment.startsWith("{") && segment.endsWith("}")) {
+				String name = segment.substring(1, segment.length() - 1);
+				if (node.param == null) {
+					node.param = new Node();
+					node.paramName = name;
+				} else if (!node.paramName.equals(name)) {
+					throw new IllegalArgumentException("Conflicting path parameter {" + name + "} in " + path
+							+ ", another route uses {" + node.paramName + "}");
+				}
+				node = node.param;
+			} else {
+				node = node.literals.computeIfAbsent(segment, s -> new Node());
+			}
+		}
+		node.routes.add(route);
+	}
+
+	private static Map<String, String> strings(Map<String, Object> config) {
+		if (config == null || config.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> strings = new LinkedHashMap<>();
+		for (Map.Entry<String, Object> entry : config.entrySet()) {
+			strings.put(entry.getKey(), String.valueOf(entry.getValue()));
+		}
+		return strings;
+	}
+
+	private static String[] split(String path) {
+		List<String> segments = new ArrayList<>();
+		int start = 0;
+		for (int i = 0; i <= path.length(); i++) {
+			if (i == path.length() || path.charAt(i) == '/') {
+				if (i > start) {
+					segments.add(path.substring(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		return segments.toArray(new String[0]);
+	}
+
+	private static class Table {
+		private final Node root;
+		private final Destination fallback;
+
+		Table(Node root, Destination fallback) {
+			this.root = root;
+			this.fallback = fallback;
+		}
+	}
+
+	private static class Node {
+		private final Map<String, Node> literals = new HashMap<>();
+		private Node param;
+		private String paramName;
+		// Routes ending here, and routes ending here with a trailing *
+		private final List<Route> routes = new ArrayList<>(1);
+		private final List<Route> rest = new ArrayList<>(0);
+
+		Destination match(String[] segments, int index, Request request) {
+			if (index == segments.length) {
+				Destination destination = first(routes, request);
+				return destination != null ? destination : first(rest, request);
+			}
+
+			Node literal = literals.get(segments[index]);
+			if (literal != null) {
+				Destination destination = literal.match(segments, index + 1, request);
+				if (destination != null) {
+					return destination;
+				}
+			}
+			if (param != null) {
+				String previous = request.captures.put(paramName, segments[index]);
+				Destination destination = param.match(segments, index + 1, request);
+				if (destination != null) {
+					return destination;
+				}
+				if (previous == null) {
+					request.captures.remove(paramName);
+				} else {
+					request.captures.put(paramName, previous);
+				}
+			}
+			return first(rest, request);
+		}
+
+		private static Destination first(List<Route> routes, Request request) {
+			for (Route route : routes) {
+				Destination destination = route.resolve(request);
+				if (destination != null) {
+					return destination;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static class Route {
+		// Literal text at even indexes, placeholder names at odd indexes
+		private final List<String> topic;
+		private final int qos;
+		private final Map<String, String> headers;
+		private final Map<String, String> query;
+
+		Route(List<String> topic, int qos, Map<String, String> headers, Map<String, String> query) {
+			this.topic = topic;
+			this.qos = qos;
+			this.headers = headers;
+			this.query = query;
+		}
+
+		Destination resolve(Request request) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				if (!header.getValue().equals(request.header(header.getKey()))) {
+					return null;
+				}
+			}
+			for (Map.Entry<String, String> param : query.entrySet()) {
+				if (!param.getValue().equals(request.query().get(param.getKey()))) {
+					return null;
+				}
+			}
+
+			if (topic.size() == 1) {
+				return new Destination(topic.get(0), qos);
+			}
+			StringBuilder resolved = new StringBuilder();
+			for (int i = 0; i < topic.size(); i++) {
+				if (i % 2 == 0) {
+					resolved.append(topic.get(i));
+					continue;
+				}
+				String level = request.value(topic.get(i));
+				// A value may only fill in its own topic level
+				if (level == null || level.isEmpty() || level.indexOf('/') >= 0 || level.indexOf('+') >= 0
+						|| level.indexOf('#') >= 0) {
+					return null;
+				}
+				resolved.append(level);
+			}
+			return new Destination(resolved.toString(), qos);
+		}
+	}
+
+	/**
+	 * The parts of a request routes look at; the query string is only parsed if
+	 * a route needs it.
+	 */
+	private static class Request {
+		private final HttpExchange he;
+		private final Map<String, String> captures = new HashMap<>(4);
+		private Map<String, String> query;
+
+		Request(HttpExchange he) {
+			this.he = he;
+		}
+
+		String header(String name) {
+			return he.getRequestHeaders().getFirst(name);
+		}
+
+		String value(String name) {
+			String value = captures.get(name);
+			if (value == null) {
+				value = query().get(name);
+			}
+			return value != null ? value : header(name);
+		}
+
+		Map<String, String> query() {
+			if (query == null) {
+				query = new HashMap<>();
+				String raw = he.getRequestURI().getRawQuery();
+				if (raw != null) {
+					for (String pair : raw.split("&")) {
+						int eq = pair.indexOf('=');
+						String name = decode(eq < 0 ? pair : pair.substring(0, eq));
+						if (!query.containsKey(name)) {
+							query.put(name, eq < 0 ? "" : decode(pair.substring(eq + 1)));
+						}
+					}
+				}
+			}
+			return query;
+		}
+
+		private static String decode(String value) {
+			try {
+				return URLDecoder.decode(value, "UTF-8");
+			} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+				return value;
+			}
+		}
+	}
+}
@@ -1,23 +1,35 @@
 package com.aws.iotcore.httpdatasource;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
-import com.sun.net.httpserver.Headers;
+import com.aws.greengrass.componentcommon.Log;
+import com.aws.greengrass.componentcommon.Metrics;
+import com.aws.greengrass.componentcommon.MetricsReporter;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -29,24 +41,81 @@ import software.amazon.awssdk.aws.greengrass.model.GetConfigurationResponse;
 @SuppressWarnings("restriction")
 public class Worker implements Closeable {
 
+	private static final Log LOG = Log.get("Worker");
+
 	protected static final String MAPPINGS = "mappings";
 	protected static final String LOCAL_TOPIC = "localTopic";
+	protected static final String BATCH_TOPIC = "batchTopic";
+	protected static final String ROUTES = "routes";
 
 	protected static final String CONNECTION_INFO = "connectionInfo";
 	protected static final String HTTP_PORT = "httpPort";
 	protected static final String HTTP_ROOT_CONTEXT = "httpRootContext";
+	protected static final String HTTP_BATCH_CONTEXT = "httpBatchContext";
 	protected static final String BROKER_URI = "brokerUri";
 	protected static final String CLIENT_ID = "clientId";
 	protected static final String USERNAME = "username";
 	protected static final String PASSWORD = "password";
+	protected static final String RECONNECT_MIN_DELAY_MS = "reconnectMinDelayMs";
+	protected static final String RECONNECT_MAX_DELAY_MS = "reconnectMaxDelayMs";
+	protected static final String PUBLISH_BUFFER_SIZE = "publishBufferSize";
+	protected static final String MQTT_MAX_IN_FLIGHT = "mqttMaxInFlight";
+	protected static final String HTTP_EXECUTOR = "httpExecutor";
+	protected static final String HTTP_THREADS = "httpThreads";
+	protected static final String HTTP_QUEUE_SIZE = "httpQueueSize";
+	protected static final String HTTP_BACKLOG = "httpBacklog";
+	protected static final String HTTP_IDLE_INTERVAL_SEC = "httpIdleIntervalSec";
+	protected static final String HTTP_MAX_IDLE_CONNECTIONS = "httpMaxIdleConnections";
+	protected static final String HTTP_ACK = "httpAck";
+	protected static final String PUBLISH_TIMEOUT_MS = "publishTimeoutMs";
+	protected static final String MAX_BODY_BYTES = "maxBodyBytes";
+	protected static final String BODY_BUFFER_SIZE = "bodyBufferSize";
+
+	protected static final String EXECUTOR_DISPATCHER = "dispatcher";
+	protected static final String EXECUTOR_POOL = "pool";
+	protected static final String EXECUTOR_VIRTUAL = "virtual";
+	protected static final String ACK_SYNC = "sync";
+	protected static final String ACK_ACCEPTED = "accepted";
+	protected static final String METRICS_TOPIC = "metricsTopic";
+	protected static final String METRICS_INTERVAL_MS = "metricsIntervalMs";
+	protected static final String METRICS_CONTEXT = "metricsContext";
+
+	// Settings reconfigure() applies, changes to the others need a restart
+	private static final List<String> LIVE_SETTINGS = Arrays.asList(USERNAME, PASSWORD, Log.LOG_LEVEL, Log.LOG_LEVELS,
+			Log.LOG_RATE_LIMIT, Log.LOG_SUMMARY_INTERVAL_MS);
+	private static final Log.Tally REQUESTS_TALLY = LOG.tally("HTTP requests received");
+	private static final LongAdder REQUESTS = Metrics.registry().counter("httpdatasource_requests_total",
+			"HTTP requests received");
+	private static final LongAdder REQUEST_BYTES = Metrics.registry().counter("httpdatasource_request_bytes_total",
+			"Bytes of HTTP request bodies read");
+	private static final LongAdder RESPONSES_2XX = Metrics.registry().counter("httpdatasource_responses_2xx_total",
+			"HTTP responses with a 2xx status");
+	private static final LongAdder RESPONSES_4XX = Metrics.registry().counter("httpdatasource_responses_4xx_total",
+			"HTTP responses with a 4xx status");
+	private static final LongAdder RESPONSES_5XX = Metrics.registry().counter("httpdatasource_responses_5xx_total",
+			"HTTP responses with a 5xx status");
+	static final LongAdder PUBLISH_FAILURES = Metrics.registry().counter("httpdatasource_publish_failures_total",
+			"Synchronous publishes that failed or timed out");
+	static final Metrics.Histogram REQUEST_LATENCY = Metrics.registry().histogram("httpdatasource_request_latency",
+			"Time to handle an HTTP request, microseconds");
 
 	private GreengrassCoreIPC ipcClient;
-	private MqttClient mqttClient;
+	private MqttAsyncClient mqttClient;
+	private ReconnectManager reconnectManager;
 	private HttpServer server;
+	private ExecutorService executor;
+	private MqttConnectOptions options;
+	private TopicRouter router;
+	private BatchHandler batchHandler;
+	private Map<String, Object> connectionInfo;
+	private MetricsReporter metricsReporter;
 
 	private String localTopic;
+	private String batchTopic;
+	private List<Object> routes;
 	private Double httpPort;
 	private String httpRootContext;
+	private String httpBatchContext;
 	private String brokerUri;
 	private String clientId;
 	private String username;
@@ -57,13 +126,14 @@ public class Worker implements Closeable {
 	}
 
 	/**
-	 * Get the initial configuration from Greengrass and connect to the broker. Does
-	 * NOT dynamically reconfigure when configuration changes.
+	 * Get the initial configuration from Greengrass and connect to the broker.
+	 * Later changes are applied by {@link #reconfigure()}.
 	 *
 	 * @throws ExecutionException   if reading configuration fails
 	 * @throws InterruptedException if anything is interrupted
 	 * @throws MqttException        if connecting to the broker fails
 	 */
+	@SuppressWarnings("unchecked")
 	public void startup() throws ExecutionException, InterruptedException, MqttException, IOException {
 		// Get Configuration Information
 		GetConfigurationRequest getConfigurationRequest = new GetConfigurationRequest();
@@ -73,47 +143,45 @@ public class Worker implements Closeable {
 		GetConfigurationResponse response = ipcClient.getConfiguration(getConfigurationRequest, Optional.empty())
 				.getResponse().get();
 		localTopic = (String) response.getValue().get(LOCAL_TOPIC);
+		batchTopic = (String) response.getValue().get(BATCH_TOPIC);
+		routes = (List<Object>) response.getValue().get(ROUTES);
 
 		// Get Connection Information
 		getConfigurationRequest.setKeyPath(Arrays.asList(CONNECTION_INFO));
 		response = ipcClient.getConfiguration(getConfigurationRequest, Optional.empty()).getResponse().get();
 		httpPort = (Double) response.getValue().get(HTTP_PORT);
 		httpRootContext = (String) response.getValue().get(HTTP_ROOT_CONTEXT);
+		httpBatchContext = (String) response.getValue().get(HTTP_BATCH_CONTEXT);
 		brokerUri = (String) response.getValue().get(BROKER_URI);
 		username = (String) response.getValue().get(USERNAME);
 		password = (String) response.getValue().get(PASSWORD);
 		clientId = (String) response.getValue().get(CLIENT_ID);
 
 		// Create our MQTT Client and connect
-		mqttClient = new MqttClient(brokerUri, clientId);
-		MqttConnectOptions options = new MqttConnectOptions();
-		options.setAutomaticReconnect(true);
+		// Publishes are asynchronous, so HTTP threads never wait on the broker unless
+		// a synchronous ack is configured
+		mqttClient = new MqttAsyncClient(brokerUri, clientId);
+		options = new MqttConnectOptions();
 		options.setCleanSession(true);
+		options.setMaxInflight(Main.intValue(response.getValue(), MQTT_MAX_IN_FLIGHT, 100));
 		if (username != null) {
 			options.setUserName(username);
 		}
 		if (password != null) {
 			options.setPassword(password.toCharArray());
 		}
-		System.out.println("Connecting to broker...");
-		mqttClient.connectWithResult(options).waitForCompletion();
-		System.out.println("Connected to broker");
+		reconnectManager = new ReconnectManager(mqttClient, options,
+				Main.longValue(response.getValue(), RECONNECT_MIN_DELAY_MS, 1000),
+				Main.longValue(response.getValue(), RECONNECT_MAX_DELAY_MS, 60_000),
+				Main.intValue(response.getValue(), PUBLISH_BUFFER_SIZE, 1000), () -> {
+				});
 
 		mqttClient.setCallback(new MqttCallback() {
 
 			@Override
 			public void connectionLost(Throwable throwable) {
-				// Handle reconnection here
-				System.err.println("Lost connection to broker!!! Waiting 10 seconds");
-				try {
-					TimeUnit.SECONDS.sleep(10);
-					System.out.println("Connecting to broker...");
-					mqttClient.connectWithResult(options).waitForCompletion();
-					System.out.println("Connected to broker");
-				} catch (InterruptedException | MqttException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+				// Reconnects in the background, never blocks this callback thread
+				reconnectManager.connectionLost(throwable);
 			}
 
 			@Override
@@ -125,79 +193,286 @@ public class Worker implements Closeable {
 				// Assuming you had created a stream manager client, then:
 				// streamManagerClient.appendMessage("streamName", mqttMessage.getPayload());
 				//
-				System.out.println("Local Message Arrived... Ignoring");
+				LOG.debug("Local message arrived on {}, ignoring", s);
 			}
 
 			@Override
 			public void deliveryComplete(IMqttDeliveryToken t) {
-				System.out.println("Message delivery complete - " + t.toString());
 			}
 		});
-		
+
+		reconnectManager.connect();
+
+		// Keep-alive tuning, read by the JDK when the first server is created
+		connectionInfo = response.getValue();
+		Log.configure(connectionInfo);
+		if (connectionInfo.get(HTTP_IDLE_INTERVAL_SEC) != null) {
+			System.setProperty("sun.net.httpserver.idleInterval",
+					String.valueOf(Main.longValue(connectionInfo, HTTP_IDLE_INTERVAL_SEC, 30)));
+		}
+		if (connectionInfo.get(HTTP_MAX_IDLE_CONNECTIONS) != null) {
+			System.setProperty("sun.net.httpserver.maxIdleConnections",
+					String.valueOf(Main.intValue(connectionInfo, HTTP_MAX_IDLE_CONNECTIONS, 200)));
+		}
+
+		String ack = (String) connectionInfo.get(HTTP_ACK);
+		if (ack != null && !ACK_SYNC.equals(ack) && !ACK_ACCEPTED.equals(ack)) {
+			throw new IllegalArgumentException("Unknown " + HTTP_ACK + ": " + ack);
+		}
 
 		// Create HTTP Server
-		server = HttpServer.create(new InetSocketAddress(httpPort.intValue()), 0);
-		server.createContext(httpRootContext, new httpHandler(mqttClient, localTopic));
-		server.setExecutor(null); // creates a default executor
+		server = HttpServer.create(new InetSocketAddress(httpPort.intValue()),
+				Main.intValue(connectionInfo, HTTP_BACKLOG, 0));
+		int httpThreads = Main.intValue(connectionInfo, HTTP_THREADS, 16);
+		BodyReader bodyReader = new BodyReader(Main.intValue(connectionInfo, MAX_BODY_BYTES, 1048576),
+				Main.intValue(connectionInfo, BODY_BUFFER_SIZE, 16384), httpThreads);
+		router = new TopicRouter(routes, localTopic);
+		server.createContext(httpRootContext, new httpHandler(reconnectManager, router, bodyReader,
+				ACK_ACCEPTED.equals(ack), Main.longValue(connectionInfo, PUBLISH_TIMEOUT_MS, 5000)));
+		if (httpBatchContext != null) {
+			// Many records per POST, each published as its own message
+			batchHandler = new BatchHandler(reconnectManager, router, batchTopic, bodyReader, ACK_ACCEPTED.equals(ack),
+					Main.longValue(connectionInfo, PUBLISH_TIMEOUT_MS, 5000));
+			server.createContext(httpBatchContext, batchHandler);
+		}
+		executor = createExecutor((String) connectionInfo.get(HTTP_EXECUTOR), httpThreads,
+				Main.intValue(connectionInfo, HTTP_QUEUE_SIZE, 1000));
+		server.setExecutor(executor); // null runs every request on the dispatcher thread
+
+		Metrics.registry().gauge("httpdatasource_buffered", "Messages buffered for the local broker",
+				reconnectManager::getBuffered);
+		Metrics.registry().counter("httpdatasource_buffer_dropped_total",
+				"Buffered messages dropped because the buffer was full", reconnectManager::getDropped);
+		String metricsContext = (String) connectionInfo.get(METRICS_CONTEXT);
+		if (metricsContext != null) {
+			server.createContext(metricsContext, MetricsReporter.prometheusHandler(Metrics.registry()));
+		}
+		metricsReporter = new MetricsReporter(Metrics.registry(), mqttClient,
+				(String) connectionInfo.get(METRICS_TOPIC), Main.longValue(connectionInfo, METRICS_INTERVAL_MS, 60_000));
+		metricsReporter.start();
+
 		server.start();
 
 	}
 
+	/**
+	 * Apply a configuration update without restarting the server or reconnecting.
+	 * The route table and batch topic are swapped in for the next request, and
+	 * credentials are used from the next reconnect. Other connection settings need
+	 * a restart.
+	 *
+	 * @throws ExecutionException   if reading configuration fails
+	 * @throws InterruptedException if anything is interrupted
+	 */
+	@SuppressWarnings("unchecked")
+	public void reconfigure() throws ExecutionException, InterruptedException {
+		GetConfigurationRequest getConfigurationRequest = new GetConfigurationRequest();
+		getConfigurationRequest.setKeyPath(Arrays.asList(MAPPINGS));
+		Map<String, Object> mappings = ipcClient.getConfiguration(getConfigurationRequest, Optional.empty())
+				.getResponse().get().getValue();
+		getConfigurationRequest.setKeyPath(Arrays.asList(CONNECTION_INFO));
+		Map<String, Object> newConnectionInfo = ipcClient.getConfiguration(getConfigurationRequest, Optional.empty())
+				.getResponse().get().getValue();
+
+		String newLocalTopic = (String) mappings.get(LOCAL_TOPIC);
+		List<Object> newRoutes = (List<Object>) mappings.get(ROUTES);
+		if (!Objects.equals(localTopic, newLocalTopic) || !Objects.equals(routes, newRoutes)) {
+			router.update(newRoutes, newLocalTopic);
+			localTopic = newLocalTopic;
+			routes = newRoutes;
+			LOG.info("Routes updated");
+		}
+		String newBatchTopic = (String) mappings.get(BATCH_TOPIC);
+		if (batchHandler != null && !Objects.equals(batchTopic, newBatchTopic)) {
+			batchHandler.setTopicTemplate(newBatchTopic);
+			batchTopic = newBatchTopic;
+			LOG.info("Batch topic is now {}", batchTopic == null ? "the route's topic" : batchTopic);
+		}
+
+		String newUsername = (String) newConnectionInfo.get(USERNAME);
+		String newPassword = (String) newConnectionInfo.get(PASSWORD);
+		if (!Objects.equals(username, newUsername) || !Objects.equals(password, newPassword)) {
+			LOG.info("Broker credentials changed, using them from the next reconnect");
+			username = newUsername;
+			password = newPassword;
+			options.setUserName(username);
+			options.setPassword(password == null ? null : password.toCharArray());
+		}
+		for (Map.Entry<String, Object> setting : newConnectionInfo.entrySet()) {
+			String key = setting.getKey();
+			if (!LIVE_SETTINGS.contains(key) && !Objects.equals(connectionInfo.get(key), setting.getValue())) {
+				LOG.info("{} changed, restart the component to apply", key);
+			}
+		}
+		Log.configure(newConnectionInfo);
+		connectionInfo = newConnectionInfo;
+	}
+
+	/**
+	 * Create the executor HTTP requests are handled on.
+	 *
+	 * @param mode      EXECUTOR_POOL (the default), EXECUTOR_VIRTUAL for a virtual
+	 *                  thread per request (JDK 21+, otherwise falls back to a pool)
+	 *                  or EXECUTOR_DISPATCHER for the server's single thread
+	 * @param threads   pool size
+	 * @param queueSize requests that may wait for a pool thread; beyond that the
+	 *                  dispatcher thread runs the request itself, which pushes back
+	 *                  on new connections
+	 * @return the executor, or null for the dispatcher thread
+	 */
+	static ExecutorService createExecutor(String mode, int threads, int queueSize) {
+		if (EXECUTOR_DISPATCHER.equals(mode)) {
+			return null;
+		}
+		if (EXECUTOR_VIRTUAL.equals(mode)) {
+			try {
+				// Looked up reflectively so the component still builds for Java 8
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				LOG.warn("Virtual threads need JDK 21 or later, using a thread pool");
+			}
+		} else if (mode != null && !EXECUTOR_POOL.equals(mode)) {
+			throw new IllegalArgumentException("Unknown " + HTTP_EXECUTOR + ": " + mode);
+		}
+
+		AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+				r -> {
+					Thread t = new Thread(r, "http-worker-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
 	static class httpHandler implements HttpHandler {
 		
-		private MqttClient mqttClient;
-		private String localTopic;
+		private ReconnectManager reconnectManager;
+		private TopicRouter router;
+		private BodyReader bodyReader;
+		private boolean fastAck;
+		private long publishTimeoutMs;
 		
-		public httpHandler(MqttClient client, String topic) {
-			this.mqttClient = client;
-			this.localTopic = topic;
+		public httpHandler(ReconnectManager reconnectManager, TopicRouter router, BodyReader bodyReader,
+				boolean fastAck, long publishTimeoutMs) {
+			this.reconnectManager = reconnectManager;
+			this.router = router;
+			this.bodyReader = bodyReader;
+			this.fastAck = fastAck;
+			this.publishTimeoutMs = publishTimeoutMs;
 		}
 
 		public void handle(HttpExchange he) throws IOException {
-			System.out.println("HTTP Message Received");
+			long start = System.nanoTime();
+			REQUESTS.increment();
+			REQUESTS_TALLY.increment();
+
+			try {
+				// Serve for POST requests only
+				if (!he.getRequestMethod().equalsIgnoreCase("POST")) {
+					respond(he, HttpURLConnection.HTTP_BAD_METHOD, "METHOD_NOT_ALLOWED");
+					return;
+				}
+
+				TopicRouter.Destination destination = router.route(he);
+				if (destination == null) {
+					respond(he, HttpURLConnection.HTTP_NOT_FOUND, "NO_ROUTE");
+					return;
+				}
 
-			// Serve for POST requests only
-			if (he.getRequestMethod().equalsIgnoreCase("POST")) {
+				byte[] message;
+				try {
+					// Absent for chunked uploads, the server de-chunks the body stream
+					String contentLength = he.getRequestHeaders().getFirst("Content-length");
+					message = bodyReader.read(he.getRequestBody(),
+							contentLength == null ? -1 : Long.parseLong(contentLength.trim()));
+					REQUEST_BYTES.add(message.length);
+				} catch (BodyReader.TooLargeException e) {
+					LOG.warn("Rejected request: {}", e.getMessage());
+					respond(he, HttpURLConnection.HTTP_ENTITY_TOO_LARGE, "TOO_LARGE");
+					return;
+				} catch (NumberFormatException | EOFException e) {
+					LOG.info("Bad request body: {}", e.getMessage());
+					respond(he, HttpURLConnection.HTTP_BAD_REQUEST, "BAD_REQUEST");
+					return;
+				}
 
+				// Forward message to local broker, held and sent later if it is unavailable
+				MqttMessage mqttMessage = new MqttMessage(message);
+				mqttMessage.setQos(destination.getQos());
+				IMqttDeliveryToken token;
 				try {
+					token = reconnectManager.publish(destination.getTopic(), mqttMessage, publishTimeoutMs);
+				} catch (MqttException e) {
+					// Every in-flight slot stayed taken
+					LOG.warn("Publish Error: {}", e.getMessage());
+					PUBLISH_FAILURES.increment();
+					respond(he, HttpURLConnection.HTTP_GATEWAY_TIMEOUT, "FAILED");
+					return;
+				}
 
-					Headers requestHeaders = he.getRequestHeaders();
-					int contentLength = Integer.parseInt(requestHeaders.getFirst("Content-length"));
-					byte[] message = new byte[contentLength];
-					
-					//InputStream is = he.getRequestBody();
-					//int length = is.read(message);
-					
-					he.getRequestBody().read(message);
-
-					// Forward message to local broker
-					System.out.println("Forwarding message to local broker");
+				int status;
+				String result;
+				if (token == null) {
+					status = HttpURLConnection.HTTP_ACCEPTED;
+					result = "QUEUED";
+				} else if (fastAck) {
+					// Handed to the MQTT client, don't wait for the broker
+					status = HttpURLConnection.HTTP_ACCEPTED;
+					result = "ACCEPTED";
+				} else {
 					try {
-						mqttClient.publish(localTopic, new MqttMessage(message));
+						token.waitForCompletion(publishTimeoutMs);
+						status = HttpURLConnection.HTTP_OK;
+						result = "SENT";
 					} catch (MqttException e) {
-						// Handle publish errors
-						System.out.println("Publish Error: " + e.getMessage());
-						e.printStackTrace();
+						LOG.warn("Publish Error: {}", e.getMessage());
+						PUBLISH_FAILURES.increment();
+						status = HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+						result = "FAILED";
 					}
+				}
 
-					// Send RESPONSE
-					byte[] response = "{\"result\":\"SENT\"}".getBytes();
-					he.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+				respond(he, status, result);
 
-					OutputStream os = he.getResponseBody();
-					os.write(response);
+			} catch (Exception e) {
+				LOG.error("Request failed", e);
+			} finally {
+				he.close();
+				REQUEST_LATENCY.recordSince(start);
+			}
+		}
 
-					he.close();
+		private static void respond(HttpExchange he, int status, String result) throws IOException {
+			countResponse(status);
+			byte[] response = ("{\"result\":\"" + result + "\"}").getBytes();
+			he.sendResponseHeaders(status, response.length);
 
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
+			OutputStream os = he.getResponseBody();
+			os.write(response);
+		}
+	}
+
+	static void countResponse(int status) {
+		if (status >= 500) {
+			RESPONSES_5XX.increment();
+		} else if (status >= 400) {
+			RESPONSES_4XX.increment();
+		} else {
+			RESPONSES_2XX.increment();
 		}
 	}
 
 	@Override
 	public void close() throws IOException {
 		server.stop(0);
+		if (metricsReporter != null) {
+			metricsReporter.close();
+		}
+		if (executor != null) {
+			executor.shutdown();
+		}
+		if (reconnectManager != null) {
+			reconnectManager.close();
+		}
 	}
 }